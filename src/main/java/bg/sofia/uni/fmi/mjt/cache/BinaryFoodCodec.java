@@ -0,0 +1,406 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.json.FoodNutrient;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+//Version 1 of the binary cache file: the magic "FDCB" and a version byte, then records, each a varint
+//length followed by a type byte and the body. Ids, lengths and counts are varints, amounts are raw
+//doubles. Data types and nutrients (number, name, unit) repeat across foods, so each is written once
+//as a definition record and foods refer to it by its index, which also makes the loaded foods share
+//those strings. Unknown record types are skipped, so later versions can add records.
+final class BinaryFoodCodec implements FoodFileCodec {
+    static final byte[] MAGIC = {'F', 'D', 'C', 'B'};
+    static final byte VERSION = 1;
+
+    private static final byte STRING_RECORD = 1;
+    private static final byte NUTRIENT_RECORD = 2;
+    private static final byte FOOD_RECORD = 3;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_VARINT = 10;
+
+    private record Nutrient(String number, String name, String unitName) {
+    }
+
+    //the definitions of the file, in the order of their records. Mapped storage decodes foods on request
+    //threads while the writer adds definitions, new definitions are rare so the lists copy on write
+    private final List<String> strings = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> stringIndexes = new HashMap<>();
+    private final List<Nutrient> nutrients = new CopyOnWriteArrayList<>();
+    private final Map<Nutrient, Integer> nutrientIndexes = new HashMap<>();
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    @Override
+    public byte[] header() {
+        byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+        header[MAGIC.length] = VERSION;
+        return header;
+    }
+
+    @Override
+    public int encode(Food food, ByteArrayOutputStream out) {
+        int dataType = food.getDataType() == null ? -1 : intern(food.getDataType(), out);
+        List<FoodNutrient> foodNutrients = food.getFoodNutrients();
+        int[] nutrientRefs = null;
+        if (foodNutrients != null) {
+            nutrientRefs = new int[foodNutrients.size()];
+            for (int i = 0; i < nutrientRefs.length; i++) {
+                nutrientRefs[i] = intern(foodNutrients.get(i), out);
+            }
+        }
+
+        body.reset();
+        body.write(FOOD_RECORD);
+        writeVarLong(body, food.getFdcId());
+        writeVarLong(body, food.getCachedAt() == null ? 0 : food.getCachedAt() + 1);
+        writeVarLong(body, dataType + 1);
+        writeString(body, food.getDescription());
+        writeString(body, food.getGtinUpc());
+        writeString(body, food.getIngredients());
+        writeString(body, food.getQuery());
+        if (nutrientRefs == null) {
+            writeVarLong(body, 0);
+        } else {
+            writeVarLong(body, nutrientRefs.length + 1);
+            for (int i = 0; i < nutrientRefs.length; i++) {
+                Double amount = foodNutrients.get(i).getAmount();
+                writeVarLong(body, (long) nutrientRefs[i] << 1 | (amount == null ? 0 : 1));
+                if (amount != null) {
+                    writeDouble(body, amount);
+                }
+            }
+        }
+        int start = out.size();
+        writeRecord(out);
+        return start;
+    }
+
+    @Override
+    public long read(Path file, long start, long end, FoodSink foods) throws IOException, CacheException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), READ_BUFFER_SIZE)) {
+            long valid = start;
+            if (start == 0) {
+                byte[] header = in.readNBytes(MAGIC.length + 1);
+                if (!Arrays.equals(header, header())) {
+                    throw new CacheException(String.format("%s is not a version %d binary cache file",
+                            file, VERSION));
+                }
+                valid = header.length;
+            } else {
+                in.skipNBytes(start);
+            }
+            while (valid < end) {
+                long length = readVarLong(in);
+                if (length < 0) {
+                    return valid;
+                }
+                byte[] record = in.readNBytes((int) length);
+                if (record.length < length) {
+                    return valid;
+                }
+                Food food;
+                try {
+                    food = decode(ByteBuffer.wrap(record));
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    throw new CacheException(String.format("Corrupt record at byte %d of %s", valid, file), e);
+                }
+                if (food != null) {
+                    foods.accept(food, valid);
+                }
+                valid += varLongSize(length) + length;
+            }
+            return valid;
+        }
+    }
+
+    @Override
+    public Food readAt(FileChannel channel, long offset) throws IOException, CacheException {
+        ByteBuffer prefix = ChunkedLoader.readRange(channel, offset, Math.min(channel.size(), offset + MAX_VARINT));
+        long length = readVarLong(prefix);
+        long start = offset + prefix.position();
+        try {
+            return decode(ChunkedLoader.readRange(channel, start, start + length));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new CacheException(String.format("Corrupt record at byte %d", offset), e);
+        }
+    }
+
+    //The definitions have to be decoded before the foods that use them, so they are decoded while the
+    //record lengths are scanned to split the file into chunks. The chunks then only decode food records.
+    @Override
+    public long read(Path file, FoodSink foods, ForkJoinPool pool, long chunkSize)
+            throws IOException, CacheException {
+        List<long[]> ranges = new ArrayList<>();
+        long valid;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), READ_BUFFER_SIZE)) {
+            byte[] header = in.readNBytes(MAGIC.length + 1);
+            if (!Arrays.equals(header, header())) {
+                throw new CacheException(String.format("%s is not a version %d binary cache file", file, VERSION));
+            }
+            valid = header.length;
+            long chunkStart = valid;
+            long length;
+            while ((length = readVarLong(in)) >= 0 && scanRecord(in, length, valid, file)) {
+                valid += varLongSize(length) + length;
+                if (valid - chunkStart >= chunkSize) {
+                    ranges.add(new long[] {chunkStart, valid});
+                    chunkStart = valid;
+                }
+            }
+            if (valid > chunkStart) {
+                ranges.add(new long[] {chunkStart, valid});
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<Callable<List<ChunkedLoader.Decoded>>> chunks = new ArrayList<>();
+            for (long[] range : ranges) {
+                chunks.add(() -> decodeFoods(ChunkedLoader.readRange(channel, range[0], range[1]), range[0], file));
+            }
+            ChunkedLoader.readInOrder(chunks, pool, foods);
+        }
+        return valid;
+    }
+
+    //decodes a definition record and skips a food record, false if the record was cut short
+    private boolean scanRecord(InputStream in, long length, long offset, Path file)
+            throws IOException, CacheException {
+        if (length == 0) {
+            throw new CacheException(String.format("Corrupt record at byte %d of %s", offset, file));
+        }
+        int type = in.read();
+        if (type < 0) {
+            return false;
+        }
+        if (type == FOOD_RECORD) {
+            try {
+                in.skipNBytes(length - 1);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+        byte[] body = in.readNBytes((int) length - 1);
+        if (body.length < length - 1) {
+            return false;
+        }
+        try {
+            decode((byte) type, ByteBuffer.wrap(body));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new CacheException(String.format("Corrupt record at byte %d of %s", offset, file), e);
+        }
+        return true;
+    }
+
+    private List<ChunkedLoader.Decoded> decodeFoods(ByteBuffer chunk, long start, Path file) throws CacheException {
+        List<ChunkedLoader.Decoded> decoded = new ArrayList<>();
+        while (chunk.hasRemaining()) {
+            long offset = start + chunk.position();
+            try {
+                int length = (int) readVarLong(chunk);
+                int end = chunk.position() + length;
+                if (chunk.get() == FOOD_RECORD) {
+                    decoded.add(new ChunkedLoader.Decoded(decodeFood(chunk.slice(chunk.position(),
+                            end - chunk.position())), offset));
+                }
+                chunk.position(end);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new CacheException(String.format("Corrupt record at byte %d of %s", offset, file), e);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Decodes a record body. Definition records are remembered for the foods after them, food records
+     * only read the definitions, so they can be decoded on any thread.
+     *
+     * @return the food of a food record, null for any other record
+     */
+    Food decode(ByteBuffer record) {
+        return decode(record.get(), record);
+    }
+
+    private Food decode(byte type, ByteBuffer record) {
+        switch (type) {
+            case STRING_RECORD -> {
+                String value = readString(record);
+                stringIndexes.put(value, strings.size());
+                strings.add(value);
+                return null;
+            }
+            case NUTRIENT_RECORD -> {
+                Nutrient nutrient = new Nutrient(readString(record), readString(record), readString(record));
+                nutrientIndexes.put(nutrient, nutrients.size());
+                nutrients.add(nutrient);
+                return null;
+            }
+            case FOOD_RECORD -> {
+                return decodeFood(record);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private Food decodeFood(ByteBuffer record) {
+        int fdcId = (int) readVarLong(record);
+        long cachedAt = readVarLong(record);
+        int dataType = (int) readVarLong(record) - 1;
+        String description = readString(record);
+        String gtinUpc = readString(record);
+        String ingredients = readString(record);
+        String query = readString(record);
+        int count = (int) readVarLong(record) - 1;
+        List<FoodNutrient> foodNutrients = null;
+        if (count >= 0) {
+            foodNutrients = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long ref = readVarLong(record);
+                Nutrient nutrient = nutrients.get((int) (ref >>> 1));
+                FoodNutrient foodNutrient = new FoodNutrient();
+                foodNutrient.setNumber(nutrient.number());
+                foodNutrient.setName(nutrient.name());
+                foodNutrient.setUnitName(nutrient.unitName());
+                if ((ref & 1) != 0) {
+                    foodNutrient.setAmount(record.getDouble());
+                }
+                foodNutrients.add(foodNutrient);
+            }
+        }
+        return new Food(fdcId, dataType < 0 ? null : strings.get(dataType), description, foodNutrients, gtinUpc,
+                ingredients, query, cachedAt == 0 ? null : cachedAt - 1);
+    }
+
+    private int intern(String value, ByteArrayOutputStream out) {
+        Integer index = stringIndexes.get(value);
+        if (index != null) {
+            return index;
+        }
+        body.reset();
+        body.write(STRING_RECORD);
+        writeString(body, value);
+        writeRecord(out);
+        stringIndexes.put(value, strings.size());
+        strings.add(value);
+        return strings.size() - 1;
+    }
+
+    private int intern(FoodNutrient foodNutrient, ByteArrayOutputStream out) {
+        Nutrient nutrient = new Nutrient(foodNutrient.getNumber(), foodNutrient.getName(), foodNutrient.getUnitName());
+        Integer index = nutrientIndexes.get(nutrient);
+        if (index != null) {
+            return index;
+        }
+        body.reset();
+        body.write(NUTRIENT_RECORD);
+        writeString(body, nutrient.number());
+        writeString(body, nutrient.name());
+        writeString(body, nutrient.unitName());
+        writeRecord(out);
+        nutrientIndexes.put(nutrient, nutrients.size());
+        nutrients.add(nutrient);
+        return nutrients.size() - 1;
+    }
+
+    private void writeRecord(ByteArrayOutputStream out) {
+        writeVarLong(out, body.size());
+        out.writeBytes(body.toByteArray());
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.writeBytes(bytes);
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @return the varint or -1 at the end of the stream, also if the stream ends inside the varint
+     */
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                return -1;
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarLong(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
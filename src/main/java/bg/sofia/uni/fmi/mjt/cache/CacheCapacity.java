@@ -0,0 +1,38 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+/**
+ * How many foods the cache keeps in memory, either as a number of foods or as their estimated size.
+ *
+ * @param maximum the maximum, 0 for an unbounded cache
+ * @param inBytes true if the maximum is in estimated bytes, false if it is a number of foods
+ */
+public record CacheCapacity(long maximum, boolean inBytes) {
+    //a food of the abridged format with the five nutrients the server asks for is about this big
+    static final long AVERAGE_FOOD_BYTES = 1024;
+
+    public CacheCapacity {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("Cache capacity can't be negative");
+        }
+    }
+
+    public static CacheCapacity unbounded() {
+        return new CacheCapacity(0, false);
+    }
+
+    public static CacheCapacity ofEntries(long maxEntries) {
+        return new CacheCapacity(maxEntries, false);
+    }
+
+    public static CacheCapacity ofBytes(long maxBytes) {
+        return new CacheCapacity(maxBytes, true);
+    }
+
+    public boolean isBounded() {
+        return maximum > 0;
+    }
+
+    long expectedEntries() {
+        return inBytes ? Math.max(1, maximum / AVERAGE_FOOD_BYTES) : maximum;
+    }
+}
@@ -0,0 +1,43 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+/**
+ * When the cache file is compacted. Refreshed and re-fetched foods are appended again, so the file
+ * collects copies that loading it only throws away. Once enough of its records are such copies, the
+ * file is rewritten in the background with one record per food.
+ *
+ * @param duplicatePercent the share of the file's food records that are duplicates to compact at,
+ *                         0 to never compact
+ * @param minRecords       smaller files are never compacted
+ */
+public record CacheCompaction(int duplicatePercent, long minRecords) {
+    public static final long DEFAULT_MIN_RECORDS = 10_000;
+
+    public CacheCompaction {
+        if (duplicatePercent < 0 || duplicatePercent >= 100 || minRecords < 0) {
+            throw new IllegalArgumentException("Duplicate percent must be from 0 to 99, min records not negative");
+        }
+    }
+
+    public static CacheCompaction disabled() {
+        return new CacheCompaction(0, 0);
+    }
+
+    public static CacheCompaction atDuplicates(int duplicatePercent, long minRecords) {
+        if (duplicatePercent == 0) {
+            throw new IllegalArgumentException("Duplicate percent must be positive");
+        }
+        return new CacheCompaction(duplicatePercent, minRecords);
+    }
+
+    public boolean isEnabled() {
+        return duplicatePercent > 0;
+    }
+
+    /**
+     * @param records food records in the file
+     * @param live    how many of them are needed to load the same cache
+     */
+    boolean isDue(long records, long live) {
+        return isEnabled() && records >= minRecords && (records - live) * 100 >= duplicatePercent * records;
+    }
+}
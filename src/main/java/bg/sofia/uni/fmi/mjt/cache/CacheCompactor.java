@@ -0,0 +1,265 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+//Rewrites the cache file into a snapshot without the records that no longer change the loaded cache,
+//on its own thread while the writer keeps appending to the file. Loading keeps the newest copy of a
+//food, but the keyword lists and the barcode index follow the order foods first appear in with a query
+//or barcode. So the first record of each food and query and the first record of each barcode are kept
+//in place, with the newest content of their food, and every food's newest copy is written after them,
+//so it still wins on load. Once the snapshot is written the writer has the compactor copy the foods
+//appended meanwhile, and the snapshot replaces the file with an atomic move.
+final class CacheCompactor extends Thread {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    //a record that adds a food to a query's list or a barcode to the index, winner is its food's index
+    private record Mark(long offset, int winner, String query, String gtinUpc) {
+    }
+
+    private record Membership(int fdcId, String query) {
+    }
+
+    //The newest copy of every food, in the order the foods first appear in the file, in arrays indexed
+    //by that order, since the file can hold far more foods than the cache keeps.
+    private static final class Winners {
+        private final LongLongMap indexes = new LongLongMap();
+        private long[] offsets = new long[16];
+        private long[] cachedAts = new long[16];
+        //the last record of each food that is a mark
+        private long[] lastMarks = new long[16];
+        private int size;
+
+        //keeps the newer of the copies, the later one if they are as new
+        int merge(int fdcId, long offset, long cachedAt) {
+            int winner = (int) indexes.get(fdcId, -1);
+            if (winner < 0) {
+                if (size == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, size * 2);
+                    cachedAts = Arrays.copyOf(cachedAts, size * 2);
+                    lastMarks = Arrays.copyOf(lastMarks, size * 2);
+                }
+                winner = size++;
+                indexes.put(fdcId, winner);
+                lastMarks[winner] = -1;
+            } else if (cachedAt < cachedAts[winner]) {
+                return winner;
+            }
+            offsets[winner] = offset;
+            cachedAts[winner] = cachedAt;
+            return winner;
+        }
+    }
+
+    private final Path file;
+    private final Path snapshot;
+    //the end of the part of the file the snapshot is made of, the writer appends after it meanwhile
+    private final long cut;
+    private final FoodFileCodec reader;
+    private final FoodFileCodec writer;
+    private final Runnable onDone;
+
+    //the offset each kept food has in the snapshot, by the offset of its newest copy in the file
+    private final LongLongMap relocations = new LongLongMap();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private FileChannel channel;
+    private OutputStream out;
+    private long position;
+    private long records;
+
+    private volatile boolean done;
+    private volatile Exception failure;
+
+    /**
+     * @param onDone called on the compactor thread once the snapshot is written or the compaction failed
+     */
+    CacheCompactor(Path file, CacheFormat format, long cut, Runnable onDone) {
+        super("food-cache-compactor");
+        setDaemon(true);
+        this.file = file;
+        this.snapshot = file.resolveSibling(file.getFileName() + ".compacting");
+        this.cut = cut;
+        this.reader = format.newCodec();
+        this.writer = format.newCodec();
+        this.onDone = onDone;
+    }
+
+    @Override
+    public void run() {
+        try {
+            writeSnapshot();
+        } catch (IOException | CacheException | RuntimeException e) {
+            failure = e;
+        } finally {
+            done = true;
+            onDone.run();
+        }
+    }
+
+    private void writeSnapshot() throws IOException, CacheException {
+        Winners winners = new Winners();
+        Set<Membership> memberships = new HashSet<>();
+        Set<String> barcodes = new HashSet<>();
+        List<Mark> marks = new ArrayList<>();
+        reader.read(file, 0, cut, (food, offset) -> {
+            if (isInterrupted()) {
+                throw new CacheException("Compaction was cancelled");
+            }
+            //a food without a timestamp is stamped with the load time, which beats the timestamps in the file
+            long cachedAt = food.getCachedAt() == null ? Long.MAX_VALUE : food.getCachedAt();
+            int winner = winners.merge(food.getFdcId(), offset, cachedAt);
+            boolean newMembership = food.getQuery() != null
+                    && memberships.add(new Membership(food.getFdcId(), food.getQuery()));
+            boolean newBarcode = food.getGtinUpc() != null && barcodes.add(food.getGtinUpc());
+            if (newMembership || newBarcode) {
+                marks.add(new Mark(offset, winner, food.getQuery(), food.getGtinUpc()));
+                winners.lastMarks[winner] = offset;
+            }
+        });
+
+        channel = FileChannel.open(snapshot, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+        byte[] header = writer.header();
+        out.write(header);
+        position = header.length;
+
+        boolean[] written = new boolean[winners.size];
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (Mark mark : marks) {
+                int winner = mark.winner();
+                Food newest = reader.readAt(source, winners.offsets[winner]);
+                if (winners.lastMarks[winner] == mark.offset() && Objects.equals(mark.query(), newest.getQuery())
+                        && Objects.equals(mark.gtinUpc(), newest.getGtinUpc())) {
+                    //no later record of the food changes an index, so its newest copy can go here
+                    relocations.put(winners.offsets[winner], append(newest));
+                    written[winner] = true;
+                } else {
+                    append(new Food(newest.getFdcId(), newest.getDataType(), newest.getDescription(),
+                            newest.getFoodNutrients(), mark.gtinUpc(), newest.getIngredients(), mark.query(),
+                            newest.getCachedAt()));
+                }
+            }
+            for (int winner = 0; winner < winners.size; winner++) {
+                if (isInterrupted()) {
+                    throw new CacheException("Compaction was cancelled");
+                }
+                if (!written[winner]) {
+                    relocations.put(winners.offsets[winner], append(reader.readAt(source, winners.offsets[winner])));
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private long append(Food food) throws IOException {
+        record.reset();
+        long offset = position + writer.encode(food, record);
+        record.writeTo(out);
+        position += record.size();
+        records++;
+        return offset;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return why the snapshot couldn't be written, null if it was
+     */
+    Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * Called by the writer once the snapshot is written, with everything it appended to the file flushed.
+     * Copies the foods appended after the cut into the snapshot and moves the snapshot over the file.
+     *
+     * @param end the end of the file
+     */
+    void finish(long end) throws IOException, CacheException {
+        reader.read(file, cut, end, (food, offset) -> {
+            try {
+                relocations.put(offset, append(food));
+            } catch (IOException e) {
+                throw new CacheException("Failed to write the cache snapshot", e);
+            }
+        });
+        out.flush();
+        channel.force(true);
+        out.close();
+        Files.move(snapshot, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(file.toAbsolutePath().getParent());
+    }
+
+    //The move is a change of the directory, it survives a crash only once the directory is forced too.
+    //Not every platform can open a directory, the move is still atomic there.
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //the snapshot has replaced the file either way
+        }
+    }
+
+    /**
+     * Stops the compaction and deletes the snapshot, the file stays as it is.
+     */
+    void cancel() {
+        interrupt();
+        try {
+            join();
+            if (out != null) {
+                out.close();
+            }
+            Files.deleteIfExists(snapshot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            //the snapshot is truncated by the next compaction
+        }
+    }
+
+    /**
+     * @return the codec the snapshot was written with, the writer appends to the snapshot with it
+     */
+    FoodFileCodec getCodec() {
+        return writer;
+    }
+
+    LongLongMap getRelocations() {
+        return relocations;
+    }
+
+    /**
+     * @return the food records in the snapshot
+     */
+    long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the size of the snapshot
+     */
+    long getSize() {
+        return position;
+    }
+}
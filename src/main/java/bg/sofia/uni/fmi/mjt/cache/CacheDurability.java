@@ -0,0 +1,40 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import java.time.Duration;
+
+/**
+ * How hard the cache writer tries to get written foods onto the disk. Foods that are lost in a crash are
+ * only fetched from the API again, so durability is traded for fewer system calls.
+ *
+ * @param mode          NONE leaves the data in the writer's buffer until it fills up or the cache is closed,
+ *                      FLUSH hands every batch to the OS, FSYNC also forces it to the disk
+ * @param fsyncInterval the most time between two forces of the FSYNC mode, zero otherwise
+ */
+public record CacheDurability(Mode mode, Duration fsyncInterval) {
+    public enum Mode {
+        NONE,
+        FLUSH,
+        FSYNC
+    }
+
+    public CacheDurability {
+        if (mode == null || fsyncInterval == null) {
+            throw new IllegalArgumentException("Mode and fsync interval can't be null");
+        }
+        if (mode == Mode.FSYNC ? fsyncInterval.isNegative() || fsyncInterval.isZero() : !fsyncInterval.isZero()) {
+            throw new IllegalArgumentException("Only the fsync mode has an interval, and it must be positive");
+        }
+    }
+
+    public static CacheDurability none() {
+        return new CacheDurability(Mode.NONE, Duration.ZERO);
+    }
+
+    public static CacheDurability flushPerBatch() {
+        return new CacheDurability(Mode.FLUSH, Duration.ZERO);
+    }
+
+    public static CacheDurability fsyncEvery(Duration interval) {
+        return new CacheDurability(Mode.FSYNC, interval);
+    }
+}
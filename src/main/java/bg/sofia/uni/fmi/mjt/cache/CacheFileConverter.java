@@ -0,0 +1,72 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+//Rewrites a cache file in another format, offline, while the server is stopped.
+//Usage: CacheFileConverter <source> <target> <json|binary>
+public class CacheFileConverter {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.err.println("Usage: CacheFileConverter <source> <target> <json|binary>");
+            System.exit(1);
+        }
+        try {
+            CacheFormat format = CacheFormat.valueOf(args[2].trim().toUpperCase(Locale.ROOT));
+            int foods = convert(Path.of(args[0]), Path.of(args[1]), format);
+            System.out.printf("Converted %d foods to %s%n", foods, args[1]);
+        } catch (IllegalArgumentException | IOException | CacheException e) {
+            System.err.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes every food of the source, in its order, to a new target file in the given format.
+     * The format of the source is detected from its contents.
+     *
+     * @return how many foods were written
+     * @throws IllegalArgumentException if the source is missing or the target already exists
+     */
+    public static int convert(Path source, Path target, CacheFormat format) throws IOException, CacheException {
+        if (source == null || target == null || format == null) {
+            throw new IllegalArgumentException("Source, target and format can't be null");
+        }
+        if (!Files.exists(source)) {
+            throw new IllegalArgumentException(String.format("%s doesn't exist", source));
+        }
+        if (Files.exists(target)) {
+            throw new IllegalArgumentException(String.format("%s already exists", target));
+        }
+
+        FoodFileCodec reader = CacheFormat.of(source, format).newCodec();
+        FoodFileCodec writer = format.newCodec();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        int[] count = {0};
+        try (OutputStream out = new BufferedOutputStream(
+                Files.newOutputStream(target, StandardOpenOption.CREATE_NEW), WRITE_BUFFER_SIZE)) {
+            out.write(writer.header());
+            reader.read(source, (food, offset) -> {
+                record.reset();
+                writer.encode(food, record);
+                try {
+                    record.writeTo(out);
+                } catch (IOException e) {
+                    throw new CacheException(String.format("Failed to write %s", target), e);
+                }
+                count[0]++;
+            });
+        }
+        return count[0];
+    }
+}
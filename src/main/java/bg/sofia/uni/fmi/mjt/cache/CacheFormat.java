@@ -0,0 +1,33 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The format of the cache file. JSON keeps one Gson serialized food per line, BINARY keeps length
+ * prefixed records that load without reflection and take a fraction of the space.
+ */
+public enum CacheFormat {
+    JSON,
+    BINARY;
+
+    FoodFileCodec newCodec() {
+        return this == BINARY ? new BinaryFoodCodec() : new JsonFoodCodec();
+    }
+
+    /**
+     * @return the format of the file, or the fallback if the file is empty or doesn't exist
+     */
+    static CacheFormat of(Path file, CacheFormat fallback) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            return fallback;
+        }
+        byte[] magic = BinaryFoodCodec.MAGIC;
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(magic.length), magic) ? BINARY : JSON;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+/**
+ * Where the cached foods are kept. HEAP keeps every food as an object, MAPPED keeps them in the
+ * memory-mapped binary cache file and only their positions on the heap, foods are decoded on request.
+ */
+public enum CacheStorage {
+    HEAP,
+    MAPPED
+}
@@ -0,0 +1,82 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+//Decodes the chunks of a cache file on a pool and hands their foods to the sink in file order, on the
+//calling thread. The indexes are built exactly as by a sequential read, only the parsing is parallel.
+//At most two chunks per pool thread are decoded ahead of the sink, so a large file isn't held in memory.
+final class ChunkedLoader {
+
+    record Decoded(Food food, long offset) {
+    }
+
+    private ChunkedLoader() {
+    }
+
+    static void readInOrder(List<Callable<List<Decoded>>> chunks, ForkJoinPool pool, FoodFileCodec.FoodSink foods)
+            throws IOException, CacheException {
+        int window = pool.getParallelism() * 2;
+        Deque<ForkJoinTask<List<Decoded>>> pending = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < chunks.size() || !pending.isEmpty()) {
+                while (next < chunks.size() && pending.size() < window) {
+                    pending.add(pool.submit(chunks.get(next++)));
+                }
+                for (Decoded decoded : join(pending.poll())) {
+                    foods.accept(decoded.food(), decoded.offset());
+                }
+            }
+        } finally {
+            for (ForkJoinTask<List<Decoded>> task : pending) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes from start to end of the file, the channel may be shared by several threads.
+     */
+    static ByteBuffer readRange(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, start + bytes.position()) < 0) {
+                throw new IOException("Cache file ended before its last chunk");
+            }
+        }
+        return bytes.flip();
+    }
+
+    private static List<Decoded> join(ForkJoinTask<List<Decoded>> task) throws IOException, CacheException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheException("Interrupted while loading the cache", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof CacheException cacheException) {
+                throw cacheException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new CacheException("Failed to load the cache", cause);
+        }
+    }
+}
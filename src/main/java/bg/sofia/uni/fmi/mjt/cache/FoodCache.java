@@ -2,130 +2,470 @@ package bg.sofia.uni.fmi.mjt.cache;
 
 import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
 import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.json.FoodQuery;
+import bg.sofia.uni.fmi.mjt.json.FoodSearchCriteria;
 import bg.sofia.uni.fmi.mjt.logger.Level;
 import bg.sofia.uni.fmi.mjt.logger.Logger;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
-import com.google.gson.Gson;
 
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.LockSupport;
 
 public class FoodCache {
+    //the startup parse is split into chunks of this many bytes, about four per load thread
+    private static final long MIN_LOAD_CHUNK = 1024 * 1024;
+    private static final long MAX_LOAD_CHUNK = 8 * 1024 * 1024;
+
     private final Logger logger;
 
     private final Path cacheFile;
 
-    private FoodCacheWriter[] foodCacheWriters;
-    private final static int MAX_CACHE_THREADS = 4;
+    private final CacheDurability durability;
+    //started once the cache file is loaded, so it appends after the last complete record
+    private volatile FoodCacheWriter writer;
+    //set while the writer is parked waiting for foods, producers only unpark it then
+    private volatile boolean writerParked;
+    //set by a finished compactor, the writer wakes up to switch to the compacted file
+    private volatile boolean writerSignalled;
+
+    private final CacheCompaction compaction;
+    //food records in the cache file, changed by the loader and then by the writer only
+    private long fileRecords;
+    //the foods that have a record in the file, counted apart from the store, which a bounded cache
+    //keeps smaller than the file. Changed by the loader and then by the writer only
+    private final BitSet fileFoods = new BitSet();
+    private long fileFoodCount;
+    //records of the compacted file, they are all needed even if some are copies kept for the index order
+    private long compactedRecords;
+    //after a failed compaction the next one waits until the file has grown by the minimum again
+    private long nextCompactionAt;
 
     private final ConcurrentHashMap<String, Integer> gtinUpcToFdcId;
     private final ConcurrentHashMap<String, List<Integer>> keyWordsToFdcId;
-    private final ConcurrentHashMap<Integer, Food> fdcIdToFood;
+    private final FoodStore store;
+    //null when the foods are kept on the heap
+    private final MappedFoodStore mapped;
+    //the queries whose cached result contains the food, they are forgotten together with the food
+    private final ConcurrentHashMap<Integer, Set<String>> fdcIdToQueries = new ConcurrentHashMap<>();
+
+    //null when the cache is unbounded
+    private final TinyLfuPolicy policy;
+    private final boolean weighInBytes;
+
+    //single pages of keyword searches, as the API returned them but with the ids of their foods only. The
+    //foods are looked up in the store, so a page never keeps a food the capacity evicted. Kept in memory only
+    private final ConcurrentHashMap<PageKey, CachedPage> keywordPages = new ConcurrentHashMap<>();
+
+    //page sizes each query has cached pages of, a window can be cut out of pages of any size
+    private final ConcurrentHashMap<String, Set<Integer>> pageSizes = new ConcurrentHashMap<>();
+
+    private record PageKey(String query, int pageNumber, int pageSize) {
+    }
 
-    private final Gson gson = new Gson();
-    private final Queue<Food> queue = new ArrayDeque<>();
+    private record CachedPage(FoodSearchCriteria criteria, Integer totalHits, Integer currentPage,
+                              Integer totalPages, int[] fdcIds, long cachedAt) {
+    }
 
-    private boolean isClosed = false;
+    //the codec of the cache file's format, it reads the file and then appends to it until it is compacted
+    private final CacheFormat format;
+    private final FoodFileCodec codec;
+    //many request threads submit, the writer is the only consumer
+    private final ConcurrentLinkedQueue<Food> queue = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean isClosed = false;
+
+    /**
+     * LOADING while the cache file is read in the background, FAILED if it couldn't be read.
+     */
+    public enum WarmUp {
+        LOADING,
+        WARM,
+        FAILED
+    }
 
+    private volatile WarmUp warmUp = WarmUp.LOADING;
+    //where the food loaded last starts in the cache file, out of the file's size
+    private volatile long loadedBytes;
+    private volatile long loadTotalBytes;
+
+    /**
+     * An unbounded cache in the JSON format, every batch of foods is flushed to the file.
+     */
     public FoodCache(Path cacheFile, Logger logger) throws CacheException {
-        checkNull(cacheFile, "Cache path");
-        checkNull(logger, "Logger");
+        this(newFoodCacheBuilder(cacheFile, logger));
+    }
 
-        this.logger = logger;
-        this.cacheFile = cacheFile;
+    private FoodCache(FoodCacheBuilder builder) throws CacheException {
+        this.logger = builder.logger;
+        this.cacheFile = builder.cacheFile;
+        CacheCapacity capacity = builder.capacity;
+        this.policy = capacity.isBounded() ? new TinyLfuPolicy(capacity.maximum(), capacity.expectedEntries()) : null;
+        this.weighInBytes = capacity.inBytes();
+        this.durability = builder.durability;
+        this.compaction = builder.compaction;
 
         gtinUpcToFdcId = new ConcurrentHashMap<>();
         keyWordsToFdcId = new ConcurrentHashMap<>();
-        fdcIdToFood = new ConcurrentHashMap<>();
 
-        if (Files.exists(cacheFile)) {
-            initCache();
-        } else {
+        if (!Files.exists(cacheFile)) {
             try {
-                Files.createDirectories(cacheFile.getParent());
+                if (cacheFile.getParent() != null) {
+                    Files.createDirectories(cacheFile.getParent());
+                }
                 Files.createFile(cacheFile);
             } catch (IOException e) {
                 throw new CacheException("Error while creating cache file");
             }
         }
-        initWriters();
+        format = fileFormat(builder.format);
+        codec = format.newCodec();
+        if (builder.storage == CacheStorage.MAPPED) {
+            if (format != CacheFormat.BINARY) {
+                throw new CacheException(String.format(
+                        "Mapped storage needs a binary cache file, convert %s with CacheFileConverter", cacheFile));
+            }
+            mapped = new MappedFoodStore(cacheFile, (BinaryFoodCodec) codec);
+            store = mapped;
+        } else {
+            mapped = null;
+            store = new HeapFoodStore();
+        }
+
+        if (builder.backgroundLoad) {
+            Thread loader = new Thread(() -> warmUp(builder.loadThreads), "food-cache-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            initCache(builder.loadThreads);
+            initWriter();
+            warmUp = WarmUp.WARM;
+        }
+    }
+
+    //Loads the cache file while the server already serves requests. Lookups see the foods loaded so far,
+    //foods submitted meanwhile wait in the queue for the writer, which starts once the file is read.
+    //A binary file can only be appended to by the codec that read all of it, so the writer can't start
+    //earlier, the submitted foods are stored right away instead (see enqueue).
+    private void warmUp(int loadThreads) {
+        try {
+            initCache(loadThreads);
+            synchronized (this) {
+                //a cache closed while it loaded doesn't start writing after its owner stopped waiting for it
+                if (!isClosed) {
+                    initWriter();
+                }
+            }
+            warmUp = WarmUp.WARM;
+        } catch (CacheException | RuntimeException e) {
+            //the cache keeps serving what it loaded, but nothing is written after a file it couldn't read
+            warmUp = WarmUp.FAILED;
+            isClosed = true;
+            queue.clear();
+            logger.log(Level.FATAL, e);
+        }
+    }
+
+    public static FoodCacheBuilder newFoodCacheBuilder(Path cacheFile, Logger logger) {
+        if (cacheFile == null || logger == null) {
+            throw new IllegalArgumentException("Cache path and logger can't be null");
+        }
+        return new FoodCacheBuilder(cacheFile, logger);
     }
 
-    public synchronized void submit(Food food) {
+    public static class FoodCacheBuilder {
+        private final Path cacheFile;
+        private final Logger logger;
+        private CacheCapacity capacity = CacheCapacity.unbounded();
+        private CacheDurability durability = CacheDurability.flushPerBatch();
+        private CacheFormat format = CacheFormat.JSON;
+        private CacheStorage storage = CacheStorage.HEAP;
+        private int loadThreads = Runtime.getRuntime().availableProcessors();
+        private boolean backgroundLoad = false;
+        private CacheCompaction compaction = CacheCompaction.disabled();
+
+        private FoodCacheBuilder(Path cacheFile, Logger logger) {
+            this.cacheFile = cacheFile;
+            this.logger = logger;
+        }
+
+        /**
+         * @param capacity how many foods are kept in memory, the cache file keeps every food regardless
+         */
+        public FoodCacheBuilder setCapacity(CacheCapacity capacity) {
+            checkNull(capacity, "Capacity");
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * @param durability how often the writer flushes or forces the cache file
+         */
+        public FoodCacheBuilder setDurability(CacheDurability durability) {
+            checkNull(durability, "Durability");
+            this.durability = durability;
+            return this;
+        }
+
+        /**
+         * @param format the format of a new cache file, an existing file keeps the format it has
+         */
+        public FoodCacheBuilder setFormat(CacheFormat format) {
+            checkNull(format, "Format");
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * @param storage where the foods are kept, mapped storage needs the binary format
+         */
+        public FoodCacheBuilder setStorage(CacheStorage storage) {
+            checkNull(storage, "Storage");
+            this.storage = storage;
+            return this;
+        }
+
+        /**
+         * @param loadThreads how many threads parse the cache file on startup, 1 reads it on the calling thread
+         */
+        public FoodCacheBuilder setLoadThreads(int loadThreads) {
+            if (loadThreads <= 0) {
+                throw new IllegalArgumentException("Load threads must be positive");
+            }
+            this.loadThreads = loadThreads;
+            return this;
+        }
+
+        /**
+         * @param backgroundLoad true to return before the cache file is loaded and load it on another thread
+         */
+        public FoodCacheBuilder setBackgroundLoad(boolean backgroundLoad) {
+            this.backgroundLoad = backgroundLoad;
+            return this;
+        }
+
+        /**
+         * @param compaction when the cache file is rewritten without the duplicate records
+         */
+        public FoodCacheBuilder setCompaction(CacheCompaction compaction) {
+            checkNull(compaction, "Compaction");
+            this.compaction = compaction;
+            return this;
+        }
+
+        public FoodCache build() throws CacheException {
+            if (storage == CacheStorage.MAPPED && format != CacheFormat.BINARY) {
+                throw new IllegalArgumentException("Mapped storage needs the binary cache file format");
+            }
+            return new FoodCache(this);
+        }
+    }
+
+    public void submit(Food food) {
         checkNull(food, "food");
 
         if (!isClosed) {
-            queue.add(food);
+            enqueue(List.of(stamp(food, System.currentTimeMillis())));
         }
-        this.notifyAll();
     }
 
 
-    public synchronized void submitAll(Collection<Food> foods) {
+    public void submitAll(Collection<Food> foods) {
         checkNull(foods, "Food list");
 
         if (!isClosed) {
-            queue.addAll(foods);
+            long now = System.currentTimeMillis();
+            enqueue(foods.stream().map(food -> stamp(food, now)).toList());
         }
-        this.notifyAll();
     }
 
-    public synchronized Food getNextFood() throws CacheException {
-        while (queue.isEmpty() && !isClosed) {
-            try {
-                this.wait();
-            } catch (InterruptedException e) {
-                throw new CacheException("An error occurred while trying to poll next food item", e);
+    /**
+     * Submits the complete result of a query, its foods tagged with it. The result replaces the foods
+     * the query had, so a food the API no longer returns for it isn't served and doesn't keep the
+     * result as old as its last fetch. Until the writer stores the foods, the query is a miss.
+     */
+    public void submitResult(String query, List<Food> foods) {
+        checkNull(query, "query");
+        checkNull(foods, "Food list");
+
+        if (!isClosed) {
+            long now = System.currentTimeMillis();
+            List<Food> stamped = foods.stream().map(food -> stamp(food, now)).toList();
+            Set<Integer> ids = new LinkedHashSet<>();
+            for (Food food : stamped) {
+                ids.add(food.getFdcId());
+            }
+            synchronized (keyWordsToFdcId) {
+                List<Integer> replaced = keyWordsToFdcId.put(query, new ArrayList<>(ids));
+                if (policy != null) {
+                    if (replaced != null) {
+                        for (Integer id : replaced) {
+                            Set<String> queries = fdcIdToQueries.get(id);
+                            if (queries != null && !ids.contains(id)) {
+                                queries.remove(query);
+                            }
+                        }
+                    }
+                    for (Integer id : ids) {
+                        fdcIdToQueries.computeIfAbsent(id, key -> new HashSet<>()).add(query);
+                    }
+                }
             }
+            enqueue(stamped);
         }
-        return queue.poll();
     }
 
-
-    private void initCache() throws CacheException {
-        String line;
-        Food currFood;
-        try (BufferedReader br = Files.newBufferedReader(cacheFile)) {
-            while ((line = br.readLine()) != null) {
-                currFood = gson.fromJson(line, Food.class);
-                int fdcId = currFood.getFdcId();
-
-                if (currFood.getGtinUpc() != null) {
-                    gtinUpcToFdcId.putIfAbsent(currFood.getGtinUpc(), fdcId);
+    //While the file loads in the background there is no writer to store submitted foods, so they are
+    //stored right away and a repeated request doesn't go upstream again. The writer stores them once more
+    //when it writes them. Mapped storage can only hold foods that are in the file, they wait for the writer.
+    private void enqueue(List<Food> foods) {
+        if (warmUp == WarmUp.LOADING && mapped == null) {
+            for (Food food : foods) {
+                try {
+                    storeInCache(food);
+                } catch (CacheException e) {
+                    //only thrown for a null food, which stamp already rejected
                 }
+            }
+        }
+        queue.addAll(foods);
+        wakeWriter();
+    }
 
-                if (currFood.getQuery() != null) {
-                    if (keyWordsToFdcId.get(currFood.getQuery()) != null) {
-                        List<Integer> ids = keyWordsToFdcId.get(currFood.getQuery());
-                        ids.add(fdcId);
-                        keyWordsToFdcId.putIfAbsent(currFood.getQuery(), Collections.synchronizedList(ids));
-                    } else {
-                        List<Integer> newId = new ArrayList<>();
-                        newId.add(fdcId);
-                        keyWordsToFdcId.putIfAbsent(currFood.getQuery(), Collections.synchronizedList(newId));
-                    }
+    /**
+     * Called by the writer only. Waits until a food is submitted, the timeout passes or the cache is closed.
+     *
+     * @param timeoutNanos Long.MAX_VALUE to wait without a timeout
+     * @return false once the cache is closed and every submitted food was taken
+     */
+    boolean awaitFoods(long timeoutNanos) throws CacheException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (queue.isEmpty()) {
+            if (isClosed) {
+                return false;
+            }
+            if (writerSignalled) {
+                writerSignalled = false;
+                return true;
+            }
+            writerParked = true;
+            //a food submitted after this check unparks the writer, as it sees writerParked set
+            if (queue.isEmpty() && !isClosed && !writerSignalled) {
+                if (timeoutNanos == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, deadline - System.nanoTime());
                 }
-                fdcIdToFood.putIfAbsent(fdcId, currFood);
             }
+            writerParked = false;
+            if (Thread.interrupted()) {
+                throw new CacheException("Cache writer was interrupted while waiting for foods");
+            }
+            if (timeoutNanos != Long.MAX_VALUE && System.nanoTime() - deadline >= 0) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Called by the writer only, moves at most max submitted foods to the batch.
+     */
+    void drainTo(List<Food> batch, int max) {
+        Food food;
+        while (batch.size() < max && (food = queue.poll()) != null) {
+            batch.add(food);
+        }
+    }
+
+    /**
+     * Wakes the writer up even if no food was submitted.
+     */
+    void signalWriter() {
+        writerSignalled = true;
+        LockSupport.unpark(writer);
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+
+    //the format of an existing file wins over the configured one
+    private CacheFormat fileFormat(CacheFormat configured) throws CacheException {
+        try {
+            CacheFormat format = CacheFormat.of(cacheFile, configured);
+            if (format != configured) {
+                logger.log(Level.WARN, new CacheException(String.format(
+                        "Cache file %s is in the %s format, not %s, convert it with CacheFileConverter",
+                        cacheFile, format, configured)));
+            }
+            return format;
         } catch (IOException e) {
             throw new CacheException("An error occurred while initializing cache", e);
         }
     }
 
-    private void initWriters() throws CacheException {
-        foodCacheWriters = new FoodCacheWriter[MAX_CACHE_THREADS];
-        Thread.UncaughtExceptionHandler handler = (t, e) -> logger.log(Level.WARN, e);
+    private void initCache(int loadThreads) throws CacheException {
+        long loadedAt = System.currentTimeMillis();
         try {
-            for (int i = 0; i < MAX_CACHE_THREADS; i++) {
-                foodCacheWriters[i] = new FoodCacheWriter(this);
-                foodCacheWriters[i].setUncaughtExceptionHandler(handler);
-                foodCacheWriters[i].start();
+            if (Files.size(cacheFile) == 0) {
+                //an empty file gets the header of its format
+                Files.write(cacheFile, codec.header(), StandardOpenOption.APPEND);
+                return;
+            }
+            if (mapped != null) {
+                mapped.extend(Files.size(cacheFile));
+            }
+            long size = Files.size(cacheFile);
+            loadTotalBytes = size;
+            FoodFileCodec.FoodSink sink = (food, offset) -> {
+                //foods written before they had a timestamp count as fetched now, not as expired all at once
+                //a bounded cache evicts while it loads, later foods count as the more recently used ones
+                storeInCache(stamp(food, loadedAt), offset);
+                countRecord(food);
+                loadedBytes = offset;
+            };
+            long valid;
+            if (loadThreads > 1 && size > MIN_LOAD_CHUNK) {
+                //the chunks are parsed in parallel, but stored in file order, so the indexes are the same
+                ForkJoinPool pool = new ForkJoinPool(loadThreads);
+                try {
+                    long chunkSize = Math.max(MIN_LOAD_CHUNK, Math.min(MAX_LOAD_CHUNK, size / (loadThreads * 4L)));
+                    valid = codec.read(cacheFile, sink, pool, chunkSize);
+                } finally {
+                    pool.shutdownNow();
+                }
+            } else {
+                valid = codec.read(cacheFile, sink);
+            }
+            if (valid < size) {
+                //the last record was cut short by a crash, new records must not be appended after it
+                logger.log(Level.WARN, new CacheException(String.format(
+                        "Dropped a torn record at the end of %s", cacheFile)));
+                try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
             }
+        } catch (IOException e) {
+            throw new CacheException("An error occurred while initializing cache", e);
+        }
+    }
 
+    private void initWriter() throws CacheException {
+        try {
+            writer = new FoodCacheWriter(this, format, codec, durability);
+            writer.setUncaughtExceptionHandler((t, e) -> logger.log(Level.WARN, e));
+            writer.start();
         } catch (IOException e) {
             throw new CacheException("Failed to open cache file for writing", e);
         }
@@ -133,8 +473,10 @@ public class FoodCache {
 
 
     public ResultData getByFdcId(int fdcId) {
-        if (fdcIdToFood.containsKey(fdcId)) {
-            return new ResultData(ResultData.STATUS_OK, fdcIdToFood.get(fdcId));
+        Food food = store.get(fdcId);
+        if (food != null) {
+            recordAccess(fdcId);
+            return new ResultData(ResultData.STATUS_OK, food);
         } else {
             return null;
         }
@@ -144,8 +486,12 @@ public class FoodCache {
         checkNull(gtinUpc, "Gtin/UPC");
         checkEmpty(gtinUpc, "Gtin/Upc");
 
-        if (gtinUpcToFdcId.containsKey(gtinUpc)) {
-            return new ResultData(ResultData.STATUS_OK, fdcIdToFood.get(gtinUpcToFdcId.get(gtinUpc)));
+        Integer fdcId = gtinUpcToFdcId.get(gtinUpc);
+        //the food may have been evicted since the barcode was looked up
+        Food food = fdcId == null ? null : store.get(fdcId);
+        if (food != null) {
+            recordAccess(fdcId);
+            return new ResultData(ResultData.STATUS_OK, food);
         } else {
             return null;
         }
@@ -155,14 +501,28 @@ public class FoodCache {
         checkNull(keywords, "keywords");
         checkEmpty(keywords, "keywords");
 
+        if (warmUp != WarmUp.WARM) {
+            //the foods of a query may be spread over the file, a partly loaded result is a miss
+            return null;
+        }
         List<Food> result = new ArrayList<>();
         if (keyWordsToFdcId.containsKey(keywords)) {
             List<Integer> ids;
             synchronized (keyWordsToFdcId) {
                 ids = keyWordsToFdcId.get(keywords);
+                if (ids == null) {
+                    return null;
+                }
+                ids = new ArrayList<>(ids);
             }
             for (Integer id : ids) {
-                result.add(fdcIdToFood.get(id));
+                Food food = store.get(id);
+                if (food == null) {
+                    //evicted while the result was read, an incomplete result is a miss
+                    return null;
+                }
+                recordAccess(id);
+                result.add(food);
             }
         } else {
             return null;
@@ -171,38 +531,253 @@ public class FoodCache {
     }
 
 
+    /**
+     * @param query normalized keywords of the search
+     * @return the cached page or null if it isn't cached or any of its foods isn't
+     */
+    public FoodQuery getPage(String query, int pageNumber, int pageSize) {
+        checkNull(query, "query");
+        CachedPage page = keywordPages.get(new PageKey(query, pageNumber, pageSize));
+        if (page == null) {
+            return null;
+        }
+        List<Food> foods = new ArrayList<>(page.fdcIds().length);
+        for (int fdcId : page.fdcIds()) {
+            //evicted, or not written yet, a page with a hole in it is a miss
+            Food food = store.get(fdcId);
+            if (food == null) {
+                return null;
+            }
+            foods.add(food);
+        }
+        FoodQuery result = new FoodQuery(page.criteria(), page.totalHits(), page.currentPage(), page.totalPages(),
+                foods);
+        result.setCachedAt(page.cachedAt());
+        return result;
+    }
+
+    /**
+     * Caches a single page of a keyword search, together with the totals of the search. Its foods
+     * are not submitted, the caller decides whether they become the result of the query, and the
+     * page is served only once they are cached. The page is timestamped like submitted foods.
+     */
+    public void submitPage(String query, int pageNumber, int pageSize, FoodQuery page) {
+        checkNull(query, "query");
+        checkNull(page, "page");
+        List<Food> foods = page.getFoods() == null ? List.of() : page.getFoods();
+        int[] fdcIds = foods.stream().mapToInt(Food::getFdcId).toArray();
+        long cachedAt = page.getCachedAt() == null ? System.currentTimeMillis() : page.getCachedAt();
+        keywordPages.put(new PageKey(query, pageNumber, pageSize), new CachedPage(page.getFoodSearchCriteria(),
+                page.getTotalHits(), page.getCurrentPage(), page.getTotalPages(), fdcIds, cachedAt));
+        pageSizes.computeIfAbsent(query, q -> ConcurrentHashMap.newKeySet()).add(pageSize);
+    }
+
+    /**
+     * @param query normalized keywords of the search
+     * @return the page sizes the query has cached pages of, largest first
+     */
+    public List<Integer> getPageSizes(String query) {
+        checkNull(query, "query");
+        Set<Integer> sizes = pageSizes.get(query);
+        if (sizes == null) {
+            return List.of();
+        }
+        List<Integer> result = new ArrayList<>(sizes);
+        result.sort(Comparator.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Called by the writer once the batch is in the file, the foods become visible only then.
+     *
+     * @param offsets where the record of each food starts in the file
+     * @param end     the end of the file after the batch
+     */
+    void storeWritten(List<Food> batch, long[] offsets, long end) throws CacheException {
+        if (mapped != null) {
+            mapped.appended(end);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            storeInCache(batch.get(i), offsets[i]);
+            countRecord(batch.get(i));
+        }
+    }
+
+    private void countRecord(Food food) {
+        fileRecords++;
+        if (!fileFoods.get(food.getFdcId())) {
+            fileFoods.set(food.getFdcId());
+            fileFoodCount++;
+        }
+    }
+
+    /**
+     * Called by the writer only.
+     *
+     * @return true if enough of the cache file's records are older copies of foods to compact it
+     */
+    boolean isCompactionDue() {
+        return fileRecords >= nextCompactionAt
+                && compaction.isDue(fileRecords, Math.max(fileFoodCount, compactedRecords));
+    }
+
+    /**
+     * Called by the writer once the compacted file has replaced the old one.
+     *
+     * @param relocations the offset of every kept food in the compacted file, by its offset in the old one
+     * @param records     the food records in the compacted file
+     * @param end         the end of the compacted file
+     */
+    void compacted(FoodFileCodec compactedCodec, LongLongMap relocations, long records, long end)
+            throws CacheException {
+        if (mapped != null) {
+            mapped.relocate((BinaryFoodCodec) compactedCodec, relocations, end);
+        }
+        fileRecords = records;
+        compactedRecords = records;
+    }
+
+    /**
+     * Called by the writer when a compaction failed, the old file is still in use.
+     */
+    void compactionFailed(Exception e) {
+        nextCompactionAt = fileRecords + Math.max(1, compaction.minRecords());
+        logger.log(Level.WARN, new CacheException(String.format("Failed to compact %s", cacheFile), e));
+    }
+
+    /**
+     * @return true if foods are read back from the file, then every batch has to reach the file first
+     */
+    boolean readsFile() {
+        return mapped != null;
+    }
+
     void storeInCache(Food food) throws CacheException {
+        storeInCache(food, -1);
+    }
+
+    private void storeInCache(Food food, long offset) throws CacheException {
         if (food == null) {
             throw new CacheException("Attempted to store null value in cache");
         }
 
-        fdcIdToFood.putIfAbsent(food.getFdcId(), food);
-        if (food.getQuery() != null) {
-
-            //the keywords map is thread safe, but the value for a query is a list
-            //which is not thread safe, so we must synchronize the threads that
-            //manipulate the lists
-            synchronized (keyWordsToFdcId) {
-                if (keyWordsToFdcId.containsKey(food.getQuery())) {
-                    List<Integer> ids = keyWordsToFdcId.get(food.getQuery());
+        //the keywords map is thread safe, but the value for a query is a list which is not thread
+        //safe, and an eviction must remove a food from all indexes at once, so the threads that
+        //change the indexes are synchronized
+        synchronized (keyWordsToFdcId) {
+            //a refreshed food replaces the older copy, the ids of its queries and barcode stay the same
+            store.put(food, offset);
+            if (food.getQuery() != null) {
+                List<Integer> ids = keyWordsToFdcId.computeIfAbsent(food.getQuery(), query -> new ArrayList<>());
+                if (!ids.contains(food.getFdcId())) {
                     ids.add(food.getFdcId());
-                    keyWordsToFdcId.putIfAbsent(food.getQuery(), ids);
-                } else {
-                    List<Integer> newIds = new ArrayList<>();
-                    newIds.add(food.getFdcId());
-                    keyWordsToFdcId.putIfAbsent(food.getQuery(), newIds);
+                }
+                if (policy != null) {
+                    fdcIdToQueries.computeIfAbsent(food.getFdcId(), id -> new HashSet<>()).add(food.getQuery());
                 }
             }
+            if (food.getGtinUpc() != null) {
+                gtinUpcToFdcId.putIfAbsent(food.getGtinUpc(), food.getFdcId());
+            }
+            if (policy != null) {
+                for (int evicted : policy.add(food.getFdcId(), weigh(food))) {
+                    evict(evicted);
+                }
+            }
+        }
+    }
 
+    //Removes the food from every index. The cached results of its queries would be incomplete
+    //without it, so they are forgotten too, while their other foods stay cached by id.
+    private void evict(int fdcId) {
+        Food food = store.remove(fdcId);
+        if (food != null && food.getGtinUpc() != null) {
+            gtinUpcToFdcId.remove(food.getGtinUpc(), fdcId);
         }
-        if (food.getGtinUpc() != null) {
-            gtinUpcToFdcId.putIfAbsent(food.getGtinUpc(), food.getFdcId());
+        Set<String> queries = fdcIdToQueries.remove(fdcId);
+        if (queries != null) {
+            for (String query : queries) {
+                List<Integer> ids = keyWordsToFdcId.remove(query);
+                if (ids != null) {
+                    for (Integer id : ids) {
+                        Set<String> other = fdcIdToQueries.get(id);
+                        if (other != null) {
+                            other.remove(query);
+                        }
+                    }
+                }
+            }
         }
     }
 
-    public synchronized void close() {
-        isClosed = true;
-        this.notifyAll();
+    //foods that already have a timestamp keep it, e.g. foods of a cached page that become a query result.
+    //Submitted foods are also sent to clients, so the timestamp goes on a copy
+    private static Food stamp(Food food, long now) {
+        return food.getCachedAt() == null ? food.withCachedAt(now) : food;
+    }
+
+    private void recordAccess(int fdcId) {
+        if (policy != null) {
+            policy.recordAccess(fdcId);
+        }
+    }
+
+    private long weigh(Food food) {
+        return weighInBytes ? estimateBytes(food) : 1;
+    }
+
+    //A rough size of the food on the heap: the object headers, the characters of its strings and
+    //a fixed size per nutrient. It only has to rank foods, not to match the heap exactly.
+    private static long estimateBytes(Food food) {
+        final int objectBytes = 64;
+        final int nutrientBytes = 96;
+        long bytes = objectBytes;
+        for (String text : new String[] {food.getDescription(), food.getIngredients(), food.getGtinUpc(),
+                food.getDataType(), food.getQuery()}) {
+            if (text != null) {
+                bytes += objectBytes + 2L * text.length();
+            }
+        }
+        if (food.getFoodNutrients() != null) {
+            bytes += (long) nutrientBytes * food.getFoodNutrients().size();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of foods in the cache
+     */
+    public int getSize() {
+        return store.size();
+    }
+
+    /**
+     * Stops accepting foods. The writer still writes the foods submitted before and then exits.
+     */
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+        }
+        //null while the file is still loading, the loader doesn't start a writer then
+        FoodCacheWriter current = writer;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    public WarmUp getWarmUp() {
+        return warmUp;
+    }
+
+    /**
+     * @return how much of the cache file is loaded, in percent
+     */
+    public int getWarmUpPercent() {
+        if (warmUp == WarmUp.WARM) {
+            return 100;
+        }
+        long total = loadTotalBytes;
+        return total == 0 ? 0 : (int) (loadedBytes * 100 / total);
     }
 
 
@@ -210,11 +785,15 @@ public class FoodCache {
         return cacheFile;
     }
 
+    /**
+     * @return the writer thread, as an array for the callers that join the writers on shutdown
+     */
     public FoodCacheWriter[] getWriterThreads() {
-        return foodCacheWriters;
+        FoodCacheWriter current = writer;
+        return current == null ? new FoodCacheWriter[0] : new FoodCacheWriter[] {current};
     }
 
-    private void checkNull(Object object, String name) {
+    private static void checkNull(Object object, String name) {
         if (object == null) {
             throw new IllegalArgumentException(String.format("%s can't be null", name));
         }
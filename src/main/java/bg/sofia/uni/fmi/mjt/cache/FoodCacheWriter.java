@@ -3,36 +3,75 @@ package bg.sofia.uni.fmi.mjt.cache;
 import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
 import bg.sofia.uni.fmi.mjt.exceptions.ServerException;
 import bg.sofia.uni.fmi.mjt.json.Food;
-import com.google.gson.Gson;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+//The cache's only writer (group commit). It takes every food submitted since its last round at once,
+//appends them to the cache file with a single write and stores them in the cache, then applies the
+//durability policy to the whole batch. Request threads only add to the cache's lock-free queue, so
+//they never wait for the disk or for each other. When enough of the file is duplicates the writer
+//starts a compactor, keeps appending meanwhile, and switches to the compacted file once it is written.
 public class FoodCacheWriter extends Thread {
+    static final int MAX_BATCH_SIZE = 512;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private final FoodCache cache;
-    private final BufferedWriter writer;
-    private final Gson gson;
+    private final CacheFormat format;
+    //replaced by the compactor's codec and channel once the compacted file replaces the old one
+    private FoodFileCodec codec;
+    private final CacheDurability durability;
+    private FileChannel channel;
+    private OutputStream out;
+    private final ByteArrayOutputStream records = new ByteArrayOutputStream();
+    private final long[] offsets = new long[MAX_BATCH_SIZE];
+    //the end of the file, where the next batch starts
+    private long position;
+
+    private final long fsyncIntervalNanos;
+    private boolean unsynced;
+    private long lastSync;
 
-    public FoodCacheWriter(FoodCache cache) throws IOException {
+    //null when no compaction is running
+    private CacheCompactor compactor;
+
+    FoodCacheWriter(FoodCache cache, CacheFormat format, FoodFileCodec codec, CacheDurability durability)
+            throws IOException {
+        super("food-cache-writer");
         this.cache = cache;
-        writer = Files.newBufferedWriter(cache.getCacheFilePath(), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
-        gson = new Gson();
+        this.format = format;
+        this.codec = codec;
+        this.durability = durability;
+        openFile();
+        fsyncIntervalNanos = durability.fsyncInterval().toNanos();
+        lastSync = System.nanoTime();
     }
 
     @Override
     public void run() {
-        Food food;
+        List<Food> batch = new ArrayList<>(MAX_BATCH_SIZE);
         try {
-            while ((food = cache.getNextFood()) != null) {
-                cache.storeInCache(food);
-                synchronized (cache) {
-                    writer.write(gson.toJson(food, Food.class));
-                    writer.write(System.lineSeparator());
-                    writer.flush();
+            //a file loaded with enough duplicates is compacted right away
+            compactIfDue();
+            while (cache.awaitFoods(untilNextSync())) {
+                cache.drainTo(batch, MAX_BATCH_SIZE);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
                 }
-
+                syncIfDue();
+                compactIfDue();
+            }
+            if (compactor != null) {
+                compactor.cancel();
             }
             close();
         } catch (IOException | CacheException e) {
@@ -40,7 +79,87 @@ public class FoodCacheWriter extends Thread {
         }
     }
 
+    private void write(List<Food> batch) throws IOException, CacheException {
+        records.reset();
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i] = position + codec.encode(batch.get(i), records);
+        }
+        records.writeTo(out);
+        position += records.size();
+        if (durability.mode() != CacheDurability.Mode.NONE || cache.readsFile()) {
+            out.flush();
+        }
+        cache.storeWritten(batch, offsets, position);
+        unsynced = true;
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(cache.getCacheFilePath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+                StandardOpenOption.CREATE);
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+        position = channel.size();
+    }
+
+    private void compactIfDue() throws IOException, CacheException {
+        if (compactor == null) {
+            if (cache.isCompactionDue()) {
+                //the compactor reads the file up to the current position
+                out.flush();
+                compactor = new CacheCompactor(cache.getCacheFilePath(), format, position, cache::signalWriter);
+                compactor.start();
+            }
+            return;
+        }
+        if (!compactor.isDone()) {
+            return;
+        }
+        CacheCompactor done = compactor;
+        compactor = null;
+        Exception failure = done.getFailure();
+        if (failure == null) {
+            out.flush();
+            try {
+                done.finish(position);
+            } catch (IOException | CacheException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            //the old file is still in place and the writer keeps appending to it
+            done.cancel();
+            cache.compactionFailed(failure);
+            return;
+        }
+        //the compacted file has every batch of the old one and is forced already
+        out.close();
+        openFile();
+        codec = done.getCodec();
+        unsynced = false;
+        cache.compacted(done.getCodec(), done.getRelocations(), done.getRecords(), position);
+    }
+
+    private void syncIfDue() throws IOException {
+        if (durability.mode() == CacheDurability.Mode.FSYNC && unsynced
+                && System.nanoTime() - lastSync >= fsyncIntervalNanos) {
+            channel.force(false);
+            unsynced = false;
+            lastSync = System.nanoTime();
+        }
+    }
+
+    //an unsynced batch must not wait for the next food to reach the disk
+    private long untilNextSync() {
+        if (durability.mode() != CacheDurability.Mode.FSYNC || !unsynced) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(1), fsyncIntervalNanos - (System.nanoTime() - lastSync));
+    }
+
     private void close() throws IOException {
-        writer.close();
+        out.flush();
+        if (durability.mode() == CacheDurability.Mode.FSYNC) {
+            channel.force(false);
+        }
+        out.close();
     }
 }
@@ -0,0 +1,64 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+//Reads and appends the foods of a cache file in one format. A codec may keep state between foods,
+//e.g. the interned strings of the binary format, so one instance reads a file and then appends to it.
+interface FoodFileCodec {
+
+    @FunctionalInterface
+    interface FoodSink {
+        /**
+         * @param offset where the food's record starts in the file
+         */
+        void accept(Food food, long offset) throws CacheException;
+    }
+
+    /**
+     * @return the bytes an empty file of this format starts with
+     */
+    byte[] header();
+
+    /**
+     * Encodes the food, together with anything it needs that isn't in the file yet.
+     *
+     * @return the position in out where the food's own record starts
+     */
+    int encode(Food food, ByteArrayOutputStream out);
+
+    /**
+     * Reads every food of the file in file order.
+     *
+     * @return how many bytes of the file hold complete records, a record cut short by a crash is not counted
+     */
+    default long read(Path file, FoodSink foods) throws IOException, CacheException {
+        return read(file, 0, Files.size(file), foods);
+    }
+
+    /**
+     * Reads the foods whose records lie between start and end, in file order. Start has to be where a
+     * record starts, and the codec has to have read the records before it already.
+     *
+     * @return where the last complete record before end ends
+     */
+    long read(Path file, long start, long end, FoodSink foods) throws IOException, CacheException;
+
+    /**
+     * Reads the food whose record starts at the offset. The codec has to have read the records before it.
+     */
+    Food readAt(FileChannel channel, long offset) throws IOException, CacheException;
+
+    /**
+     * Reads like read(file, foods), but decodes chunks of about chunkSize bytes on the pool. The foods
+     * are still handed to the sink in file order, on the calling thread.
+     */
+    long read(Path file, FoodSink foods, ForkJoinPool pool, long chunkSize) throws IOException, CacheException;
+}
@@ -0,0 +1,28 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+//Where the cache keeps its foods by fdcId. The barcode and keyword indexes only hold ids, so they are
+//the same for every store.
+interface FoodStore {
+
+    /**
+     * @return the food or null if it isn't stored
+     */
+    Food get(int fdcId);
+
+    /**
+     * Stores the food, unless a copy that was cached later is stored already.
+     *
+     * @param offset where the food's record starts in the cache file, -1 if it isn't known
+     */
+    void put(Food food, long offset) throws CacheException;
+
+    /**
+     * @return the removed food or null if it wasn't stored
+     */
+    Food remove(int fdcId);
+
+    int size();
+}
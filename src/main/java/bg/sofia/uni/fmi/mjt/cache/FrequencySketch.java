@@ -0,0 +1,67 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+//Approximate access counts of food ids, a count-min sketch of small saturating counters. It remembers
+//how popular an id was even after the id itself was evicted, which is what lets the cache refuse to
+//replace a popular food with one that was requested only once. All counters are halved every few
+//accesses per counter, so old popularity fades and the sketch follows changes of the traffic.
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int RESET_FACTOR = 10;
+    private static final int[] SEEDS = {0x97cb3127, 0xb5ad4ece, 0x9e3779b9, 0x7f4a7c15};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int resetSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries about how many ids the cache holds, the sketch is sized for it
+     */
+    FrequencySketch(long expectedEntries) {
+        int width = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+        this.counters = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.resetSize = width * RESET_FACTOR;
+    }
+
+    void increment(int id) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(id, row);
+            if (counters[row][index] < MAX_COUNT) {
+                counters[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= resetSize) {
+            reset();
+        }
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the id, at most 15
+     */
+    int frequency(int id) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[row][indexOf(id, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (byte[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int id, int row) {
+        int hash = id * SEEDS[row];
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+}
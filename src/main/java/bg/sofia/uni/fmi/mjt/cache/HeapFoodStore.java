@@ -0,0 +1,37 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+//Keeps every food as a built object, the cache file is only read on startup.
+final class HeapFoodStore implements FoodStore {
+    private final ConcurrentHashMap<Integer, Food> fdcIdToFood = new ConcurrentHashMap<>();
+
+    @Override
+    public Food get(int fdcId) {
+        return fdcIdToFood.get(fdcId);
+    }
+
+    @Override
+    public void put(Food food, long offset) {
+        //a refreshed food replaces the older copy
+        fdcIdToFood.merge(food.getFdcId(), food, HeapFoodStore::newer);
+    }
+
+    @Override
+    public Food remove(int fdcId) {
+        return fdcIdToFood.remove(fdcId);
+    }
+
+    @Override
+    public int size() {
+        return fdcIdToFood.size();
+    }
+
+    private static Food newer(Food cached, Food stored) {
+        long cachedAt = cached.getCachedAt() == null ? Long.MIN_VALUE : cached.getCachedAt();
+        long storedAt = stored.getCachedAt() == null ? Long.MIN_VALUE : stored.getCachedAt();
+        return storedAt >= cachedAt ? stored : cached;
+    }
+}
@@ -0,0 +1,165 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+//The original cache file format, one Gson serialized food per line.
+final class JsonFoodCodec implements FoodFileCodec {
+    private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+    private static final int READ_BLOCK_SIZE = 1024 * 1024;
+
+    //the timestamp of a food is transient so it stays out of responses, but the file keeps it
+    static final Gson FILE_GSON = new GsonBuilder().excludeFieldsWithModifiers(Modifier.STATIC).create();
+
+    private final Gson gson = FILE_GSON;
+    //the last line that was read has no line separator, it is written before the next food
+    private boolean unterminated;
+
+    @Override
+    public byte[] header() {
+        return new byte[0];
+    }
+
+    @Override
+    public int encode(Food food, ByteArrayOutputStream out) {
+        if (unterminated) {
+            out.writeBytes(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+            unterminated = false;
+        }
+        int start = out.size();
+        out.writeBytes((gson.toJson(food, Food.class) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        return start;
+    }
+
+    //The file is read in blocks that end after a line separator, so the offset of every line is known.
+    @Override
+    public long read(Path file, long start, long end, FoodSink foods) throws IOException, CacheException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            end = completeEnd(channel, start, end);
+            while (start < end) {
+                long blockEnd = lineEnd(channel, Math.min(end, start + READ_BLOCK_SIZE), end);
+                for (ChunkedLoader.Decoded decoded : parse(ChunkedLoader.readRange(channel, start, blockEnd), start)) {
+                    foods.accept(decoded.food(), decoded.offset());
+                }
+                start = blockEnd;
+            }
+        }
+        return end;
+    }
+
+    @Override
+    public Food readAt(FileChannel channel, long offset) throws IOException {
+        long end = lineEnd(channel, offset + 1, channel.size());
+        return parse(ChunkedLoader.readRange(channel, offset, end), offset).get(0).food();
+    }
+
+    @Override
+    public long read(Path file, FoodSink foods, ForkJoinPool pool, long chunkSize)
+            throws IOException, CacheException {
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = completeEnd(channel, 0, Files.size(file));
+            //every chunk ends right after a line separator, or at the end of the file
+            List<Callable<List<ChunkedLoader.Decoded>>> chunks = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long from = start;
+                long to = lineEnd(channel, Math.min(size, start + chunkSize), size);
+                chunks.add(() -> parse(ChunkedLoader.readRange(channel, from, to), from));
+                start = to;
+            }
+            ChunkedLoader.readInOrder(chunks, pool, foods);
+        }
+        return size;
+    }
+
+    //A crash can cut the last line short. A last line that doesn't parse is not a record, the records
+    //end where it starts and it is truncated before anything is appended. A complete last line may
+    //still lack its separator, e.g. in a file edited by hand, it is kept and terminated on the next write.
+    private long completeEnd(FileChannel channel, long start, long end) throws IOException {
+        unterminated = false;
+        if (end <= start) {
+            return end;
+        }
+        long lastLine = lineStart(channel, start, end - 1);
+        ByteBuffer line = ChunkedLoader.readRange(channel, lastLine, end);
+        try {
+            if (parse(line, lastLine).get(0).food() == null) {
+                return lastLine;
+            }
+        } catch (JsonParseException e) {
+            return lastLine;
+        }
+        unterminated = line.get(line.limit() - 1) != '\n';
+        return end;
+    }
+
+    //parses the lines of a chunk that starts at the given position of the file
+    private List<ChunkedLoader.Decoded> parse(ByteBuffer chunk, long position) {
+        byte[] bytes = chunk.array();
+        int limit = chunk.limit();
+        List<ChunkedLoader.Decoded> decoded = new ArrayList<>();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && bytes[end] != '\n') {
+                end++;
+            }
+            int length = (end > start && bytes[end - 1] == '\r' ? end - 1 : end) - start;
+            Food food = gson.fromJson(new String(bytes, start, length, StandardCharsets.UTF_8), Food.class);
+            decoded.add(new ChunkedLoader.Decoded(food, position + start));
+            start = end + 1;
+        }
+        return decoded;
+    }
+
+    //the position after the last line separator before the given position, start if there is none
+    private static long lineStart(FileChannel channel, long start, long position) throws IOException {
+        while (position > start) {
+            long from = Math.max(start, position - SCAN_BUFFER_SIZE);
+            ByteBuffer block = ChunkedLoader.readRange(channel, from, position);
+            for (int i = block.limit() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+            position = from;
+        }
+        return start;
+    }
+
+    //the position after the first line separator at or after the given position
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long scanned = position - 1;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, scanned);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return scanned + i + 1;
+                }
+            }
+            scanned += read;
+            position = scanned;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,87 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import java.util.Arrays;
+
+//An open addressing hash map from long keys to long values, for the tables the compactor keeps per food
+//or record of the file. A boxed map needs several objects per entry, this one two array slots.
+//Keys must not be negative, they are file offsets and ids.
+final class LongLongMap {
+    private static final long FREE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    LongLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongLongMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    void put(long key, long value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Key can't be negative");
+        }
+        int slot = slot(keys, key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                values[slot] = value;
+                resize();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return the value of the key, missing if there is none
+     */
+    long get(long key, long missing) {
+        if (key < 0) {
+            return missing;
+        }
+        int slot = slot(keys, key);
+        return keys[slot] == FREE ? missing : values[slot];
+    }
+
+    boolean containsKey(long key) {
+        return key >= 0 && keys[slot(keys, key)] != FREE;
+    }
+
+    int size() {
+        return size;
+    }
+
+    //the slot of the key, or the free slot it would go to
+    private static int slot(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = slot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
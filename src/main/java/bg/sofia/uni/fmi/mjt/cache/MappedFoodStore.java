@@ -0,0 +1,205 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Keeps the foods in the binary cache file instead of on the heap. The file is memory-mapped in fixed
+//size segments and the heap only holds where each food's record starts, so a food is decoded when it
+//is requested and the OS pages the file in and out as needed. The segments follow the file as the
+//writer appends to it, a record that crosses a segment boundary is copied out of both segments.
+//Remapping the tail segment after every batch would pile up mappings, so the foods the writer appends
+//stay on the heap until REMAP_STEP bytes are past the mapping, and the tail is remapped only then.
+final class MappedFoodStore implements FoodStore {
+    //a single mapping can't be larger than 2 GiB
+    private static final int SEGMENT_SIZE = 1 << 30;
+    private static final int REMAP_STEP = 8 * 1024 * 1024;
+
+    private record Slot(long offset, long cachedAt) {
+    }
+
+    //Everything a read needs, replaced as a whole when the file is compacted, so a read never combines
+    //an offset into the new file with the mapping or definitions of the old one. The unmapped foods are
+    //the ones appended after mappedEnd, by their offset.
+    private record Generation(BinaryFoodCodec codec, ConcurrentHashMap<Integer, Slot> slots,
+                              ByteBuffer[] segments, long mappedEnd, ConcurrentHashMap<Long, Food> unmapped) {
+    }
+
+    private final Path file;
+    private final int segmentSize;
+    private final int remapStep;
+
+    //segment i maps the bytes from i * segmentSize, the last one is remapped as the file grows
+    private volatile Generation generation;
+    //reused by every remap of the file, replaced with the file when it is compacted
+    private FileChannel channel;
+
+    MappedFoodStore(Path file, BinaryFoodCodec codec) {
+        this(file, codec, SEGMENT_SIZE);
+    }
+
+    MappedFoodStore(Path file, BinaryFoodCodec codec, int segmentSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.remapStep = Math.min(REMAP_STEP, segmentSize);
+        generation = new Generation(codec, new ConcurrentHashMap<>(), new ByteBuffer[0], 0,
+                new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Maps the file up to the given end. Foods put after the end are kept on the heap until it is mapped.
+     */
+    synchronized void extend(long end) throws CacheException {
+        Generation current = generation;
+        if (end <= current.mappedEnd()) {
+            return;
+        }
+        //every unmapped food ends before the new end, the new generation starts without any
+        generation = new Generation(current.codec(), current.slots(),
+                map(current.segments(), current.mappedEnd(), end), end, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Called by the writer once a batch is in the file, before its foods are put. Maps the file up to the
+     * given end once enough of it is unmapped.
+     */
+    synchronized void appended(long end) throws CacheException {
+        if (end - generation.mappedEnd() >= remapStep) {
+            extend(end);
+        }
+    }
+
+    /**
+     * Switches to the compacted file, which has replaced the old one under the same path.
+     *
+     * @param offsets the offset of every stored food's record in the compacted file, by the old offset
+     */
+    synchronized void relocate(BinaryFoodCodec codec, LongLongMap offsets, long end) throws CacheException {
+        ConcurrentHashMap<Integer, Slot> relocated = new ConcurrentHashMap<>();
+        for (Map.Entry<Integer, Slot> entry : generation.slots().entrySet()) {
+            long offset = offsets.get(entry.getValue().offset(), -1);
+            //only an older copy that came back after its newer one was evicted isn't kept, it becomes a miss
+            if (offset >= 0) {
+                relocated.put(entry.getKey(), new Slot(offset, entry.getValue().cachedAt()));
+            }
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            //the mappings of the old file don't need the channel
+        }
+        channel = null;
+        generation = new Generation(codec, relocated, map(new ByteBuffer[0], 0, end), end,
+                new ConcurrentHashMap<>());
+    }
+
+    private ByteBuffer[] map(ByteBuffer[] segments, long mappedEnd, long end) throws CacheException {
+        if (end <= mappedEnd) {
+            return segments;
+        }
+        int first = (int) (mappedEnd / segmentSize);
+        int last = (int) ((end - 1) / segmentSize);
+        ByteBuffer[] extended = Arrays.copyOf(segments, last + 1);
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            for (int i = first; i <= last; i++) {
+                long start = (long) i * segmentSize;
+                extended[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(end, start + segmentSize) - start);
+            }
+        } catch (IOException e) {
+            throw new CacheException(String.format("Failed to map %s", file), e);
+        }
+        return extended;
+    }
+
+    @Override
+    public Food get(int fdcId) {
+        Generation current = generation;
+        Slot slot = current.slots().get(fdcId);
+        return slot == null ? null : read(current, slot.offset());
+    }
+
+    @Override
+    public void put(Food food, long offset) throws CacheException {
+        if (offset < 0) {
+            throw new CacheException("Mapped storage needs the position of the food in the cache file");
+        }
+        Generation current = generation;
+        if (offset >= current.mappedEnd()) {
+            current.unmapped().put(offset, food);
+        }
+        long cachedAt = food.getCachedAt() == null ? Long.MIN_VALUE : food.getCachedAt();
+        //a refreshed food replaces the older copy
+        current.slots().merge(food.getFdcId(), new Slot(offset, cachedAt),
+                (stored, added) -> added.cachedAt() >= stored.cachedAt() ? added : stored);
+    }
+
+    @Override
+    public Food remove(int fdcId) {
+        Generation current = generation;
+        Slot slot = current.slots().remove(fdcId);
+        return slot == null ? null : read(current, slot.offset());
+    }
+
+    @Override
+    public int size() {
+        return generation.slots().size();
+    }
+
+    Food read(long offset) {
+        return read(generation, offset);
+    }
+
+    private Food read(Generation current, long offset) {
+        if (offset >= current.mappedEnd()) {
+            Food food = current.unmapped().get(offset);
+            //the slot may be newer than the generation it was read with, the latest one has its food
+            Generation latest = generation;
+            return food != null || latest == current ? food : read(latest, offset);
+        }
+        ByteBuffer[] mapped = current.segments();
+        long length = 0;
+        long position = offset;
+        for (int shift = 0; ; shift += 7) {
+            byte b = byteAt(mapped, position++);
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        int first = (int) (position / segmentSize);
+        int last = (int) ((position + length - 1) / segmentSize);
+        ByteBuffer record;
+        if (first == last) {
+            record = mapped[first].slice((int) (position % segmentSize), (int) length);
+        } else {
+            byte[] bytes = new byte[(int) length];
+            int copied = 0;
+            for (int i = first; i <= last; i++) {
+                int from = i == first ? (int) (position % segmentSize) : 0;
+                int count = Math.min(mapped[i].limit() - from, bytes.length - copied);
+                mapped[i].get(from, bytes, copied, count);
+                copied += count;
+            }
+            record = ByteBuffer.wrap(bytes);
+        }
+        return current.codec().decode(record);
+    }
+
+    private byte byteAt(ByteBuffer[] mapped, long position) {
+        return mapped[(int) (position / segmentSize)].get((int) (position % segmentSize));
+    }
+}
@@ -0,0 +1,248 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Decides which foods stay in a bounded cache (W-TinyLFU). New foods enter a small LRU window, so a
+//burst of requests for something new is still served from the cache. Foods that fall out of the
+//window only get into the main segment if the frequency sketch says they are requested more often than
+//the food they would replace, which keeps one-off lookups and scans from flushing the popular foods.
+//The main segment is split into probation and protected LRUs, a food is protected once it is hit again.
+//
+//Reads only record the id in a lossy buffer, which is drained under the lock by writes or once it fills
+//up, so cache hits never wait for the policy.
+final class TinyLfuPolicy {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private enum Segment {
+        WINDOW, PROBATION, PROTECTED
+    }
+
+    private static final class Node {
+        private final int id;
+        private long weight;
+        private Segment segment;
+
+        private Node(int id, long weight, Segment segment) {
+            this.id = id;
+            this.weight = weight;
+            this.segment = segment;
+        }
+    }
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final FrequencySketch sketch;
+    private final ArrayBlockingQueue<Integer> readBuffer = new ArrayBlockingQueue<>(READ_BUFFER_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    //guarded by lock, every map is in LRU order, the least recently used first
+    private final Map<Integer, Node> window = new LinkedHashMap<>();
+    private final Map<Integer, Node> probation = new LinkedHashMap<>();
+    private final Map<Integer, Node> protectedSegment = new LinkedHashMap<>();
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    private long windowWeight;
+    private long protectedWeight;
+    private long totalWeight;
+
+    /**
+     * @param maximumWeight   the most the foods may weigh together
+     * @param expectedEntries about how many foods fit, sizes the frequency sketch
+     */
+    TinyLfuPolicy(long maximumWeight, long expectedEntries) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight must be positive");
+        }
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight * WINDOW_PERCENT / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * Records a cache hit. It may be dropped when many hits arrive at once, the policy only needs a sample.
+     */
+    void recordAccess(int id) {
+        readBuffer.offer(id);
+        if (readBuffer.size() >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds a food, or updates its weight if it is already tracked.
+     *
+     * @return the ids that have to be evicted to stay within the maximum weight, possibly the added one
+     */
+    List<Integer> add(int id, long weight) {
+        lock.lock();
+        try {
+            drainReads();
+            sketch.increment(id);
+            Node node = nodes.get(id);
+            if (node != null) {
+                setWeight(node, weight);
+                onAccess(node);
+            } else {
+                node = new Node(id, weight, Segment.WINDOW);
+                nodes.put(id, node);
+                window.put(id, node);
+                windowWeight += weight;
+                totalWeight += weight;
+            }
+            return evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(int id) {
+        lock.lock();
+        try {
+            Node node = nodes.get(id);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return nodes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long weightedSize() {
+        lock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainReads() {
+        Integer id;
+        while ((id = readBuffer.poll()) != null) {
+            sketch.increment(id);
+            Node node = nodes.get(id);
+            if (node != null) {
+                onAccess(node);
+            }
+        }
+    }
+
+    private void onAccess(Node node) {
+        switch (node.segment) {
+            case WINDOW -> moveToEnd(window, node);
+            case PROTECTED -> moveToEnd(protectedSegment, node);
+            case PROBATION -> {
+                //a second hit proves the food is worth keeping
+                probation.remove(node.id);
+                node.segment = Segment.PROTECTED;
+                protectedSegment.put(node.id, node);
+                protectedWeight += node.weight;
+                demoteProtected();
+            }
+        }
+    }
+
+    private void demoteProtected() {
+        Iterator<Node> oldest = protectedSegment.values().iterator();
+        while (protectedWeight > protectedMaximum && oldest.hasNext()) {
+            Node node = oldest.next();
+            oldest.remove();
+            protectedWeight -= node.weight;
+            node.segment = Segment.PROBATION;
+            probation.put(node.id, node);
+        }
+    }
+
+    private List<Integer> evict() {
+        //foods that fall out of the window are candidates, they have to beat the oldest food on probation
+        List<Node> candidates = new ArrayList<>();
+        Iterator<Node> oldest = window.values().iterator();
+        while (windowWeight > windowMaximum && oldest.hasNext()) {
+            Node node = oldest.next();
+            oldest.remove();
+            windowWeight -= node.weight;
+            node.segment = Segment.PROBATION;
+            probation.put(node.id, node);
+            candidates.add(node);
+        }
+
+        List<Integer> evicted = new ArrayList<>();
+        while (totalWeight > maximumWeight) {
+            Node victim = first(probation);
+            if (victim == null) {
+                victim = first(protectedSegment) != null ? first(protectedSegment) : first(window);
+            }
+            Node candidate = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+            Node evict = victim;
+            if (candidate != null && candidate != victim && sketch.frequency(candidate.id) <= sketch.frequency(victim.id)) {
+                evict = candidate;
+            }
+            candidates.remove(evict);
+            unlink(evict);
+            evicted.add(evict.id);
+        }
+        return evicted;
+    }
+
+    private void setWeight(Node node, long weight) {
+        long difference = weight - node.weight;
+        node.weight = weight;
+        totalWeight += difference;
+        if (node.segment == Segment.WINDOW) {
+            windowWeight += difference;
+        } else if (node.segment == Segment.PROTECTED) {
+            protectedWeight += difference;
+        }
+    }
+
+    private void unlink(Node node) {
+        nodes.remove(node.id);
+        totalWeight -= node.weight;
+        switch (node.segment) {
+            case WINDOW -> {
+                window.remove(node.id);
+                windowWeight -= node.weight;
+            }
+            case PROBATION -> probation.remove(node.id);
+            case PROTECTED -> {
+                protectedSegment.remove(node.id);
+                protectedWeight -= node.weight;
+            }
+        }
+    }
+
+    private static void moveToEnd(Map<Integer, Node> segment, Node node) {
+        segment.remove(node.id);
+        segment.put(node.id, node);
+    }
+
+    private static Node first(Map<Integer, Node> segment) {
+        Iterator<Node> iterator = segment.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
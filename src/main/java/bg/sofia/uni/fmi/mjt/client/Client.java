@@ -15,6 +15,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 public class Client {
     private final Gson gson = new Gson();
@@ -55,27 +57,57 @@ public class Client {
         pw = new PrintWriter(Channels.newWriter(socketChannel, StandardCharsets.UTF_8), true);
     }
 
+    /**
+     * @return the response, or the last frame of a streamed response
+     */
     public ResultData send(String request) {
         checkNull(request, "Request");
 
-        ClientRequest clientRequest;
+        AtomicReference<ResultData> resultData = new AtomicReference<>();
+        send(request, resultData::set);
+        return resultData.get();
+    }
+
+    /**
+     * Sends the request and hands every frame of the response to frames as soon as it is read.
+     * A plain response is a single frame, a streamed one ends with the first frame that isn't PARTIAL.
+     */
+    public void send(String request, Consumer<ResultData> frames) {
+        checkNull(request, "Request");
+        checkNull(frames, "Frames consumer");
+
+        ClientRequest clientRequest = validate(request);
+        if (clientRequest != null) {
+            send(clientRequest, frames);
+        }
+    }
+
+    //prints why an invalid request can't be sent and returns null
+    private ClientRequest validate(String request) {
         try {
-            clientRequest = new ClientRequest(request);
+            return new ClientRequest(request);
         } catch (InvalidRequestException e) {
             clientLogger.log(Level.INFO, e);
             System.out.println(e.getMessage());
             return null;
         }
+    }
 
+    private void send(ClientRequest clientRequest, Consumer<ResultData> frames) {
         pw.println(clientRequest.getRequest());
-        ResultData resultData = null;
         try {
-            resultData = gson.fromJson(br.readLine(), ResultData.class);
+            ResultData frame;
+            do {
+                frame = gson.fromJson(br.readLine(), ResultData.class);
+                if (frame == null) {
+                    return;
+                }
+                frames.accept(frame);
+            } while (ResultData.STATUS_PARTIAL.equals(frame.getStatus()));
         } catch (IOException e) {
             clientLogger.log(Level.INFO, e);
             System.out.println("There was a problem reading result data, please try again.");
         }
-        return resultData;
     }
 
     public void disconnect() {
@@ -130,11 +162,11 @@ public class Client {
                 if (request.isBlank()) {
                     continue;
                 }
-                ResultData resultData = client.send(request.trim());
-                if (resultData != null) {
+                ClientRequest clientRequest = client.validate(request.trim());
+                if (clientRequest != null) {
                     System.out.println("Sending request to server...");
-                    ClientResponse clientResponse = new ClientResponse(resultData);
-                    System.out.println(clientResponse.toHumanReadableString());
+                    client.send(clientRequest,
+                            frame -> System.out.println(new ClientResponse(frame).toHumanReadableString()));
                 }
             }
             client.disconnect();
@@ -12,6 +12,7 @@ import com.google.zxing.common.HybridBinarizer;
 import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class ClientRequest {
     private String request;
@@ -21,9 +22,15 @@ public class ClientRequest {
     private static final String BARCODE_REQUEST = "get-food-by-barcode";
     private static final String KEYWORDS_FOOD_REQUEST = "get-food";
     private static final String FOOD_REPORT_REQUEST = "get-food-report";
+    private static final String QUOTA_REQUEST = "get-quota";
+    private static final String CACHE_STATUS_REQUEST = "get-cache-status";
+    private static final String STREAM_FOOD_REQUEST = "stream-food";
+    private static final String FOOD_REPORT_BATCH_REQUEST = "get-food-report-batch";
+    private static final String BARCODE_BATCH_REQUEST = "get-food-by-barcode-batch";
 
     private static final String IMG_PARAMETER = "--img=";
     private static final String CODE_PARAMETER = "--code=";
+    private static final String STREAM_PARAMETER = "--stream";
 
     private static final String SEPARATOR = " ";
 
@@ -36,13 +43,20 @@ public class ClientRequest {
         this.request = request;
         if (isBarcodeRequest()) {
             modifyBarcodeRequest();
+        } else if (isStreamRequest()) {
+            modifyStreamRequest();
         }
     }
 
     private void validateRequest(String request) throws InvalidRequestException {
+        if (request.equals(QUOTA_REQUEST) || request.equals(CACHE_STATUS_REQUEST)) {
+            return;
+        }
         if (requestTokens.length < 2 || (!requestTokens[COMMAND_INDEX].equals(KEYWORDS_FOOD_REQUEST)
                 && !requestTokens[COMMAND_INDEX].equals(FOOD_REPORT_REQUEST)
-                && !requestTokens[COMMAND_INDEX].equals(BARCODE_REQUEST))) {
+                && !requestTokens[COMMAND_INDEX].equals(BARCODE_REQUEST)
+                && !requestTokens[COMMAND_INDEX].equals(FOOD_REPORT_BATCH_REQUEST)
+                && !requestTokens[COMMAND_INDEX].equals(BARCODE_BATCH_REQUEST))) {
             throw new InvalidRequestException(String.format("Invalid request \"%s\"", request));
         }
 
@@ -95,6 +109,25 @@ public class ClientRequest {
         this.request = res;
     }
 
+    //get-food --stream <keywords> is sent as stream-food <keywords>, the server then answers page by page
+    private void modifyStreamRequest() throws InvalidRequestException {
+        StringBuilder builder = new StringBuilder(STREAM_FOOD_REQUEST);
+        for (int i = COMMAND_INDEX + 1; i < requestTokens.length; i++) {
+            if (!requestTokens[i].equals(STREAM_PARAMETER) && !requestTokens[i].isEmpty()) {
+                builder.append(SEPARATOR).append(requestTokens[i]);
+            }
+        }
+        if (builder.length() == STREAM_FOOD_REQUEST.length()) {
+            throw new InvalidRequestException("Missing keywords in stream request");
+        }
+        this.request = builder.toString();
+    }
+
+    private boolean isStreamRequest() {
+        return requestTokens[COMMAND_INDEX].equals(KEYWORDS_FOOD_REQUEST)
+                && Arrays.asList(requestTokens).contains(STREAM_PARAMETER);
+    }
+
     private boolean isBarcodeRequest() {
         return requestTokens[COMMAND_INDEX].equals(BARCODE_REQUEST);
     }
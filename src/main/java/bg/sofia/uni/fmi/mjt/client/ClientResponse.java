@@ -1,6 +1,7 @@
 package bg.sofia.uni.fmi.mjt.client;
 
 import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.result.BatchItem;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
 
 import java.util.List;
@@ -18,12 +19,25 @@ public class ClientResponse {
     }
 
     public String toHumanReadableString() {
+        if (resultData.getStatus().equals(ResultData.STATUS_PARTIAL)) {
+            return humanReadableFoods(resultData.getFoods()).toString();
+        }
+        if (resultData.getStatus().equals(ResultData.STATUS_END)) {
+            String end = resultData.getMessage() == null ? "No more results" : resultData.getMessage();
+            return resultData.getNextCursor() == null ? end : end + System.lineSeparator() + nextCursorHint();
+        }
         if (!resultData.getStatus().equals(STATUS_OK)) {
             return resultData.getMessage();
         }
+        if (resultData.getItems() != null) {
+            return humanReadableItems();
+        }
         if (resultData.getFood() != null) {
             return humanReadableStringByFdcId();
         }
+        if (resultData.getFoods() == null) {
+            return resultData.getMessage();
+        }
         return humanReadableStringByKeywords();
     }
 
@@ -41,8 +55,43 @@ public class ClientResponse {
     }
 
     private String humanReadableStringByKeywords() {
-        StringBuilder builder = new StringBuilder(System.lineSeparator());
         List<Food> foods = resultData.getFoods();
+        StringBuilder builder = humanReadableFoods(foods);
+        builder.append(String.format("%d results shown", foods.size()))
+                .append(System.lineSeparator());
+        if (resultData.getMessage() != null) {
+            builder.append(resultData.getMessage()).append(System.lineSeparator());
+        }
+        if (resultData.getNextCursor() != null) {
+            builder.append(nextCursorHint()).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    //one line per requested id or barcode, found foods are listed with their name
+    private String humanReadableItems() {
+        StringBuilder builder = new StringBuilder(System.lineSeparator());
+        for (BatchItem item : resultData.getItems()) {
+            builder.append(item.getKey()).append(": ");
+            if (item.isFound()) {
+                builder.append(String.format("%s (FdcId: %s)", item.getFood().getDescription(), item.getFood().getFdcId()));
+            } else {
+                builder.append(item.getMessage());
+            }
+            builder.append(System.lineSeparator());
+        }
+        if (resultData.getMessage() != null) {
+            builder.append(resultData.getMessage()).append(System.lineSeparator());
+        }
+        return builder.toString();
+    }
+
+    private String nextCursorHint() {
+        return String.format("More results: repeat the request with --cursor=%s", resultData.getNextCursor());
+    }
+
+    private StringBuilder humanReadableFoods(List<Food> foods) {
+        StringBuilder builder = new StringBuilder(System.lineSeparator());
         for (Food food : foods) {
             builder.append(String.format("Name: %s", food.getDescription()))
                     .append(System.lineSeparator())
@@ -55,9 +104,7 @@ public class ClientResponse {
             }
             builder.append(System.lineSeparator());
         }
-        builder.append(String.format("%d results shown", foods.size()))
-                .append(System.lineSeparator());
-        return builder.toString();
+        return builder;
     }
 
 
@@ -0,0 +1,7 @@
+package bg.sofia.uni.fmi.mjt.exceptions;
+
+public class CircuitOpenException extends HttpRequestException {
+    public CircuitOpenException(String msg) {
+        super(msg);
+    }
+}
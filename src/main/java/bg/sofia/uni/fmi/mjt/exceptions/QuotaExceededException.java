@@ -0,0 +1,7 @@
+package bg.sofia.uni.fmi.mjt.exceptions;
+
+public class QuotaExceededException extends HttpRequestException {
+    public QuotaExceededException(String msg) {
+        super(msg);
+    }
+}
@@ -42,6 +42,25 @@ public class Food {
     @SerializedName("query")
     private String query;
 
+    //when the food was fetched from the API, in epoch milliseconds, set by the cache.
+    //Transient so it stays out of responses, the cache file codecs write it themselves
+    private transient Long cachedAt;
+
+    public Food() {
+    }
+
+    public Food(Integer fdcId, String dataType, String description, List<FoodNutrient> foodNutrients,
+                String gtinUpc, String ingredients, String query, Long cachedAt) {
+        this.fdcId = fdcId;
+        this.dataType = dataType;
+        this.description = description;
+        this.foodNutrients = foodNutrients;
+        this.gtinUpc = gtinUpc;
+        this.ingredients = ingredients;
+        this.query = query;
+        this.cachedAt = cachedAt;
+    }
+
     public Integer getFdcId() {
         return fdcId;
     }
@@ -76,6 +95,29 @@ public class Food {
         this.query = query;
     }
 
+    /**
+     * @return a copy of the food as a result of the given query. Cached foods are shared by the threads
+     * that serialize responses, so they are copied instead of changed
+     */
+    public Food withQuery(String query) {
+        return new Food(fdcId, dataType, description, foodNutrients, gtinUpc, ingredients, query, cachedAt);
+    }
+
+    public Long getCachedAt() {
+        return cachedAt;
+    }
+
+    /**
+     * @return a copy of the food fetched at the given time, in epoch milliseconds
+     */
+    public Food withCachedAt(Long cachedAt) {
+        return new Food(fdcId, dataType, description, foodNutrients, gtinUpc, ingredients, query, cachedAt);
+    }
+
+    public void setCachedAt(Long cachedAt) {
+        this.cachedAt = cachedAt;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
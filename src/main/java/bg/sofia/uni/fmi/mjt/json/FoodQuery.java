@@ -3,6 +3,7 @@ package bg.sofia.uni.fmi.mjt.json;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -28,6 +29,21 @@ public class FoodQuery {
     @Expose
     private List<Food> foods = null;
 
+    //when the page was fetched, in epoch milliseconds, set by the cache. Pages are not written to the cache file
+    private transient Long cachedAt;
+
+    public FoodQuery() {
+    }
+
+    public FoodQuery(FoodSearchCriteria foodSearchCriteria, Integer totalHits, Integer currentPage,
+                     Integer totalPages, List<Food> foods) {
+        this.foodSearchCriteria = foodSearchCriteria;
+        this.totalHits = totalHits;
+        this.currentPage = currentPage;
+        this.totalPages = totalPages;
+        this.foods = foods;
+    }
+
     public FoodSearchCriteria getFoodSearchCriteria() {
         return foodSearchCriteria;
     }
@@ -50,10 +66,23 @@ public class FoodQuery {
         return foods;
     }
 
-    public void setKeywords() {
+    public Long getCachedAt() {
+        return cachedAt;
+    }
+
+    public void setCachedAt(Long cachedAt) {
+        this.cachedAt = cachedAt;
+    }
+
+    /**
+     * @return copies of the page's foods as results of its query, the page itself isn't changed
+     */
+    public List<Food> getFoodsOfQuery() {
+        List<Food> tagged = new ArrayList<>(foods.size());
         for (var food : foods) {
-            food.setQuery(this.getFoodSearchCriteria().getQuery());
+            tagged.add(food.withQuery(this.getFoodSearchCriteria().getQuery()));
         }
+        return tagged;
     }
 
 }
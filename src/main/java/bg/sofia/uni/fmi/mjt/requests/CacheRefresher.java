@@ -0,0 +1,194 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import bg.sofia.uni.fmi.mjt.upstream.CircuitBreaker;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+//Decides whether a cache hit may be served, by its age and the time to live of its search criteria.
+//A hit that is past refreshAheadPercent of its TTL is still served right away, but a re-fetch of it
+//starts in the background, so a key that is requested often is refreshed before it ever expires and
+//its clients never wait. An expired hit is a miss, unless the circuit is open: a stale answer is
+//better than no answer while the API is down.
+public class CacheRefresher {
+    public enum Freshness {
+        FRESH,
+        REFRESH_DUE,
+        EXPIRED
+    }
+
+    private static final int REFRESH_THREADS = 2;
+    //refreshes that don't fit are dropped, the next hit of the key asks again
+    private static final int MAX_QUEUED_REFRESHES = 256;
+
+    private final Map<SearchCriteria, Duration> ttls;
+    private final int refreshAheadPercent;
+    //null when the client has no circuit breaker
+    private final CircuitBreaker circuitBreaker;
+    private final Supplier<RequestHandler> requestHandlers;
+    private final Clock clock;
+
+    private final Set<Request> refreshing = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS,
+            0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_REFRESHES), runnable -> {
+                Thread thread = new Thread(runnable, "cache-refresher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param ttls                the time to live of each search criteria, criteria without one never expire
+     * @param refreshAheadPercent how old a hit can get, in percent of its TTL, before it is refreshed
+     * @param requestHandlers     handlers that fetch the refreshed results, each refresh gets its own
+     */
+    public CacheRefresher(Map<SearchCriteria, Duration> ttls, int refreshAheadPercent, CircuitBreaker circuitBreaker,
+                          Supplier<RequestHandler> requestHandlers) {
+        this(ttls, refreshAheadPercent, circuitBreaker, requestHandlers, Clock.systemUTC());
+    }
+
+    CacheRefresher(Map<SearchCriteria, Duration> ttls, int refreshAheadPercent, CircuitBreaker circuitBreaker,
+                   Supplier<RequestHandler> requestHandlers, Clock clock) {
+        if (ttls == null || requestHandlers == null || clock == null) {
+            throw new IllegalArgumentException("TTLs, request handlers and clock can't be null");
+        }
+        if (refreshAheadPercent <= 0 || refreshAheadPercent > 100) {
+            throw new IllegalArgumentException("Refresh ahead percent must be between 1 and 100");
+        }
+        for (Duration ttl : ttls.values()) {
+            if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+                throw new IllegalArgumentException("TTL must be positive");
+            }
+        }
+        this.ttls = ttls.isEmpty() ? new EnumMap<>(SearchCriteria.class) : new EnumMap<>(ttls);
+        this.refreshAheadPercent = refreshAheadPercent;
+        this.circuitBreaker = circuitBreaker;
+        this.requestHandlers = requestHandlers;
+        this.clock = clock;
+    }
+
+    /**
+     * @param cached the cache hit of the request, may be null
+     * @return the hit if it may be served, null if the request has to be fetched
+     */
+    public ResultData serve(Request request, ResultData cached) {
+        if (request == null) {
+            throw new IllegalArgumentException("Request can't be null");
+        }
+        if (cached == null) {
+            return null;
+        }
+        switch (freshness(request.getSearchCriteria(), oldestCachedAt(cached))) {
+            case FRESH -> {
+                return cached;
+            }
+            case REFRESH_DUE -> {
+                refreshInBackground(request, cached);
+                return cached;
+            }
+            default -> {
+                return isUpstreamDown() ? cached : null;
+            }
+        }
+    }
+
+    /**
+     * @param cachedAt when the entry was fetched, in epoch milliseconds, null if unknown
+     */
+    public Freshness freshness(SearchCriteria criteria, Long cachedAt) {
+        Duration ttl = ttls.get(criteria);
+        if (ttl == null || cachedAt == null) {
+            return Freshness.FRESH;
+        }
+        long age = clock.millis() - cachedAt;
+        if (age >= ttl.toMillis()) {
+            return Freshness.EXPIRED;
+        } else if (age >= ttl.toMillis() * refreshAheadPercent / 100) {
+            return Freshness.REFRESH_DUE;
+        }
+        return Freshness.FRESH;
+    }
+
+    /**
+     * The API can't be searched by barcode, a barcode hit is fetched again by the id of its food.
+     *
+     * @return the request that re-fetches the hit
+     */
+    public static Request refreshRequest(Request request, ResultData cached) throws InvalidRequestException {
+        if (request.getSearchCriteria() == SearchCriteria.BY_GTINUPC && cached.getFood() != null) {
+            return Request.newRequestBuilder().setFdcId(cached.getFood().getFdcId()).build();
+        }
+        return request;
+    }
+
+    public int getRefreshingCount() {
+        return refreshing.size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    //only one refresh of a key runs at a time, and none while the API is known to be down
+    private void refreshInBackground(Request request, ResultData cached) {
+        if (isUpstreamDown()) {
+            return;
+        }
+        Request refresh;
+        try {
+            refresh = refreshRequest(request, cached);
+        } catch (InvalidRequestException e) {
+            return;
+        }
+        if (!refreshing.add(refresh)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    requestHandlers.get().refresh(refresh);
+                } catch (InvalidRequestException | RuntimeException e) {
+                    //the stale entry stays cached, its next hit tries again
+                } finally {
+                    refreshing.remove(refresh);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(refresh);
+        }
+    }
+
+    private boolean isUpstreamDown() {
+        return circuitBreaker != null && circuitBreaker.getState() == CircuitBreaker.State.OPEN;
+    }
+
+    //a result is as old as its oldest food
+    private static Long oldestCachedAt(ResultData cached) {
+        if (cached.getFood() != null) {
+            return cached.getFood().getCachedAt();
+        }
+        List<Food> foods = cached.getFoods();
+        if (foods == null) {
+            return null;
+        }
+        Long oldest = null;
+        for (Food food : foods) {
+            if (food.getCachedAt() != null && (oldest == null || food.getCachedAt() < oldest)) {
+                oldest = food.getCachedAt();
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,221 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.upstream.UpstreamClient;
+import com.google.gson.Gson;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Collects the food report misses of concurrent requests for a short window and fetches them with one
+//request to the multi-id endpoint, then hands every waiting worker its own food. A batch is sent when
+//the window ends or as soon as it is full, whichever comes first, so under load N reports cost about
+//N / MAX_BATCH_SIZE upstream requests while a lone miss waits only for the window.
+public class FoodReportBatcher {
+    private static final int OK = 200;
+    private static final int NOT_FOUND = 404;
+    private static final int BAD_INPUT_PARAMETER = 400;
+
+    private final UpstreamClient client;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Gson gson = new Gson();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "food-report-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //a send may block on quota and free streams, so the batches of ended windows are sent here and the
+    //scheduler stays free to end the next windows. A full batch is sent by the worker that filled it
+    private final ExecutorService sender = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "food-report-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //guarded by this
+    private Map<Integer, CompletableFuture<Food>> pending = new LinkedHashMap<>();
+    private long batchNumber;
+
+    /**
+     * @param window       how long the first miss of a batch waits for others to join it
+     * @param maxBatchSize a batch is sent as soon as it has this many different ids, at most Request.MAX_BATCH_SIZE
+     */
+    public FoodReportBatcher(UpstreamClient client, Duration window, int maxBatchSize) {
+        if (client == null || window == null) {
+            throw new IllegalArgumentException("Client and window can't be null");
+        }
+        if (window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        if (maxBatchSize <= 0 || maxBatchSize > Request.MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(String.format("Batch size must be between 1 and %d", Request.MAX_BATCH_SIZE));
+        }
+        this.client = client;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Waits for the report of the food, fetched together with the reports other callers asked for meanwhile.
+     *
+     * @return the food or null if the API doesn't know it
+     * @throws HttpRequestException if the batch failed, including the circuit and quota exceptions of the client
+     */
+    public Food fetch(int fdcId) {
+        return await(submit(fdcId));
+    }
+
+    static Food await(CompletableFuture<Food> food) {
+        try {
+            return food.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HttpRequestException httpRequestException) {
+                throw httpRequestException;
+            }
+            throw new HttpRequestException("Batched food report request failed", e.getCause());
+        }
+    }
+
+    CompletableFuture<Food> submit(int fdcId) {
+        Map<Integer, CompletableFuture<Food>> full = null;
+        CompletableFuture<Food> future;
+        synchronized (this) {
+            future = pending.computeIfAbsent(fdcId, id -> new CompletableFuture<>());
+            if (pending.size() >= maxBatchSize) {
+                full = takePending();
+            } else if (pending.size() == 1) {
+                long batch = batchNumber;
+                scheduler.schedule(() -> flush(batch), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return future;
+    }
+
+    //the window of a batch that was already sent because it filled up must not cut the next batch short
+    private void flush(long batch) {
+        Map<Integer, CompletableFuture<Food>> due;
+        synchronized (this) {
+            if (batch != batchNumber || pending.isEmpty()) {
+                return;
+            }
+            due = takePending();
+        }
+        try {
+            sender.execute(() -> send(due));
+        } catch (RejectedExecutionException e) {
+            HttpRequestException closed = new HttpRequestException("Food report batcher is closed", e);
+            due.values().forEach(future -> future.completeExceptionally(closed));
+        }
+    }
+
+    private Map<Integer, CompletableFuture<Food>> takePending() {
+        Map<Integer, CompletableFuture<Food>> taken = pending;
+        pending = new LinkedHashMap<>();
+        batchNumber++;
+        return taken;
+    }
+
+    private void send(Map<Integer, CompletableFuture<Food>> batch) {
+        if (batch.size() == 1) {
+            sendSingle(batch);
+            return;
+        }
+        try {
+            CompletableFuture<Map<Integer, Food>> foods =
+                    client.sendAsync(Request.toBatchHttpRequest(batch.keySet()), this::parseFoods);
+            foods.whenComplete((result, e) -> {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                batch.forEach((fdcId, future) -> {
+                    if (cause != null) {
+                        future.completeExceptionally(cause);
+                    } else {
+                        future.complete(result.get(fdcId));
+                    }
+                });
+            });
+        } catch (RuntimeException e) {
+            //the circuit is open or no quota became available, every waiting worker gets the same answer
+            batch.values().forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    //A batch of one is sent to the single food endpoint exactly as without batching, through the blocking
+    //send, so a slow report is still hedged and its latency counts towards the hedge delay. It runs on the
+    //sender or on the worker that filled the batch, which would have blocked on the report anyway.
+    private void sendSingle(Map<Integer, CompletableFuture<Food>> batch) {
+        Map.Entry<Integer, CompletableFuture<Food>> entry = batch.entrySet().iterator().next();
+        try {
+            entry.getValue().complete(parseFood(client.send(singleRequest(entry.getKey()))).get(entry.getKey()));
+        } catch (RuntimeException e) {
+            entry.getValue().completeExceptionally(e);
+        }
+    }
+
+    private static HttpRequest singleRequest(int fdcId) {
+        try {
+            return Request.newRequestBuilder().setFdcId(fdcId).build().toHttpRequest();
+        } catch (InvalidRequestException e) {
+            throw new HttpRequestException("Invalid food report request", e);
+        }
+    }
+
+    private Map<Integer, Food> parseFood(HttpResponse<String> response) {
+        Map<Integer, Food> result = new HashMap<>();
+        if (checkStatus(response)) {
+            Food food = gson.fromJson(response.body(), Food.class);
+            result.put(food.getFdcId(), food);
+        }
+        return result;
+    }
+
+    //ids the API doesn't know are simply missing from its answer
+    private Map<Integer, Food> parseFoods(HttpResponse<String> response) {
+        Map<Integer, Food> result = new HashMap<>();
+        if (checkStatus(response)) {
+            for (Food food : gson.fromJson(response.body(), Food[].class)) {
+                result.put(food.getFdcId(), food);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return false if none of the foods was found
+     */
+    private static boolean checkStatus(HttpResponse<String> response) {
+        int statusCode = response.statusCode();
+        switch (statusCode) {
+            case OK -> {
+                return true;
+            }
+            case NOT_FOUND -> {
+                return false;
+            }
+            case BAD_INPUT_PARAMETER -> throw new HttpRequestException(String.format("%d Bad input parameter", statusCode));
+            default -> throw new HttpRequestException(String.format("%d Unknown HTTP request error", statusCode));
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+    }
+}
@@ -0,0 +1,66 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+//Picks how a keyword search is split into upstream pages. Every page costs one request of the hourly
+//quota no matter how big it is, so the planner asks for as few pages as possible: the smallest page
+//size that still covers the window with the fewest pages, never more pages than the quota has left.
+final class PagePlanner {
+    //the largest page FoodData Central returns
+    static final int MAX_PAGE_SIZE = 200;
+    static final int UNKNOWN_TOTAL_HITS = -1;
+    static final long UNLIMITED_BUDGET = Integer.MAX_VALUE;
+
+    /**
+     * @param lastPage       the last page the quota can pay for
+     * @param neededLastPage the last page the window needs, after lastPage if the quota is too low
+     */
+    record PagePlan(int pageSize, int firstPage, int lastPage, int neededLastPage) {
+        boolean isComplete() {
+            return lastPage == neededLastPage;
+        }
+    }
+
+    private PagePlanner() {
+    }
+
+    /**
+     * Plans the pages of a window whose page size is still open.
+     *
+     * @param totalHits UNKNOWN_TOTAL_HITS before the first response of the search arrived
+     * @param budget    upstream requests that can still be sent, at least one page is always planned
+     */
+    static PagePlan plan(int offset, int limit, int totalHits, long budget) {
+        int end = windowEnd(offset, limit, totalHits);
+        int bestSize = 1;
+        int bestPages = Integer.MAX_VALUE;
+        for (int size = 1; size <= MAX_PAGE_SIZE; size++) {
+            int pages = (end - 1) / size - offset / size + 1;
+            //fewer pages first, then fewer foods fetched that aren't part of the window
+            if (pages < bestPages) {
+                bestSize = size;
+                bestPages = pages;
+            }
+        }
+        return plan(bestSize, offset, limit, totalHits, budget);
+    }
+
+    /**
+     * Plans the pages of a window once the page size is fixed, e.g. by the first response.
+     */
+    static PagePlan plan(int pageSize, int offset, int limit, int totalHits, long budget) {
+        int end = windowEnd(offset, limit, totalHits);
+        int firstPage = offset / pageSize + 1;
+        int neededLastPage = (end - 1) / pageSize + 1;
+        long affordable = Math.max(budget, 1);
+        int lastPage = neededLastPage - firstPage + 1 > affordable ? firstPage + (int) affordable - 1 : neededLastPage;
+        return new PagePlan(pageSize, firstPage, lastPage, neededLastPage);
+    }
+
+    //a window past the last hit still asks for its first page, which tells that it is empty
+    private static int windowEnd(int offset, int limit, int totalHits) {
+        int end = offset + limit;
+        if (totalHits != UNKNOWN_TOTAL_HITS) {
+            end = Math.min(end, totalHits);
+        }
+        return Math.max(end, offset + 1);
+    }
+}
@@ -7,18 +7,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
 public class Request {
     private static final String API_KEY;
     private static final int PAGE_SIZE = 10;
+    //at most MAX_LIMIT results are returned for one window, as many as an unwindowed request returns
+    public static final int MAX_LIMIT = 100;
+    private static final String CURSOR_PREFIX = "offset:";
 
     private static final String SEARCH_ENDPOINT = "https://api.nal.usda.gov/fdc/v1/foods/search?";
     private static final String FOOD_ENDPOINT = "https://api.nal.usda.gov/fdc/v1/food/";
+    private static final String FOODS_ENDPOINT = "https://api.nal.usda.gov/fdc/v1/foods";
 
     private static final String FOOD_ENDPOINT_FORMAT = "%s%s?api_key=%s&format=abridged&nutrients=%d&nutrients=%d&nutrients=%d&nutrients=%d&nutrients=%d";
     private static final String SEARCH_ENDPOINT_FORMAT = "%sapi_key=%s&query=%s&requireAllWords=true&pageSize=%d&pageNumber=%d";
+    private static final String FOODS_ENDPOINT_FORMAT = "%s?api_key=%s";
+    private static final String FOODS_BODY_FORMAT = "{\"fdcIds\":[%s],\"format\":\"abridged\",\"nutrients\":[%d,%d,%d,%d,%d]}";
+    //the multi-id endpoint accepts at most this many ids per request
+    public static final int MAX_BATCH_SIZE = 20;
 
     private static final String URL_SPACE = "%20";
 
@@ -34,6 +48,14 @@ public class Request {
     private final String gtinUpc;
     private final SearchCriteria searchCriteria;
     private final int pageNumber;
+    private final int pageSize;
+
+    //0 when the request isn't windowed and asks for all results, as before cursors existed
+    private final int limit;
+    private final int offset;
+
+    //keywords joined and lower-cased, two requests for the same food differing only in case are equal
+    private final String normalizedKeywords;
 
     static {
         API_KEY = setApiKey();
@@ -46,6 +68,10 @@ public class Request {
         this.searchCriteria = builder.searchCriteria;
         this.endpoint = builder.endpoint;
         this.pageNumber = builder.pageNumber;
+        this.pageSize = builder.pageSize;
+        this.limit = builder.limit;
+        this.offset = builder.offset;
+        this.normalizedKeywords = keywords == null ? null : String.join(" ", keywords).toLowerCase(Locale.ROOT);
     }
 
     private static String setApiKey(){
@@ -71,6 +97,9 @@ public class Request {
 
         private SearchCriteria searchCriteria;
         private int pageNumber = 1;
+        private int pageSize = PAGE_SIZE;
+        private int limit;
+        private int offset;
 
 
         private void setSearchCriteria(SearchCriteria criteria) {
@@ -105,8 +134,30 @@ public class Request {
             return this;
         }
 
+        public RequestBuilder setPageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+
+        /**
+         * Asks for limit results starting at offset instead of all results.
+         */
+        public RequestBuilder setWindow(int limit, int offset) {
+            this.limit = limit;
+            this.offset = offset;
+            return this;
+        }
 
         public Request build() throws InvalidRequestException {
+            if (limit < 0 || limit > MAX_LIMIT) {
+                throw new InvalidRequestException(String.format("Limit must be between 1 and %d", MAX_LIMIT));
+            } else if (offset < 0) {
+                throw new InvalidRequestException("Offset can't be negative");
+            } else if (pageSize <= 0 || pageSize > PagePlanner.MAX_PAGE_SIZE) {
+                throw new InvalidRequestException(String.format("Page size must be between 1 and %d",
+                        PagePlanner.MAX_PAGE_SIZE));
+            }
             if (searchCriteria == null) {
                 throw new InvalidRequestException("Cannot build request with missing search criteria");
             } else if (searchCriteria == SearchCriteria.BY_KEYWORDS && (keywords == null || keywords.isEmpty())) {
@@ -135,7 +186,7 @@ public class Request {
 
             String query = String.join(URL_SPACE, keywords);
             uri = URI.create(String.format(SEARCH_ENDPOINT_FORMAT,
-                    this.endpoint, API_KEY, query, PAGE_SIZE, pageNumber));
+                    this.endpoint, API_KEY, query, pageSize, pageNumber));
 
         }
         return HttpRequest.newBuilder()
@@ -144,6 +195,23 @@ public class Request {
     }
 
 
+    /**
+     * Builds a single request for the reports of many foods, answered with the same abridged
+     * reports as a request for one of them.
+     */
+    public static HttpRequest toBatchHttpRequest(Collection<Integer> fdcIds) {
+        if (fdcIds == null || fdcIds.isEmpty() || fdcIds.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(String.format("Between 1 and %d ids can be fetched at once", MAX_BATCH_SIZE));
+        }
+        String ids = fdcIds.stream().map(String::valueOf).collect(Collectors.joining(","));
+        String body = String.format(FOODS_BODY_FORMAT, ids, CARBS_NUMBER, FATS_NUMBER, FIBERS_NUMBER, KCAL_NUMBER, PROTEIN_NUMBER);
+        return HttpRequest.newBuilder()
+                .uri(URI.create(String.format(FOODS_ENDPOINT_FORMAT, FOODS_ENDPOINT, API_KEY)))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
     public List<String> getKeywords() {
         return keywords;
     }
@@ -160,4 +228,68 @@ public class Request {
         return searchCriteria;
     }
 
+    public int getPageNumber() {
+        return pageNumber;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public String getNormalizedKeywords() {
+        return normalizedKeywords;
+    }
+
+    public boolean isWindowed() {
+        return limit > 0;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Cursors are opaque to clients, they only pass back what a previous response returned.
+     */
+    public static String encodeCursor(int offset) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((CURSOR_PREFIX + offset).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int decodeCursor(String cursor) throws InvalidRequestException {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!decoded.startsWith(CURSOR_PREFIX)) {
+                throw new InvalidRequestException("Invalid cursor");
+            }
+            return Integer.parseInt(decoded.substring(CURSOR_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException("Invalid cursor", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Request request = (Request) o;
+        return fdcId == request.fdcId
+                && pageNumber == request.pageNumber
+                && pageSize == request.pageSize
+                && limit == request.limit
+                && offset == request.offset
+                && searchCriteria == request.searchCriteria
+                && Objects.equals(gtinUpc, request.gtinUpc)
+                && Objects.equals(normalizedKeywords, request.normalizedKeywords);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(searchCriteria, fdcId, gtinUpc, normalizedKeywords, pageNumber, pageSize, limit, offset);
+    }
+
 }
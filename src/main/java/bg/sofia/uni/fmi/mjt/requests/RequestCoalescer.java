@@ -0,0 +1,63 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Makes sure that identical requests which miss the cache at the same time reach the API only once.
+//The first caller fetches, every caller that arrives while the fetch is running waits for its result.
+//A request is forgotten as soon as its fetch completes, so nothing here acts as a cache.
+public class RequestCoalescer {
+
+    @FunctionalInterface
+    public interface Fetch {
+        ResultData fetch() throws InvalidRequestException;
+    }
+
+    private final ConcurrentHashMap<Request, CompletableFuture<ResultData>> inFlight = new ConcurrentHashMap<>();
+
+    public ResultData execute(Request request, Fetch fetch) throws InvalidRequestException {
+        if (request == null || fetch == null) {
+            throw new IllegalArgumentException("Request and fetch can't be null");
+        }
+
+        CompletableFuture<ResultData> own = new CompletableFuture<>();
+        CompletableFuture<ResultData> running = inFlight.putIfAbsent(request, own);
+        if (running != null) {
+            return await(running);
+        }
+
+        try {
+            ResultData result = fetch.fetch();
+            own.complete(result);
+            return result;
+        } catch (InvalidRequestException | RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(request, own);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private ResultData await(CompletableFuture<ResultData> running) throws InvalidRequestException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvalidRequestException invalidRequest) {
+                throw invalidRequest;
+            } else if (cause instanceof HttpRequestException httpRequestException) {
+                throw httpRequestException;
+            }
+            throw new HttpRequestException("Coalesced request failed", cause);
+        }
+    }
+}
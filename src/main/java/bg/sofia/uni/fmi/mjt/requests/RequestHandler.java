@@ -1,25 +1,38 @@
 package bg.sofia.uni.fmi.mjt.requests;
 
 import bg.sofia.uni.fmi.mjt.cache.FoodCache;
+import bg.sofia.uni.fmi.mjt.exceptions.CircuitOpenException;
 import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
 import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.QuotaExceededException;
 import bg.sofia.uni.fmi.mjt.json.Food;
 import bg.sofia.uni.fmi.mjt.json.FoodQuery;
+import bg.sofia.uni.fmi.mjt.json.FoodSearchCriteria;
+import bg.sofia.uni.fmi.mjt.requests.PagePlanner.PagePlan;
+import bg.sofia.uni.fmi.mjt.result.BatchItem;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
+import bg.sofia.uni.fmi.mjt.upstream.RateLimiter;
+import bg.sofia.uni.fmi.mjt.upstream.UpstreamClient;
 import com.google.gson.Gson;
 
-import java.io.IOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class RequestHandler {
-    private static final int MAX_PAGE_COUNT = 10;
+    //an unwindowed keyword search returns at most as many results as the largest window
+    private static final int MAX_RESULTS = Request.MAX_LIMIT;
 
     private static final int OK = 200;
     private static final int NOT_FOUND = 404;
@@ -31,48 +44,180 @@ public class RequestHandler {
     private static final String GET_FOOD = "get-food";
     private static final String GET_FOOD_REPORT = "get-food-report";
     private static final String GET_FOOD_BY_BARCODE = "get-food-by-barcode";
+    private static final String GET_QUOTA = "get-quota";
+    private static final String GET_CACHE_STATUS = "get-cache-status";
+    private static final String STREAM_FOOD = "stream-food";
+    private static final String GET_FOOD_REPORT_BATCH = "get-food-report-batch";
+    private static final String GET_FOOD_BY_BARCODE_BATCH = "get-food-by-barcode-batch";
     private static final String SEPARATOR = " ";
 
+    private static final String LIMIT_PARAMETER = "--limit=";
+    private static final String CURSOR_PARAMETER = "--cursor=";
+    //window size of a request that passes a cursor without a limit
+    private static final int DEFAULT_LIMIT = 10;
+
+    //as many items as results of a keyword search, the response of a batch has to fit the same buffers
+    private static final int MAX_BATCH_ITEMS = Request.MAX_LIMIT;
+    private static final String ITEM_NOT_FOUND = "No results were found";
+    private static final String ITEM_INVALID = "Invalid fdcId";
+    private static final String ITEM_API_UNAVAILABLE = "The food database is unavailable at the moment";
+    private static final String ITEM_QUOTA_EXCEEDED = "The API request quota is used up";
+    private static final String ITEM_FAILED = "An error occurred while fetching the food";
+
+    private static final Consumer<List<Food>> IGNORE_PAGES = page -> {
+    };
+
     private final Gson gson = new Gson();
-    private final HttpClient client;
+    private final UpstreamClient client;
     private final FoodCache foodCache;
+    private final RequestCoalescer coalescer;
+    //null when every food report miss is fetched on its own
+    private final FoodReportBatcher batcher;
+    //null when cached entries never expire
+    private final CacheRefresher refresher;
 
     private Request clientRequest;
 
 
     public RequestHandler(HttpClient client, FoodCache foodCache) {
+        this(client == null ? null : UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).build(),
+                foodCache, new RequestCoalescer());
+    }
+
+    /**
+     * @param client    shared between handlers, the server's only connection to the API
+     * @param coalescer shared between handlers, merges identical concurrent cache misses
+     */
+    public RequestHandler(UpstreamClient client, FoodCache foodCache, RequestCoalescer coalescer) {
+        this(client, foodCache, coalescer, null);
+    }
+
+    /**
+     * @param batcher shared between handlers, fetches the food report misses of concurrent requests
+     *                together, null to fetch each on its own
+     */
+    public RequestHandler(UpstreamClient client, FoodCache foodCache, RequestCoalescer coalescer,
+                          FoodReportBatcher batcher) {
+        this(client, foodCache, coalescer, batcher, null);
+    }
+
+    /**
+     * @param refresher shared between handlers, expires cache hits and refreshes them ahead of time,
+     *                  null if cached entries never expire
+     */
+    public RequestHandler(UpstreamClient client, FoodCache foodCache, RequestCoalescer coalescer,
+                          FoodReportBatcher batcher, CacheRefresher refresher) {
         checkNull(client, "client");
         checkNull(foodCache, "food cache");
+        checkNull(coalescer, "coalescer");
         this.foodCache = foodCache;
         this.client = client;
+        this.coalescer = coalescer;
+        this.batcher = batcher;
+        this.refresher = refresher;
     }
 
     public ResultData fetchFood(String request) throws InvalidRequestException {
         checkNull(request, "request");
         checkEmpty(request, "request");
+        if (request.equals(GET_QUOTA)) {
+            return new ResultData(ResultData.STATUS_OK, quotaStatus());
+        }
+        if (request.equals(GET_CACHE_STATUS)) {
+            return new ResultData(ResultData.STATUS_OK, cacheStatus());
+        }
+        String command = request.split(SEPARATOR)[COMMAND_INDEX];
+        if (command.equals(GET_FOOD_REPORT_BATCH) || command.equals(GET_FOOD_BY_BARCODE_BATCH)) {
+            return fetchBatch(request);
+        }
         clientRequest = parseRequest(request);
 
-        ResultData res = getFromCache();
-
+        ResultData cached = getFromCache(foodCache, clientRequest);
+        ResultData res = refresher == null ? cached : refresher.serve(clientRequest, cached);
         if (res != null) {
             return res;
-        } else {
-            switch (clientRequest.getSearchCriteria()) {
-                case BY_KEYWORDS -> res = fetchByKeywords();
-                case BY_FDCID -> res = fetchByFcdID();
+        }
+        if (cached == null) {
+            return fetchMiss();
+        }
+        //the entry has expired, it is fetched again but still beats an error
+        try {
+            clientRequest = CacheRefresher.refreshRequest(clientRequest, cached);
+            res = fetchMiss();
+            return res != null ? res : cached;
+        } catch (HttpRequestException e) {
+            return cached;
+        }
+    }
+
+    /**
+     * Fetches the request again, bypassing the cache, and caches the result. Used to refresh entries
+     * that are about to expire.
+     */
+    public void refresh(Request request) throws InvalidRequestException {
+        checkNull(request, "request");
+        clientRequest = request;
+        fetchMiss();
+    }
+
+    private ResultData fetchMiss() throws InvalidRequestException {
+        switch (clientRequest.getSearchCriteria()) {
+            case BY_KEYWORDS -> {
+                return clientRequest.isWindowed()
+                        ? coalescer.execute(clientRequest, this::fetchWindow)
+                        : coalescer.execute(clientRequest, () -> fetchByKeywords(IGNORE_PAGES));
+            }
+            case BY_FDCID -> {
+                return coalescer.execute(clientRequest, this::fetchByFcdID);
+            }
+            default -> {
+                return null;
             }
         }
-        return res;
     }
 
-    private HttpResponse<String> fetch() {
-        HttpRequest httpRequest = clientRequest.toHttpRequest();
-        HttpResponse<String> response;
-        try {
-            response = client.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-        } catch (IOException | InterruptedException e) {
-            throw new HttpRequestException("Error occurred while trying to fetch data from API", e);
+    /**
+     * Answers a stream-food request page by page: every page is handed to frames as a PARTIAL
+     * frame as soon as it and the pages before it have arrived.
+     *
+     * @return the END frame or null if nothing was found
+     */
+    public ResultData streamFood(String request, Consumer<ResultData> frames) throws InvalidRequestException {
+        checkNull(request, "request");
+        checkNull(frames, "frames");
+        clientRequest = parseRequest(request);
+
+        ResultData res = getFromCache(foodCache, refresher, clientRequest);
+        if (res == null && clientRequest.isWindowed()) {
+            //a window is small, it is sent as a single frame
+            res = coalescer.execute(clientRequest, this::fetchWindow);
+            if (res == null) {
+                return null;
+            }
+        } else if (res == null) {
+            AtomicBoolean streamed = new AtomicBoolean();
+            res = coalescer.execute(clientRequest, () -> fetchByKeywords(page -> {
+                streamed.set(true);
+                frames.accept(new ResultData(ResultData.STATUS_PARTIAL, page));
+            }));
+            if (res == null) {
+                return null;
+            }
+            if (streamed.get()) {
+                return new ResultData(ResultData.STATUS_END, res.getMessage());
+            }
         }
+        //a cache hit, a window or the result of an identical request that was already running
+        frames.accept(new ResultData(ResultData.STATUS_PARTIAL, res.getFoods()));
+        return new ResultData(ResultData.STATUS_END, res.getMessage()).withNextCursor(res.getNextCursor());
+    }
+
+    public static boolean isStreamRequest(String request) {
+        return request.startsWith(STREAM_FOOD + SEPARATOR);
+    }
+
+    private HttpResponse<String> fetch(Request request) {
+        HttpResponse<String> response = client.send(request.toHttpRequest());
 
         int statusCode = response.statusCode();
         switch (statusCode) {
@@ -88,9 +233,8 @@ public class RequestHandler {
     }
 
     private ResultData fetchByFcdID() {
-        HttpResponse<String> response = fetch();
-        if (response != null) {
-            Food foodResult = gson.fromJson(response.body(), Food.class);
+        Food foodResult = batcher == null ? fetchReport(clientRequest) : batcher.fetch(clientRequest.getFdcId());
+        if (foodResult != null) {
             foodCache.submit(foodResult);
             return new ResultData(ResultData.STATUS_OK, foodResult);
         } else {
@@ -98,58 +242,447 @@ public class RequestHandler {
         }
     }
 
+    private Food fetchReport(Request report) {
+        HttpResponse<String> response = fetch(report);
+        return response == null ? null : gson.fromJson(response.body(), Food.class);
+    }
 
-    private ResultData fetchByKeywords() throws InvalidRequestException {
-        HttpResponse<String> response = fetch();
-        if (response == null) {
-            return null;
+    //Answers every id or barcode of a batch command on its own, in the order they were given. Cache hits
+    //are answered right away, the food report misses are all started before any is awaited, so the
+    //batcher sends them together.
+    private ResultData fetchBatch(String request) throws InvalidRequestException {
+        String[] tokens = request.split(SEPARATOR);
+        List<String> keys = Arrays.stream(tokens, KEY_INDEX, tokens.length).filter(key -> !key.isEmpty()).toList();
+        if (keys.isEmpty()) {
+            throw new InvalidRequestException(String.format("Missing search key in request \"%s\"", request));
+        } else if (keys.size() > MAX_BATCH_ITEMS) {
+            throw new InvalidRequestException(String.format("At most %d items can be requested at once", MAX_BATCH_ITEMS));
         }
 
-        FoodQuery foodQuery = gson.fromJson(response.body(), FoodQuery.class);
-        if (foodQuery.getTotalHits() == 0) {
-            return null;
+        List<BatchItem> items = tokens[COMMAND_INDEX].equals(GET_FOOD_REPORT_BATCH)
+                ? fetchReports(keys)
+                : getByBarcodes(keys);
+        long found = items.stream().filter(BatchItem::isFound).count();
+        return new ResultData(ResultData.STATUS_OK, String.format("%d of %d items found", found, items.size()))
+                .withItems(items);
+    }
+
+    private List<BatchItem> fetchReports(List<String> ids) throws InvalidRequestException {
+        BatchItem[] items = new BatchItem[ids.size()];
+        Map<Integer, CompletableFuture<Food>> misses = new HashMap<>();
+        //expired foods that are fetched again, they are answered if the fetch fails
+        Map<Integer, Food> stale = new HashMap<>();
+        for (int i = 0; i < items.length; i++) {
+            int fdcId;
+            try {
+                fdcId = Integer.parseInt(ids.get(i));
+            } catch (NumberFormatException e) {
+                items[i] = new BatchItem(ids.get(i), ITEM_INVALID);
+                continue;
+            }
+            ResultData cached = foodCache.getByFdcId(fdcId);
+            ResultData served = cached == null || refresher == null
+                    ? cached
+                    : refresher.serve(Request.newRequestBuilder().setFdcId(fdcId).build(), cached);
+            if (served != null) {
+                items[i] = new BatchItem(ids.get(i), served.getFood());
+            } else {
+                if (cached != null) {
+                    stale.put(fdcId, cached.getFood());
+                }
+                misses.computeIfAbsent(fdcId, this::fetchReportAsync);
+            }
+        }
+
+        Set<Integer> submitted = new HashSet<>();
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                continue;
+            }
+            int fdcId = Integer.parseInt(ids.get(i));
+            try {
+                Food food = FoodReportBatcher.await(misses.get(fdcId));
+                if (food == null) {
+                    items[i] = stale.containsKey(fdcId)
+                            ? new BatchItem(ids.get(i), stale.get(fdcId))
+                            : new BatchItem(ids.get(i), ITEM_NOT_FOUND);
+                    continue;
+                }
+                if (submitted.add(fdcId)) {
+                    foodCache.submit(food);
+                }
+                items[i] = new BatchItem(ids.get(i), food);
+            } catch (HttpRequestException e) {
+                items[i] = stale.containsKey(fdcId)
+                        ? new BatchItem(ids.get(i), stale.get(fdcId))
+                        : new BatchItem(ids.get(i), failureMessage(e));
+            }
+        }
+        return Arrays.asList(items);
+    }
+
+    private static String failureMessage(HttpRequestException e) {
+        if (e instanceof CircuitOpenException) {
+            return ITEM_API_UNAVAILABLE;
+        } else if (e instanceof QuotaExceededException) {
+            return ITEM_QUOTA_EXCEEDED;
+        }
+        return ITEM_FAILED;
+    }
+
+    //without a batcher the misses are fetched one by one, still each with its own result
+    private CompletableFuture<Food> fetchReportAsync(int fdcId) {
+        if (batcher != null) {
+            return batcher.submit(fdcId);
+        }
+        try {
+            return CompletableFuture.completedFuture(fetchReport(Request.newRequestBuilder().setFdcId(fdcId).build()));
+        } catch (InvalidRequestException | HttpRequestException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    //barcodes are answered from the cache only, the API can't be searched by barcode
+    private List<BatchItem> getByBarcodes(List<String> codes) throws InvalidRequestException {
+        List<BatchItem> items = new ArrayList<>();
+        for (String code : codes) {
+            ResultData cached = foodCache.getByGtinUpc(code);
+            if (cached != null && refresher != null) {
+                //an expired barcode is still answered, there is no other way to find it
+                refresher.serve(Request.newRequestBuilder().setGtinUpc(code).build(), cached);
+            }
+            items.add(cached == null || cached.getFood() == null
+                    ? new BatchItem(code, ITEM_NOT_FOUND)
+                    : new BatchItem(code, cached.getFood()));
+        }
+        return items;
+    }
+
+
+    /**
+     * @param pages gets the foods of every page, in page order, as soon as the page can be used
+     */
+    private ResultData fetchByKeywords(Consumer<List<Food>> pages) throws InvalidRequestException {
+        Request search = clientRequest;
+        String query = search.getNormalizedKeywords();
+        PagePlan plan = PagePlanner.plan(0, MAX_RESULTS, PagePlanner.UNKNOWN_TOTAL_HITS, remainingBudget());
+
+        FoodQuery firstPage = getFreshPage(query, 1, plan.pageSize());
+        boolean firstPagePaid = firstPage == null;
+        if (firstPagePaid) {
+            HttpResponse<String> response = fetch(pageRequest(search, 1, plan.pageSize()));
+            if (response == null) {
+                return null;
+            }
+            firstPage = gson.fromJson(response.body(), FoodQuery.class);
+            if (firstPage.getTotalHits() == 0) {
+                return null;
+            }
+            foodCache.submitPage(query, 1, pageSizeOf(firstPage, plan.pageSize()), firstPage);
+        }
+
+        List<FoodQuery> fetched = new ArrayList<>();
+        fetched.add(firstPage);
+        List<Food> result = new ArrayList<>(firstPage.getFoods());
+        pages.accept(firstPage.getFoods());
+
+        //the rest follow the first page's size and are limited by its totalHits, the budget counts the
+        //first page again only if it was just paid for
+        int pageSize = pageSizeOf(firstPage, plan.pageSize());
+        plan = PagePlanner.plan(pageSize, 0, MAX_RESULTS, firstPage.getTotalHits(),
+                remainingBudget() + (firstPagePaid ? 1 : 0));
+        int lastPage = Math.min(plan.lastPage(), firstPage.getTotalPages());
+        int neededPages = Math.min(plan.neededLastPage(), firstPage.getTotalPages());
+
+        //only the pages that aren't cached yet are requested, each is cached as soon as it arrives
+        List<CompletableFuture<FoodQuery>> futures = new ArrayList<>();
+        for (int pageNumber = 2; pageNumber <= lastPage; pageNumber++) {
+            FoodQuery cached = getFreshPage(query, pageNumber, pageSize);
+            if (cached != null) {
+                futures.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            final int number = pageNumber;
+            //trailing pages only make the result more complete, they are the first thing dropped when
+            //quota is low or the API is failing
+            CompletableFuture<FoodQuery> page = client.trySendAsync(
+                    pageRequest(search, pageNumber, pageSize).toHttpRequest(), response -> {
+                        FoodQuery foodQuery = parsePage(response);
+                        foodCache.submitPage(query, number, pageSizeOf(foodQuery, pageSize), foodQuery);
+                        return foodQuery;
+                    });
+            if (page == null) {
+                break;
+            }
+            futures.add(page);
+        }
+
+        for (var future : futures) {
+            FoodQuery page;
+            try {
+                page = future.get();
+            } catch (InterruptedException e) {
+                throw new HttpRequestException("Future thread was interrupted while waiting", e);
+            } catch (ExecutionException e) {
+                //the pages before the failed one are still a useful answer, and they are cached for the retry
+                break;
+            }
+            fetched.add(page);
+            result.addAll(page.getFoods());
+            pages.accept(page.getFoods());
+        }
+
+        //the foods of the pages may be cached and serialized by other threads, they are tagged as copies
+        if (fetched.size() < neededPages) {
+            //a partial result must not become the cached answer for the query, its foods are cached by id only
+            List<Food> untagged = result.stream().map(food -> food.withQuery(null)).toList();
+            foodCache.submitAll(untagged);
+            return new ResultData(ResultData.STATUS_OK, untagged, String.format(
+                    "Partial result, %d of %d pages were fetched because the API is unavailable or its quota is low",
+                    fetched.size(), neededPages));
         }
+        List<Food> tagged = new ArrayList<>(result.size());
+        for (FoodQuery page : fetched) {
+            tagged.addAll(page.getFoodsOfQuery());
+        }
+        //the complete result replaces the one cached for the query, foods the API dropped are left out of it
+        foodCache.submitResult(firstPage.getFoodSearchCriteria().getQuery(), tagged);
+        return new ResultData(ResultData.STATUS_OK, tagged);
+    }
+
+    //Fetches only the pages that overlap the requested window. Every page is cached as soon as it
+    //arrives, its foods by id only, since a window is not the whole result of its query.
+    private ResultData fetchWindow() throws InvalidRequestException {
+        Request window = clientRequest;
+        String query = window.getNormalizedKeywords();
+        PagePlan plan = PagePlanner.plan(window.getOffset(), window.getLimit(),
+                PagePlanner.UNKNOWN_TOTAL_HITS, remainingBudget());
 
-        foodQuery.setKeywords();
-        List<Food> result = new ArrayList<>(foodQuery.getFoods());
+        FoodQuery first = getFreshPage(query, plan.firstPage(), plan.pageSize());
+        boolean firstPaid = first == null;
+        if (firstPaid) {
+            first = fetchPage(window, plan.firstPage(), plan.pageSize());
+        }
+        int pageSize = first == null ? plan.pageSize() : pageSizeOf(first, plan.pageSize());
+        if (first != null && pageSize != plan.pageSize() && firstPageOf(window, pageSize) != plan.firstPage()) {
+            //the API answered with another page size than planned, the window starts on another page of it
+            int firstPage = firstPageOf(window, pageSize);
+            first = getFreshPage(query, firstPage, pageSize);
+            firstPaid = first == null;
+            if (firstPaid) {
+                first = fetchPage(window, firstPage, pageSize);
+            }
+        }
+        if (first == null || first.getTotalHits() == 0) {
+            return null;
+        }
 
+        //the budget counts the first page again only if it was just paid for
+        plan = PagePlanner.plan(pageSize, window.getOffset(), window.getLimit(), first.getTotalHits(),
+                remainingBudget() + (firstPaid ? 1 : 0));
         List<CompletableFuture<FoodQuery>> futures = new ArrayList<>();
-        int currPage = foodQuery.getCurrentPage();
-        int totalPages = foodQuery.getTotalPages();
-
-        while (currPage < totalPages && currPage < MAX_PAGE_COUNT) {
-            clientRequest = Request.newRequestBuilder()
-                    .setKeywords(clientRequest.getKeywords())
-                    .setPageNumber(++currPage)
-                    .build();
-
-            futures.add(client.sendAsync(clientRequest.toHttpRequest(), HttpResponse.BodyHandlers.ofString())
-                    .thenApply(future -> {
-                        if (future.statusCode() != OK) {
-                            //404 and 400 shouldn't be returned here
-                            throw new HttpRequestException(String.format("%d Unknown HTTP request error", future.statusCode()));
-                        }
-                        FoodQuery query = gson.fromJson(future.body(), FoodQuery.class);
-                        query.setKeywords();
-                        return query;
-                    }));
-        }
-
-        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        futures.add(CompletableFuture.completedFuture(first));
+        int lastPage = Math.min(plan.lastPage(), first.getTotalPages());
+        for (int pageNumber = plan.firstPage() + 1; pageNumber <= lastPage; pageNumber++) {
+            FoodQuery cached = getFreshPage(query, pageNumber, pageSize);
+            if (cached != null) {
+                futures.add(CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            final int number = pageNumber;
+            futures.add(client.sendAsync(pageRequest(window, pageNumber, pageSize).toHttpRequest(), response -> {
+                FoodQuery page = parsePage(response);
+                foodCache.submitPage(query, number, pageSizeOf(page, pageSize), page);
+                foodCache.submitAll(page.getFoods());
+                return page;
+            }));
+        }
+
+        List<FoodQuery> pages = new ArrayList<>();
         for (var future : futures) {
             try {
-                result.addAll(future.get().getFoods());
+                pages.add(future.get());
             } catch (InterruptedException e) {
                 throw new HttpRequestException("Future thread was interrupted while waiting", e);
             } catch (ExecutionException e) {
                 throw new HttpRequestException("Future thread completed exceptionally", e);
             }
         }
-        foodCache.submitAll(result);
-        return new ResultData(ResultData.STATUS_OK, result);
+        return toWindow(window, pages, pageSize);
+    }
+
+    /**
+     * @return the page from the API, null if the API doesn't know the search
+     */
+    private FoodQuery fetchPage(Request window, int pageNumber, int pageSize) throws InvalidRequestException {
+        String query = window.getNormalizedKeywords();
+        HttpResponse<String> response = fetch(pageRequest(window, pageNumber, pageSize));
+        if (response == null) {
+            return null;
+        }
+        FoodQuery page = gson.fromJson(response.body(), FoodQuery.class);
+        foodCache.submitPage(query, pageNumber, pageSizeOf(page, pageSize), page);
+        foodCache.submitAll(page.getFoods());
+        return page;
+    }
+
+    //pages that are due for a refresh are fetched again, so a refresh doesn't reassemble the old result
+    private FoodQuery getFreshPage(String query, int pageNumber, int pageSize) {
+        FoodQuery page = foodCache.getPage(query, pageNumber, pageSize);
+        if (page == null || refresher == null) {
+            return page;
+        }
+        return refresher.freshness(SearchCriteria.BY_KEYWORDS, page.getCachedAt()) == CacheRefresher.Freshness.FRESH
+                ? page
+                : null;
+    }
+
+    private FoodQuery parsePage(HttpResponse<String> response) {
+        if (response.statusCode() != OK) {
+            //404 and 400 shouldn't be returned here
+            throw new HttpRequestException(String.format("%d Unknown HTTP request error", response.statusCode()));
+        }
+        return gson.fromJson(response.body(), FoodQuery.class);
+    }
+
+    //upstream requests the hourly quota can still pay for
+    private long remainingBudget() {
+        RateLimiter rateLimiter = client.getRateLimiter();
+        return rateLimiter == null ? PagePlanner.UNLIMITED_BUDGET : rateLimiter.getAvailableTokens();
+    }
+
+    private static Request pageRequest(Request search, int pageNumber, int pageSize) throws InvalidRequestException {
+        return Request.newRequestBuilder()
+                .setKeywords(search.getKeywords())
+                .setPageNumber(pageNumber)
+                .setPageSize(pageSize)
+                .build();
+    }
+
+    //the API may answer with another page size than it was asked for, the pages are numbered by the answer
+    private static int pageSizeOf(FoodQuery page, int requestedPageSize) {
+        FoodSearchCriteria criteria = page.getFoodSearchCriteria();
+        if (criteria == null || criteria.getPageSize() == null || criteria.getPageSize() <= 0) {
+            return requestedPageSize;
+        }
+        return criteria.getPageSize();
     }
 
-    private ResultData getFromCache() {
+    private static int firstPageOf(Request window, int pageSize) {
+        return window.getOffset() / pageSize + 1;
+    }
+
+    /**
+     * Cuts the window out of the consecutive pages that contain it.
+     */
+    private static ResultData toWindow(Request window, List<FoodQuery> pages, int pageSize) {
+        List<Food> foods = new ArrayList<>();
+        for (FoodQuery page : pages) {
+            foods.addAll(page.getFoods());
+        }
+        int skip = window.getOffset() - (firstPageOf(window, pageSize) - 1) * pageSize;
+        List<Food> result = new ArrayList<>(foods.subList(Math.min(skip, foods.size()),
+                Math.min(skip + window.getLimit(), foods.size())));
+
+        //a window cut short by the quota continues where it stopped
+        int nextOffset = window.getOffset() + result.size();
+        boolean hasMore = !result.isEmpty() && nextOffset < pages.get(0).getTotalHits();
+        return new ResultData(ResultData.STATUS_OK, result).withNextCursor(hasMore ? Request.encodeCursor(nextOffset) : null);
+    }
+
+    //A window can be cut out of cached pages of any size, e.g. a small window out of the pages of a
+    //bigger one or of an unwindowed search.
+    private static ResultData getWindowFromCache(FoodCache foodCache, Request window) {
+        for (int pageSize : foodCache.getPageSizes(window.getNormalizedKeywords())) {
+            List<FoodQuery> pages = getCachedPages(foodCache, window.getNormalizedKeywords(), pageSize,
+                    window.getOffset(), window.getLimit());
+            if (pages != null) {
+                return pages.get(0).getTotalHits() == 0 ? null : toWindow(window, pages, pageSize);
+            }
+        }
+        return null;
+    }
+
+    //A query whose whole result isn't cached can still have all of its pages cached, e.g. after a
+    //partial result was completed by a later request or after windows covered every page.
+    private static ResultData getAllPagesFromCache(FoodCache foodCache, Request search) {
+        for (int pageSize : foodCache.getPageSizes(search.getNormalizedKeywords())) {
+            List<FoodQuery> pages = getCachedPages(foodCache, search.getNormalizedKeywords(), pageSize, 0, MAX_RESULTS);
+            if (pages != null) {
+                if (pages.get(0).getTotalHits() == 0) {
+                    return null;
+                }
+                List<Food> result = new ArrayList<>();
+                for (FoodQuery page : pages) {
+                    result.addAll(page.getFoods());
+                }
+                return new ResultData(ResultData.STATUS_OK, result);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the cached pages of the given size that cover the window or null if any of them is missing
+     */
+    private static List<FoodQuery> getCachedPages(FoodCache foodCache, String query, int pageSize, int offset, int limit) {
+        int firstPage = offset / pageSize + 1;
+        FoodQuery first = foodCache.getPage(query, firstPage, pageSize);
+        if (first == null) {
+            return null;
+        }
+        List<FoodQuery> pages = new ArrayList<>();
+        pages.add(first);
+        PagePlan plan = PagePlanner.plan(pageSize, offset, limit, first.getTotalHits(), PagePlanner.UNLIMITED_BUDGET);
+        int lastPage = Math.min(plan.lastPage(), first.getTotalPages());
+        for (int pageNumber = firstPage + 1; pageNumber <= lastPage; pageNumber++) {
+            FoodQuery page = foodCache.getPage(query, pageNumber, pageSize);
+            if (page == null) {
+                return null;
+            }
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    private String quotaStatus() {
+        RateLimiter rateLimiter = client.getRateLimiter();
+        if (rateLimiter == null) {
+            return "API requests are not rate limited";
+        }
+        return String.format("%d of %d API requests per hour available, %d sent, %d low priority requests dropped",
+                rateLimiter.getAvailableTokens(), rateLimiter.getCapacity(),
+                rateLimiter.getGrantedCount(), rateLimiter.getRejectedCount());
+    }
+
+    private String cacheStatus() {
+        return switch (foodCache.getWarmUp()) {
+            case WARM -> String.format("Cache is warm, %d foods cached", foodCache.getSize());
+            case LOADING -> String.format("Cache is warming up, %d%% of the cache file loaded, %d foods cached",
+                    foodCache.getWarmUpPercent(), foodCache.getSize());
+            case FAILED -> String.format("Cache warm-up failed after %d foods, searches go to the API",
+                    foodCache.getSize());
+        };
+    }
+
+    /**
+     * Looks the request up in the cache only, and lets the refresher decide whether the hit is fresh
+     * enough to be served. A hit that is due for a refresh is served and refreshed in the background.
+     *
+     * @param refresher null if cached entries never expire
+     * @return the cached result or null if the request has to be fetched
+     */
+    public static ResultData getFromCache(FoodCache foodCache, CacheRefresher refresher, Request clientRequest) {
+        ResultData cached = getFromCache(foodCache, clientRequest);
+        return refresher == null ? cached : refresher.serve(clientRequest, cached);
+    }
+
+    /**
+     * Looks the request up in the cache only, without ever calling the API.
+     *
+     * @return the cached result or null on a cache miss
+     */
+    public static ResultData getFromCache(FoodCache foodCache, Request clientRequest) {
         switch (clientRequest.getSearchCriteria()) {
             case BY_FDCID -> {
                 return foodCache.getByFdcId(clientRequest.getFdcId());
@@ -158,7 +691,11 @@ public class RequestHandler {
                 return foodCache.getByGtinUpc(clientRequest.getGtinUpc());
             }
             case BY_KEYWORDS -> {
-                return foodCache.getByKeywords(String.join(SEPARATOR, clientRequest.getKeywords()));
+                if (clientRequest.isWindowed()) {
+                    return getWindowFromCache(foodCache, clientRequest);
+                }
+                ResultData cached = foodCache.getByKeywords(String.join(SEPARATOR, clientRequest.getKeywords()));
+                return cached != null ? cached : getAllPagesFromCache(foodCache, clientRequest);
             }
             default -> {
                 return null;
@@ -166,14 +703,14 @@ public class RequestHandler {
         }
     }
 
-    private Request parseRequest(String request) throws InvalidRequestException {
+    public static Request parseRequest(String request) throws InvalidRequestException {
         String[] tokens = request.split(SEPARATOR);
+        if (tokens.length <= KEY_INDEX) {
+            throw new InvalidRequestException(String.format("Missing search key in request \"%s\"", request));
+        }
         Request.RequestBuilder builder = Request.newRequestBuilder();
         switch (tokens[COMMAND_INDEX]) {
-            case GET_FOOD -> {
-                List<String> keywords = new ArrayList<>(Arrays.asList(tokens).subList(KEY_INDEX, tokens.length));
-                builder.setKeywords(keywords);
-            }
+            case GET_FOOD, STREAM_FOOD -> parseKeywords(builder, Arrays.asList(tokens).subList(KEY_INDEX, tokens.length));
             case GET_FOOD_REPORT -> {
                 try {
                     builder.setFdcId(Integer.parseInt(tokens[KEY_INDEX]));
@@ -186,6 +723,33 @@ public class RequestHandler {
         return builder.build();
     }
 
+    //keywords may be mixed with the --limit= and --cursor= parameters of a windowed request
+    private static void parseKeywords(Request.RequestBuilder builder, List<String> tokens) throws InvalidRequestException {
+        List<String> keywords = new ArrayList<>();
+        Integer limit = null;
+        Integer offset = null;
+        for (String token : tokens) {
+            if (token.startsWith(LIMIT_PARAMETER)) {
+                try {
+                    limit = Integer.parseInt(token.substring(LIMIT_PARAMETER.length()));
+                } catch (NumberFormatException e) {
+                    throw new InvalidRequestException("Invalid limit", e);
+                }
+            } else if (token.startsWith(CURSOR_PARAMETER)) {
+                offset = Request.decodeCursor(token.substring(CURSOR_PARAMETER.length()));
+            } else {
+                keywords.add(token);
+            }
+        }
+        if (limit != null && limit == 0) {
+            throw new InvalidRequestException("Limit must be positive");
+        }
+        builder.setKeywords(keywords);
+        if (limit != null || offset != null) {
+            builder.setWindow(limit == null ? DEFAULT_LIMIT : limit, offset == null ? 0 : offset);
+        }
+    }
+
     private void checkNull(Object object, String name) {
         if (object == null) {
             throw new IllegalArgumentException(String.format("%s can't be null", name));
@@ -0,0 +1,57 @@
+package bg.sofia.uni.fmi.mjt.result;
+
+import bg.sofia.uni.fmi.mjt.json.Food;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+//The answer for a single id or barcode of a batch command. Every item has its own status, one
+//item that isn't found or fails doesn't fail the rest of the batch.
+public class BatchItem {
+    @Expose
+    @SerializedName("key")
+    private String key;
+
+    @Expose
+    @SerializedName("status")
+    private String status;
+
+    @Expose
+    @SerializedName("food")
+    private Food food;
+
+    @Expose
+    @SerializedName("message")
+    private String message;
+
+    public BatchItem(String key, Food food) {
+        this.key = key;
+        this.status = ResultData.STATUS_OK;
+        this.food = food;
+    }
+
+    public BatchItem(String key, String errorMessage) {
+        this.key = key;
+        this.status = ResultData.STATUS_ERROR;
+        this.message = errorMessage;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Food getFood() {
+        return food;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isFound() {
+        return food != null;
+    }
+}
@@ -9,6 +9,9 @@ import java.util.List;
 public class ResultData {
     public static final String STATUS_OK = "OK";
     public static final String STATUS_ERROR = "ERROR";
+    //frames of a streamed response: any number of PARTIAL frames, then END or ERROR
+    public static final String STATUS_PARTIAL = "PARTIAL";
+    public static final String STATUS_END = "END";
     @Expose
     @SerializedName("status")
     private String status;
@@ -25,6 +28,16 @@ public class ResultData {
     @SerializedName("food")
     private Food food;
 
+    //cursor of the next window of results, null for the last window and for requests without a window
+    @Expose
+    @SerializedName("nextCursor")
+    private String nextCursor;
+
+    //per-item results of a batch command, in the order the items were requested
+    @Expose
+    @SerializedName("items")
+    private List<BatchItem> items;
+
 
     public ResultData(String status, String message) {
         this.status = status;
@@ -43,6 +56,22 @@ public class ResultData {
         this.foods = foods;
     }
 
+    public ResultData(String status, List<Food> foods, String message) {
+        this.status = status;
+        this.foods = foods;
+        this.message = message;
+    }
+
+
+    public ResultData withNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+        return this;
+    }
+
+    public ResultData withItems(List<BatchItem> items) {
+        this.items = items;
+        return this;
+    }
 
     public String getStatus() {
         return status;
@@ -60,5 +89,13 @@ public class ResultData {
         return foods;
     }
 
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public List<BatchItem> getItems() {
+        return items;
+    }
+
 
 }
@@ -0,0 +1,80 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Direct buffers for responses, grouped in a few size classes. Buffers are leased by the thread that
+//encodes a response and released by the selector thread once the response is written, so both
+//operations are thread safe. A pool never keeps more than MAX_RETAINED_BUFFERS free buffers per class,
+//anything above that is left to the garbage collector.
+public class BufferPool {
+    public static final int SMALL_BUFFER_SIZE = 1024 * 4;
+    public static final int MEDIUM_BUFFER_SIZE = 1024 * 16;
+    public static final int LARGE_BUFFER_SIZE = 1024 * 64;
+
+    private static final int[] SIZE_CLASSES = {SMALL_BUFFER_SIZE, MEDIUM_BUFFER_SIZE, LARGE_BUFFER_SIZE};
+    private static final int[] MAX_RETAINED_BUFFERS = {1024, 256, 64};
+
+    private final Queue<ByteBuffer>[] freeBuffers;
+    private final AtomicInteger[] freeCounts;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        freeBuffers = new Queue[SIZE_CLASSES.length];
+        freeCounts = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            freeBuffers[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Leases a cleared buffer of the smallest size class that fits the requested size.
+     * Requests bigger than the largest class get a buffer of the largest class.
+     */
+    public ByteBuffer lease(int size) {
+        int sizeClass = sizeClassOf(size);
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+        }
+        freeCounts[sizeClass].decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Buffer can't be null");
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (buffer.capacity() == SIZE_CLASSES[i] && buffer.isDirect()) {
+                if (freeCounts[i].incrementAndGet() <= MAX_RETAINED_BUFFERS[i]) {
+                    freeBuffers[i].add(buffer);
+                } else {
+                    freeCounts[i].decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    public int getFreeBuffersCount() {
+        int count = 0;
+        for (AtomicInteger freeCount : freeCounts) {
+            count += freeCount.get();
+        }
+        return count;
+    }
+
+    private int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+}
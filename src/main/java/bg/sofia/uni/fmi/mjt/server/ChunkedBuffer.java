@@ -0,0 +1,128 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+//A response made of pooled buffers. It grows by leasing another chunk instead of copying, every
+//new chunk is taken from the next bigger size class. Not thread safe, a buffer is filled by one
+//thread and then handed over to the selector thread that writes it.
+public class ChunkedBuffer {
+    private final BufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private ByteBuffer current;
+    private int firstUnwritten;
+    private long size;
+    private boolean flipped;
+
+    public ChunkedBuffer(BufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Buffer pool can't be null");
+        }
+        this.pool = pool;
+    }
+
+    public void put(byte[] src) {
+        put(src, 0, src.length);
+    }
+
+    public void put(byte[] src, int offset, int length) {
+        checkNotFlipped();
+        while (length > 0) {
+            ensureSpace();
+            int n = Math.min(length, current.remaining());
+            current.put(src, offset, n);
+            offset += n;
+            length -= n;
+            size += n;
+        }
+    }
+
+    public void put(byte b) {
+        checkNotFlipped();
+        ensureSpace();
+        current.put(b);
+        size++;
+    }
+
+    private void ensureSpace() {
+        if (current == null || !current.hasRemaining()) {
+            int nextSize = switch (chunks.size()) {
+                case 0 -> BufferPool.SMALL_BUFFER_SIZE;
+                case 1 -> BufferPool.MEDIUM_BUFFER_SIZE;
+                default -> BufferPool.LARGE_BUFFER_SIZE;
+            };
+            current = pool.lease(nextSize);
+            chunks.add(current);
+        }
+    }
+
+    private void checkNotFlipped() {
+        if (flipped) {
+            throw new IllegalStateException("Cannot put into a buffer that is being written");
+        }
+    }
+
+    /**
+     * Prepares the chunks for writing. Nothing can be put afterwards.
+     */
+    public void flip() {
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+        }
+        flipped = true;
+    }
+
+    /**
+     * Writes as much as the channel accepts with a single gathering write.
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        while (firstUnwritten < chunks.size() && !chunks.get(firstUnwritten).hasRemaining()) {
+            firstUnwritten++;
+        }
+        if (firstUnwritten == chunks.size()) {
+            return 0;
+        }
+        ByteBuffer[] buffers = chunks.toArray(ByteBuffer[]::new);
+        return channel.write(buffers, firstUnwritten, buffers.length - firstUnwritten);
+    }
+
+    /**
+     * Adds the chunks that still have data to write, so that several responses can be written
+     * with one gathering write.
+     */
+    public void collectRemaining(List<ByteBuffer> buffers) {
+        for (int i = firstUnwritten; i < chunks.size(); i++) {
+            if (chunks.get(i).hasRemaining()) {
+                buffers.add(chunks.get(i));
+            }
+        }
+    }
+
+    public boolean hasRemaining() {
+        for (int i = firstUnwritten; i < chunks.size(); i++) {
+            if (chunks.get(i).hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns all chunks to the pool. The buffer must not be used afterwards.
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+}
@@ -0,0 +1,180 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+//State of a single client connection. Every method is called only by the selector thread that owns
+//the connection, so nothing here has to be synchronized.
+class Connection {
+    private static final int INITIAL_READ_BUFFER_SIZE = 512;
+    private static final int MAX_REQUEST_SIZE = 1024 * 8;
+    private static final int MAX_PENDING_REQUESTS = 64;
+    private static final int MAX_IN_FLIGHT_REQUESTS = 64;
+
+    private static final byte NEW_LINE = '\n';
+    private static final String CARRIAGE_RETURN = "\r";
+
+    private final SocketChannel channel;
+    private final SelectorThread selectorThread;
+    private SelectionKey key;
+
+    //bytes that have been read but don't form a complete request yet
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private int scannedBytes;
+
+    //framed requests that wait for a free in-flight slot
+    private final Queue<String> requests = new ArrayDeque<>();
+    //dispatched requests in the order their responses must be written
+    private final Queue<ResponseSlot> inFlight = new ArrayDeque<>();
+
+    Connection(SocketChannel channel, SelectorThread selectorThread) {
+        this.channel = channel;
+        this.selectorThread = selectorThread;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectorThread getSelectorThread() {
+        return selectorThread;
+    }
+
+    boolean isOpen() {
+        return key != null && key.isValid();
+    }
+
+    /**
+     * Reads whatever is available on the channel and splits it into newline terminated requests.
+     *
+     * @return false if the client has closed the connection
+     * @throws IOException if reading fails or a request exceeds the maximum request size
+     */
+    boolean read() throws IOException {
+        if (!readBuffer.hasRemaining()) {
+            growReadBuffer();
+        }
+        int r = channel.read(readBuffer);
+        if (r < 0) {
+            return false;
+        }
+        frameRequests();
+        return true;
+    }
+
+    private void frameRequests() {
+        readBuffer.flip();
+        int start = 0;
+        for (int i = scannedBytes; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) == NEW_LINE) {
+                addRequest(start, i);
+                start = i + 1;
+            }
+        }
+        scannedBytes = readBuffer.limit() - start;
+        readBuffer.position(start);
+        readBuffer.compact();
+    }
+
+    private void addRequest(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        readBuffer.get(start, bytes);
+        String request = new String(bytes, StandardCharsets.UTF_8).replace(CARRIAGE_RETURN, "");
+        if (!request.isBlank()) {
+            requests.add(request);
+        }
+    }
+
+    private void growReadBuffer() throws IOException {
+        if (readBuffer.capacity() >= MAX_REQUEST_SIZE) {
+            throw new IOException("Request exceeds the maximum request size");
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_REQUEST_SIZE));
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    /**
+     * Takes the next framed request and reserves its place in the response order.
+     *
+     * @return the reserved slot or null if there is no request or too many requests are in flight
+     */
+    ResponseSlot nextRequest() {
+        if (requests.isEmpty() || inFlight.size() >= MAX_IN_FLIGHT_REQUESTS) {
+            return null;
+        }
+        ResponseSlot slot = new ResponseSlot(requests.poll());
+        inFlight.add(slot);
+        return slot;
+    }
+
+    /**
+     * Writes the responses at the head of the response order with a single gathering write,
+     * stopping after the first response that isn't complete yet, whose frames so far are written too.
+     */
+    void write() throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (ResponseSlot slot : inFlight) {
+            //read before collecting, a slot completed in between may have frames that weren't collected
+            boolean complete = slot.isComplete();
+            slot.collectRemaining(buffers);
+            if (!complete) {
+                break;
+            }
+        }
+        if (buffers.isEmpty()) {
+            return;
+        }
+        channel.write(buffers.toArray(ByteBuffer[]::new));
+
+        ResponseSlot head;
+        while ((head = inFlight.peek()) != null) {
+            boolean complete = head.isComplete();
+            head.releaseWritten();
+            if (!complete || head.hasFrames()) {
+                break;
+            }
+            inFlight.poll();
+        }
+    }
+
+    void updateInterestOps() {
+        if (!isOpen()) {
+            return;
+        }
+        int ops = 0;
+        //stop reading from clients that send requests faster than we can answer them
+        if (requests.size() < MAX_PENDING_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        ResponseSlot head = inFlight.peek();
+        if (head != null && head.hasFrames()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    void close() {
+        if (key != null) {
+            key.cancel();
+        }
+        //frames added after this point are simply dropped, their buffers go to the garbage collector
+        for (ResponseSlot slot : inFlight) {
+            slot.release();
+        }
+        inFlight.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //the connection is discarded anyway
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum ExecutionMode {
+    //a fixed pool of platform threads, a worker blocked on the API holds one of them
+    PLATFORM,
+    //every worker gets its own virtual thread, needs Java 21 at runtime
+    VIRTUAL;
+
+    /**
+     * Creates the executor the food workers run on.
+     *
+     * @param platformThreads size of the pool in platform mode
+     * @throws UnsupportedOperationException if virtual threads aren't available on the running JVM
+     */
+    public ExecutorService newExecutor(int platformThreads) {
+        if (this == PLATFORM) {
+            return Executors.newFixedThreadPool(platformThreads);
+        }
+        //looked up reflectively so that the project still compiles with the Java 17 toolchain
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+}
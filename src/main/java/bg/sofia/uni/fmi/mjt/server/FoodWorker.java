@@ -1,28 +1,25 @@
 package bg.sofia.uni.fmi.mjt.server;
 
-import bg.sofia.uni.fmi.mjt.cache.FoodCache;
+import bg.sofia.uni.fmi.mjt.exceptions.CircuitOpenException;
 import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
 import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.QuotaExceededException;
 import bg.sofia.uni.fmi.mjt.logger.Level;
 import bg.sofia.uni.fmi.mjt.logger.Logger;
 import bg.sofia.uni.fmi.mjt.requests.RequestHandler;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
-import com.google.gson.Gson;
 
-import java.net.http.HttpClient;
 import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 public class FoodWorker implements Runnable {
 
-    private final SelectionKey key;
-    private final String request;
-    private final Gson gson = new Gson();
+    private final Connection connection;
+    private final ResponseSlot slot;
 
-    private final FoodCache cache;
+    private final Supplier<RequestHandler> requestHandlers;
+    private final ResponseEncoder encoder;
     private final Logger logger;
 
 
@@ -32,31 +29,52 @@ public class FoodWorker implements Runnable {
     private static final ResultData FOOD_NOT_FOUND_RESULT_DATA = new ResultData(ResultData.STATUS_ERROR,
             "No results were found matching request");
 
+    private static final ResultData QUOTA_EXCEEDED_RESULT_DATA = new ResultData(ResultData.STATUS_ERROR,
+            "The API request quota is used up, please try again later");
+
+    private static final ResultData API_UNAVAILABLE_RESULT_DATA = new ResultData(ResultData.STATUS_ERROR,
+            "The food database is unavailable at the moment, please try again later");
+
     private static final ResultData RESULT_DATA_TOO_BIG = new ResultData(ResultData.STATUS_ERROR,
             "Result data is too big");
 
-    public FoodWorker(SelectionKey selectionKey, byte[] input, FoodCache cache, Logger logger) {
-        this.key = selectionKey;
-        this.request = new String(input, StandardCharsets.UTF_8).replace("\r", "").replace("\n", "");
-        this.cache = cache;
+    FoodWorker(Connection connection, ResponseSlot slot, Supplier<RequestHandler> requestHandlers,
+               ResponseEncoder encoder, Logger logger) {
+        this.connection = connection;
+        this.slot = slot;
+        this.requestHandlers = requestHandlers;
+        this.encoder = encoder;
         this.logger = logger;
     }
 
     private void putInBuffer(ResultData resultData) {
-        ByteBuffer buffer = (ByteBuffer) key.attachment();
-        buffer.clear();
-        byte[] data = (gson.toJson(resultData) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
-        buffer.put(data);
-        buffer.flip();
+        slot.complete(encoder.encode(resultData));
+    }
+
+    //a frame of a streamed response is written right away, without waiting for the rest of the response
+    private void sendFrame(ResultData frame) {
+        slot.append(encoder.encode(frame));
+        connection.getSelectorThread().responseReady(connection);
     }
 
     @Override
     public void run() {
         try {
-            RequestHandler requestHandler = new RequestHandler(HttpClient.newHttpClient(), cache);
-            ResultData res = requestHandler.fetchFood(request);
+            RequestHandler requestHandler = requestHandlers.get();
+            ResultData res = RequestHandler.isStreamRequest(slot.getRequest())
+                    ? requestHandler.streamFood(slot.getRequest(), this::sendFrame)
+                    : requestHandler.fetchFood(slot.getRequest());
+            //ERROR results also end a streamed response
             putInBuffer(Objects.requireNonNullElse(res, FOOD_NOT_FOUND_RESULT_DATA));
 
+        } catch (CircuitOpenException e) {
+            //expected while the API is down, logging every rejected request would flood the log
+            putInBuffer(API_UNAVAILABLE_RESULT_DATA);
+
+        } catch (QuotaExceededException e) {
+            logger.log(Level.WARN, e);
+            putInBuffer(QUOTA_EXCEEDED_RESULT_DATA);
+
         } catch (HttpRequestException | InvalidRequestException e) {
             logger.log(Level.WARN, e);
             putInBuffer(SERVER_ERROR_RESULT_DATA);
@@ -66,11 +84,12 @@ public class FoodWorker implements Runnable {
             putInBuffer(RESULT_DATA_TOO_BIG);
             logger.log(Level.WARN, e);
             System.err.println("Buffer overflow");
+        } catch (RuntimeException e) {
+            //every framed request must be answered, otherwise the requests queued behind it are stuck
+            logger.log(Level.WARN, e);
+            putInBuffer(SERVER_ERROR_RESULT_DATA);
         } finally {
-            if (key.isValid()) {
-                key.interestOps(SelectionKey.OP_WRITE);
-                key.selector().wakeup();
-            }
+            connection.getSelectorThread().responseReady(connection);
         }
 
     }
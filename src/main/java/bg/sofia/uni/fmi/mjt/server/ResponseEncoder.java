@@ -0,0 +1,48 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+
+//Turns results into the bytes of a newline terminated response. Shared by the workers and
+//by the selector threads, which answer cache hits themselves.
+public class ResponseEncoder {
+    //a safety net only, responses of any realistic size fit
+    private static final int MAX_RESPONSE_SIZE = 1024 * 1024 * 64;
+    private static final Gson GSON = new Gson();
+
+    private final BufferPool pool;
+
+    public ResponseEncoder(BufferPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Buffer pool can't be null");
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * @return a flipped buffer ready to be written, it must be released once written
+     * @throws BufferOverflowException if the encoded result is bigger than the maximum response size
+     */
+    public ChunkedBuffer encode(ResultData resultData) {
+        ChunkedBuffer buffer = new ChunkedBuffer(pool);
+        try (Utf8ChunkWriter writer = new Utf8ChunkWriter(buffer, MAX_RESPONSE_SIZE)) {
+            //newJsonWriter applies the same settings toJson(Object) would, so the output is unchanged
+            JsonWriter jsonWriter = GSON.newJsonWriter(writer);
+            GSON.toJson(resultData, ResultData.class, jsonWriter);
+            writer.write(System.lineSeparator());
+        } catch (IOException e) {
+            buffer.release();
+            throw new JsonIOException(e);
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
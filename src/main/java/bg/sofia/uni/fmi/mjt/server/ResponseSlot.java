@@ -0,0 +1,70 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//Place of a single request in its connection's response order. Workers may complete slots
+//in any order, but the selector thread only writes a slot once every slot before it is written.
+//A response is one or more frames: a streamed response appends frames while it is being
+//produced and the frames are written as soon as the slot reaches the head of the order.
+class ResponseSlot {
+    private final String request;
+    private final Queue<ChunkedBuffer> frames = new ConcurrentLinkedQueue<>();
+    private volatile boolean complete;
+
+    ResponseSlot(String request) {
+        this.request = request;
+    }
+
+    String getRequest() {
+        return request;
+    }
+
+    /**
+     * Adds a frame of a response that isn't complete yet.
+     */
+    void append(ChunkedBuffer frame) {
+        frames.add(frame);
+    }
+
+    /**
+     * Adds the last frame of the response.
+     */
+    void complete(ChunkedBuffer lastFrame) {
+        frames.add(lastFrame);
+        complete = true;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean hasFrames() {
+        return !frames.isEmpty();
+    }
+
+    void collectRemaining(List<ByteBuffer> buffers) {
+        for (ChunkedBuffer frame : frames) {
+            frame.collectRemaining(buffers);
+        }
+    }
+
+    /**
+     * Releases the frames at the front that have been written completely.
+     */
+    void releaseWritten() {
+        ChunkedBuffer frame;
+        while ((frame = frames.peek()) != null && !frame.hasRemaining()) {
+            frames.poll().release();
+        }
+    }
+
+    void release() {
+        ChunkedBuffer frame;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+        }
+    }
+}
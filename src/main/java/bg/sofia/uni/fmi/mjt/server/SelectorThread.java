@@ -0,0 +1,193 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import bg.sofia.uni.fmi.mjt.cache.FoodCache;
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.ServerException;
+import bg.sofia.uni.fmi.mjt.logger.Level;
+import bg.sofia.uni.fmi.mjt.logger.Logger;
+import bg.sofia.uni.fmi.mjt.requests.CacheRefresher;
+import bg.sofia.uni.fmi.mjt.requests.RequestHandler;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+//One of the server's reactors. The accept thread hands it new connections and from then on
+//all reads, writes and interest changes of those connections happen on this thread only.
+public class SelectorThread extends Thread {
+    private final Selector selector;
+    private final ExecutorService executorService;
+    private final FoodCache cache;
+    //null when cached entries never expire
+    private final CacheRefresher refresher;
+    private final Supplier<RequestHandler> requestHandlers;
+    private final ResponseEncoder encoder;
+    private final Logger logger;
+
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    public SelectorThread(ExecutorService executorService, FoodCache cache, CacheRefresher refresher,
+                          Supplier<RequestHandler> requestHandlers, ResponseEncoder encoder, Logger logger)
+            throws IOException {
+        this.selector = Selector.open();
+        this.executorService = executorService;
+        this.cache = cache;
+        this.refresher = refresher;
+        this.requestHandlers = requestHandlers;
+        this.encoder = encoder;
+        this.logger = logger;
+    }
+
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on this selector thread. Used by workers to hand results back to their connection.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPendingChannels();
+                runTasks();
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    handle(key);
+                }
+            }
+            closeConnections();
+        } catch (IOException e) {
+            logger.log(Level.FATAL, e);
+            throw new ServerException("Fatal selector error occurred", e);
+        }
+    }
+
+    /**
+     * Called by a worker once it has completed a response slot of the connection.
+     */
+    public void responseReady(Connection connection) {
+        execute(() -> process(connection));
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable() && !connection.read()) {
+                connection.close();
+                return;
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARN, e);
+            connection.close();
+            return;
+        }
+        process(connection);
+    }
+
+    private void process(Connection connection) {
+        if (!connection.isOpen()) {
+            return;
+        }
+        try {
+            dispatch(connection);
+            connection.write();
+            //the write may have freed in-flight slots for requests that are still waiting
+            dispatch(connection);
+            connection.updateInterestOps();
+        } catch (IOException e) {
+            logger.log(Level.WARN, e);
+            connection.close();
+        }
+    }
+
+    private void dispatch(Connection connection) {
+        ResponseSlot slot;
+        while ((slot = connection.nextRequest()) != null) {
+            if (!answerFromCache(slot)) {
+                executorService.execute(new FoodWorker(connection, slot, requestHandlers, encoder, logger));
+            }
+        }
+    }
+
+    //Cache hits are answered right here, which saves the hand-off to a worker and the wakeup of this
+    //selector when the worker is done. Anything unusual, including errors and expired hits, is left to the worker.
+    private boolean answerFromCache(ResponseSlot slot) {
+        try {
+            ResultData cached = RequestHandler.getFromCache(cache, refresher,
+                    RequestHandler.parseRequest(slot.getRequest()));
+            if (cached == null) {
+                return false;
+            }
+            if (RequestHandler.isStreamRequest(slot.getRequest())) {
+                ChunkedBuffer foods = encoder.encode(new ResultData(ResultData.STATUS_PARTIAL, cached.getFoods()));
+                ChunkedBuffer end = encoder.encode(new ResultData(ResultData.STATUS_END, cached.getMessage()));
+                slot.append(foods);
+                slot.complete(end);
+            } else {
+                slot.complete(encoder.encode(cached));
+            }
+            return true;
+        } catch (InvalidRequestException | IllegalArgumentException | BufferOverflowException e) {
+            return false;
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            Connection connection = new Connection(channel, this);
+            try {
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (ClosedChannelException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeConnections() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).close();
+        }
+        selector.close();
+    }
+}
@@ -1,46 +1,85 @@
 package bg.sofia.uni.fmi.mjt.server;
+import bg.sofia.uni.fmi.mjt.cache.CacheFormat;
 import bg.sofia.uni.fmi.mjt.cache.FoodCache;
 import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
 import bg.sofia.uni.fmi.mjt.exceptions.LogException;
 import bg.sofia.uni.fmi.mjt.exceptions.ServerException;
 import bg.sofia.uni.fmi.mjt.logger.Level;
 import bg.sofia.uni.fmi.mjt.logger.Logger;
+import bg.sofia.uni.fmi.mjt.requests.CacheRefresher;
+import bg.sofia.uni.fmi.mjt.requests.FoodReportBatcher;
+import bg.sofia.uni.fmi.mjt.requests.RequestCoalescer;
+import bg.sofia.uni.fmi.mjt.requests.RequestHandler;
+import bg.sofia.uni.fmi.mjt.upstream.CircuitBreaker;
+import bg.sofia.uni.fmi.mjt.upstream.HedgePolicy;
+import bg.sofia.uni.fmi.mjt.upstream.RateLimiter;
+import bg.sofia.uni.fmi.mjt.upstream.UpstreamClient;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Path;
-import java.util.Iterator;
 import java.util.Properties;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class Server implements Runnable {
     public static final int SERVER_PORT;
     private static final String SERVER_HOST = "localhost";
 
-    private static final int READ_BUFFER_SIZE = 512;
-    private static final int WRITE_BUFFER_SIZE = 1024 * 256;
-
-    private static final int MAX_EXECUTOR_THREADS = 9;
-    private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private static final int SELECTOR_THREADS = Runtime.getRuntime().availableProcessors();
 
     private final FoodCache cache;
     private final Logger logger;
+    private final ServerConfig config;
+
+    private final UpstreamClient upstreamClient;
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    //null when batching is disabled
+    private final FoodReportBatcher batcher;
+    //null when cached entries never expire
+    private final CacheRefresher refresher;
+    private final ResponseEncoder encoder = new ResponseEncoder(new BufferPool());
 
     private ExecutorService executorService;
-    private Selector selector;
+    private volatile ServerSocketChannel serverSocketChannel;
+    private volatile SelectorThread[] selectorThreads;
 
     public Server(FoodCache cache, Logger logger) {
+        this(cache, logger, ServerConfig.load());
+    }
+
+    public Server(FoodCache cache, Logger logger, ServerConfig config) {
         this.cache = cache;
         this.logger = logger;
+        this.config = config;
+        this.upstreamClient = newUpstreamClient(config);
+        this.batcher = config.isBatchingEnabled()
+                ? new FoodReportBatcher(upstreamClient, config.getBatchWindow(), config.getBatchMaxIds())
+                : null;
+        this.refresher = config.getCacheTtls().isEmpty()
+                ? null
+                : new CacheRefresher(config.getCacheTtls(), config.getRefreshAheadPercent(),
+                upstreamClient.getCircuitBreaker(), this::newRequestHandler);
+    }
+
+    private static UpstreamClient newUpstreamClient(ServerConfig config) {
+        UpstreamClient.UpstreamClientBuilder builder = UpstreamClient.newUpstreamClientBuilder()
+                .setThreads(config.getUpstreamThreads())
+                .setMaxConcurrentRequests(config.getMaxUpstreamRequests())
+                .setConnectTimeout(config.getUpstreamConnectTimeout())
+                .setRequestTimeout(config.getUpstreamRequestTimeout())
+                .setRateLimiter(new RateLimiter(config.getUpstreamRequestsPerHour()))
+                .setMaxQuotaWait(config.getUpstreamMaxQuotaWait())
+                .setCircuitBreaker(new CircuitBreaker(config.getCircuitFailureThreshold(),
+                        config.getCircuitSlowCallThreshold(), config.getCircuitOpenDuration()));
+        if (config.isHedgingEnabled()) {
+            builder.setHedgePolicy(new HedgePolicy(config.getHedgesPerSecond()));
+        }
+        return builder.build();
     }
 
     static {
@@ -57,91 +96,90 @@ public class Server implements Runnable {
         }
     }
 
+    //The thread running this method only accepts connections and hands them out round-robin
+    //to the selector threads, which do all the reading and writing.
     @Override
     public void run() {
         try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
-            executorService = Executors.newFixedThreadPool(MAX_EXECUTOR_THREADS);
+            this.serverSocketChannel = serverSocketChannel;
+            executorService = newExecutor();
 
             serverSocketChannel.bind(new InetSocketAddress(SERVER_HOST, SERVER_PORT));
-            serverSocketChannel.configureBlocking(false);
-
-            selector = Selector.open();
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            while (true) {
-                int readyChannels = selector.select();
-
-                if (!selector.isOpen()) {
-                    break;
-                }
-
-                if (readyChannels == 0) {
-                    // select() is blocking but may still return with 0, check javadoc
-                    continue;
-                }
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    if (!key.isValid()) {
-                        continue;
-                    }
-                    if (key.isReadable()) {
-                        read(key);
-                    } else if (key.isWritable()) {
-                        write(key);
-                    } else if (key.isAcceptable()) {
-                        accept(key);
-                    }
-                }
-
+            serverSocketChannel.configureBlocking(true);
+            startSelectorThreads();
+
+            int next = 0;
+            while (serverSocketChannel.isOpen()) {
+                SocketChannel accepted = serverSocketChannel.accept();
+                accepted.configureBlocking(false);
+                selectorThreads[next].register(accepted);
+                next = (next + 1) % selectorThreads.length;
             }
-            executorService.shutdown();
 
+        } catch (ClosedChannelException e) {
+            //shutdown() closed the server socket while we were blocked in accept()
         } catch (IOException e) {
             logger.log(Level.FATAL, e);
             shutdown();
             throw new ServerException("Fatal server error occurred", e);
+        } finally {
+            stopSelectorThreads();
+            if (executorService != null) {
+                executorService.shutdown();
+            }
+            if (batcher != null) {
+                batcher.close();
+            }
+            if (refresher != null) {
+                refresher.close();
+            }
+            upstreamClient.close();
         }
         System.out.println("Exiting server...");
     }
 
-    public void read(SelectionKey key) throws IOException {
-        SocketChannel sc = (SocketChannel) key.channel();
-        buffer.clear();
-        int r = sc.read(buffer);
-        if (r < 0) {
-            sc.close();
-            return;
+    private ExecutorService newExecutor() {
+        try {
+            return config.getExecutionMode().newExecutor(config.getWorkerThreads());
+        } catch (UnsupportedOperationException e) {
+            logger.log(Level.WARN, e);
+            System.err.println("Virtual threads are not available, falling back to platform threads");
+            return ExecutionMode.PLATFORM.newExecutor(config.getWorkerThreads());
         }
-        buffer.flip();
-        byte[] arr = new byte[buffer.remaining()];
-        buffer.get(arr);
-        FoodWorker foodClientHandler = new FoodWorker(key, arr, cache, logger);
-        executorService.execute(foodClientHandler);
     }
 
-    public void write(SelectionKey key) throws IOException {
-        SocketChannel sc = (SocketChannel) key.channel();
-        ByteBuffer bb = (ByteBuffer) key.attachment();
-        sc.write(bb);
-        if (!bb.hasRemaining()) {
-            key.interestOps(SelectionKey.OP_READ);
+    private RequestHandler newRequestHandler() {
+        return new RequestHandler(upstreamClient, cache, coalescer, batcher, refresher);
+    }
+
+    private void startSelectorThreads() throws IOException {
+        SelectorThread[] threads = new SelectorThread[SELECTOR_THREADS];
+        Thread.UncaughtExceptionHandler handler = (t, e) -> logger.log(Level.FATAL, e);
+        for (int i = 0; i < SELECTOR_THREADS; i++) {
+            threads[i] = new SelectorThread(executorService, cache, refresher, this::newRequestHandler, encoder, logger);
+            threads[i].setUncaughtExceptionHandler(handler);
+            threads[i].start();
         }
+        selectorThreads = threads;
     }
 
-    public void accept(SelectionKey key) throws IOException {
-        ServerSocketChannel sockChannel = (ServerSocketChannel) key.channel();
-        SocketChannel accept = sockChannel.accept();
-        accept.configureBlocking(false);
-        accept.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(WRITE_BUFFER_SIZE));
+    private void stopSelectorThreads() {
+        SelectorThread[] threads = selectorThreads;
+        if (threads != null) {
+            for (SelectorThread thread : threads) {
+                thread.shutdown();
+            }
+        }
     }
 
     public void shutdown() {
         cache.close();
+        stopSelectorThreads();
         try {
             logger.close();
-            selector.close();
+            if (serverSocketChannel != null) {
+                serverSocketChannel.close();
+            }
         } catch (LogException | IOException e) {
             throw new ServerException("Failed to shut server down", e);
         }
@@ -149,18 +187,30 @@ public class Server implements Runnable {
 
     public static void main(String[] args) {
         final String logDir = "./serverLogs";
-        final String cachePath = "./src/main/resources/cache.txt";
+        ServerConfig config = ServerConfig.load();
+        CacheFormat format = config.getCacheFormat();
+        final String cachePath = format == CacheFormat.BINARY
+                ? "./src/main/resources/cache.bin"
+                : "./src/main/resources/cache.txt";
         Logger logger;
         FoodCache cache;
 
         try {
             logger = new Logger(Path.of(logDir));
-            cache = new FoodCache(Path.of(cachePath), logger);
+            cache = FoodCache.newFoodCacheBuilder(Path.of(cachePath), logger)
+                    .setCapacity(config.getCacheCapacity())
+                    .setDurability(config.getCacheDurability())
+                    .setFormat(format)
+                    .setStorage(config.getCacheStorage())
+                    .setLoadThreads(config.getCacheLoadThreads())
+                    .setBackgroundLoad(config.isCacheLoadedInBackground())
+                    .setCompaction(config.getCacheCompaction())
+                    .build();
         } catch (LogException | CacheException e) {
             throw new ServerException(e);
         }
 
-        Server server = new Server(cache, logger);
+        Server server = new Server(cache, logger, config);
         Thread t = new Thread(server);
         t.start();
 
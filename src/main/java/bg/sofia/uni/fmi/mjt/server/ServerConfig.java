@@ -0,0 +1,284 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import bg.sofia.uni.fmi.mjt.cache.CacheCapacity;
+import bg.sofia.uni.fmi.mjt.cache.CacheCompaction;
+import bg.sofia.uni.fmi.mjt.cache.CacheDurability;
+import bg.sofia.uni.fmi.mjt.cache.CacheFormat;
+import bg.sofia.uni.fmi.mjt.cache.CacheStorage;
+import bg.sofia.uni.fmi.mjt.requests.Request;
+import bg.sofia.uni.fmi.mjt.requests.SearchCriteria;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+//Tuning options of the server. They are read from the same "api.properties" file as the port and the
+//API key, every option is optional and falls back to a default that matches the old hard-coded behaviour.
+public class ServerConfig {
+    private static final String PROPERTIES_FILE = "./api.properties";
+
+    private static final String EXECUTION_MODE = "server.execution.mode";
+    private static final String WORKER_THREADS = "server.worker.threads";
+    private static final String MAX_UPSTREAM_REQUESTS = "upstream.max.concurrent.requests";
+    private static final String UPSTREAM_THREADS = "upstream.threads";
+    private static final String UPSTREAM_CONNECT_TIMEOUT = "upstream.connect.timeout.ms";
+    private static final String UPSTREAM_REQUEST_TIMEOUT = "upstream.request.timeout.ms";
+    private static final String UPSTREAM_REQUESTS_PER_HOUR = "upstream.requests.per.hour";
+    private static final String UPSTREAM_MAX_QUOTA_WAIT = "upstream.quota.wait.ms";
+    private static final String CIRCUIT_FAILURE_THRESHOLD = "upstream.circuit.failure.threshold";
+    private static final String CIRCUIT_SLOW_CALL = "upstream.circuit.slow.call.ms";
+    private static final String CIRCUIT_OPEN = "upstream.circuit.open.ms";
+    private static final String HEDGING_ENABLED = "upstream.hedging.enabled";
+    private static final String HEDGES_PER_SECOND = "upstream.hedges.per.second";
+    private static final String BATCHING_ENABLED = "upstream.batching.enabled";
+    private static final String BATCH_WINDOW = "upstream.batch.window.ms";
+    private static final String BATCH_MAX_IDS = "upstream.batch.max.ids";
+    private static final String CACHE_MAX_ENTRIES = "cache.max.entries";
+    private static final String CACHE_MAX_BYTES = "cache.max.bytes";
+    private static final String CACHE_TTL_REPORT = "cache.ttl.report.minutes";
+    private static final String CACHE_TTL_KEYWORDS = "cache.ttl.keywords.minutes";
+    private static final String CACHE_TTL_BARCODE = "cache.ttl.barcode.minutes";
+    private static final String CACHE_REFRESH_AHEAD = "cache.refresh.ahead.percent";
+    private static final String CACHE_DURABILITY = "cache.durability";
+    private static final String CACHE_FSYNC_INTERVAL = "cache.fsync.interval.ms";
+    private static final String CACHE_FILE_FORMAT = "cache.file.format";
+    private static final String CACHE_STORAGE = "cache.storage";
+    private static final String CACHE_LOAD_THREADS = "cache.load.threads";
+    private static final String CACHE_LOAD_BACKGROUND = "cache.load.background";
+    private static final String CACHE_COMPACTION_ENABLED = "cache.compaction.enabled";
+    private static final String CACHE_COMPACTION_PERCENT = "cache.compaction.duplicate.percent";
+    private static final String CACHE_COMPACTION_MIN_RECORDS = "cache.compaction.min.records";
+
+    private static final int DEFAULT_WORKER_THREADS = 9;
+    private static final int DEFAULT_MAX_UPSTREAM_REQUESTS = 64;
+    private static final int DEFAULT_UPSTREAM_THREADS = 4;
+    private static final int DEFAULT_UPSTREAM_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_UPSTREAM_REQUEST_TIMEOUT = 15000;
+    //the default hourly limit of a FoodData Central API key
+    private static final int DEFAULT_UPSTREAM_REQUESTS_PER_HOUR = 1000;
+    private static final int DEFAULT_UPSTREAM_MAX_QUOTA_WAIT = 10000;
+    private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_CIRCUIT_SLOW_CALL = 5000;
+    private static final int DEFAULT_CIRCUIT_OPEN = 30000;
+    private static final int DEFAULT_HEDGES_PER_SECOND = 1;
+    private static final int DEFAULT_BATCH_WINDOW = 2;
+    private static final int DEFAULT_BATCH_MAX_IDS = 20;
+    private static final int DEFAULT_CACHE_REFRESH_AHEAD = 80;
+    private static final int DEFAULT_CACHE_FSYNC_INTERVAL = 1000;
+    private static final int DEFAULT_CACHE_COMPACTION_PERCENT = 50;
+
+    private final Properties properties;
+
+    public ServerConfig(Properties properties) {
+        if (properties == null) {
+            throw new IllegalArgumentException("Properties can't be null");
+        }
+        this.properties = properties;
+    }
+
+    public static ServerConfig load() {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(PROPERTIES_FILE)) {
+            properties.load(in);
+        } catch (IOException e) {
+            //no file means no overrides, the defaults are used
+        }
+        return new ServerConfig(properties);
+    }
+
+    public ExecutionMode getExecutionMode() {
+        String mode = properties.getProperty(EXECUTION_MODE);
+        return mode == null ? ExecutionMode.PLATFORM : ExecutionMode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+    }
+
+    public int getWorkerThreads() {
+        return getPositiveInt(WORKER_THREADS, DEFAULT_WORKER_THREADS);
+    }
+
+    public int getMaxUpstreamRequests() {
+        return getPositiveInt(MAX_UPSTREAM_REQUESTS, DEFAULT_MAX_UPSTREAM_REQUESTS);
+    }
+
+    public int getUpstreamThreads() {
+        return getPositiveInt(UPSTREAM_THREADS, DEFAULT_UPSTREAM_THREADS);
+    }
+
+    public Duration getUpstreamConnectTimeout() {
+        return Duration.ofMillis(getPositiveInt(UPSTREAM_CONNECT_TIMEOUT, DEFAULT_UPSTREAM_CONNECT_TIMEOUT));
+    }
+
+    public Duration getUpstreamRequestTimeout() {
+        return Duration.ofMillis(getPositiveInt(UPSTREAM_REQUEST_TIMEOUT, DEFAULT_UPSTREAM_REQUEST_TIMEOUT));
+    }
+
+    public int getUpstreamRequestsPerHour() {
+        return getPositiveInt(UPSTREAM_REQUESTS_PER_HOUR, DEFAULT_UPSTREAM_REQUESTS_PER_HOUR);
+    }
+
+    public Duration getUpstreamMaxQuotaWait() {
+        return Duration.ofMillis(getPositiveInt(UPSTREAM_MAX_QUOTA_WAIT, DEFAULT_UPSTREAM_MAX_QUOTA_WAIT));
+    }
+
+    public int getCircuitFailureThreshold() {
+        return getPositiveInt(CIRCUIT_FAILURE_THRESHOLD, DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+    }
+
+    public Duration getCircuitSlowCallThreshold() {
+        return Duration.ofMillis(getPositiveInt(CIRCUIT_SLOW_CALL, DEFAULT_CIRCUIT_SLOW_CALL));
+    }
+
+    public Duration getCircuitOpenDuration() {
+        return Duration.ofMillis(getPositiveInt(CIRCUIT_OPEN, DEFAULT_CIRCUIT_OPEN));
+    }
+
+    public boolean isHedgingEnabled() {
+        String value = properties.getProperty(HEDGING_ENABLED);
+        return value == null || Boolean.parseBoolean(value.trim());
+    }
+
+    public int getHedgesPerSecond() {
+        return getPositiveInt(HEDGES_PER_SECOND, DEFAULT_HEDGES_PER_SECOND);
+    }
+
+    public boolean isBatchingEnabled() {
+        String value = properties.getProperty(BATCHING_ENABLED);
+        return value == null || Boolean.parseBoolean(value.trim());
+    }
+
+    public Duration getBatchWindow() {
+        return Duration.ofMillis(getPositiveInt(BATCH_WINDOW, DEFAULT_BATCH_WINDOW));
+    }
+
+    /**
+     * @return the most ids of a batch, capped at the most the multi-id endpoint takes
+     */
+    public int getBatchMaxIds() {
+        return Math.min(getPositiveInt(BATCH_MAX_IDS, DEFAULT_BATCH_MAX_IDS), Request.MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @return the bound of the in-memory cache, unbounded unless one of the two maximums is set
+     */
+    public CacheCapacity getCacheCapacity() {
+        String entries = properties.getProperty(CACHE_MAX_ENTRIES);
+        String bytes = properties.getProperty(CACHE_MAX_BYTES);
+        if (entries != null && bytes != null) {
+            throw new IllegalArgumentException(String.format("Only one of %s and %s can be set",
+                    CACHE_MAX_ENTRIES, CACHE_MAX_BYTES));
+        } else if (entries != null) {
+            return CacheCapacity.ofEntries(getPositiveLong(CACHE_MAX_ENTRIES));
+        } else if (bytes != null) {
+            return CacheCapacity.ofBytes(getPositiveLong(CACHE_MAX_BYTES));
+        }
+        return CacheCapacity.unbounded();
+    }
+
+    /**
+     * @return the time to live of cached entries by search criteria, criteria without a TTL never expire
+     */
+    public Map<SearchCriteria, Duration> getCacheTtls() {
+        Map<SearchCriteria, Duration> ttls = new EnumMap<>(SearchCriteria.class);
+        putTtl(ttls, SearchCriteria.BY_FDCID, CACHE_TTL_REPORT);
+        putTtl(ttls, SearchCriteria.BY_KEYWORDS, CACHE_TTL_KEYWORDS);
+        putTtl(ttls, SearchCriteria.BY_GTINUPC, CACHE_TTL_BARCODE);
+        return ttls;
+    }
+
+    public int getRefreshAheadPercent() {
+        int percent = getPositiveInt(CACHE_REFRESH_AHEAD, DEFAULT_CACHE_REFRESH_AHEAD);
+        if (percent > 100) {
+            throw new IllegalArgumentException(String.format("%s can't be more than 100", CACHE_REFRESH_AHEAD));
+        }
+        return percent;
+    }
+
+    /**
+     * @return how hard the cache writer tries to get foods onto the disk, every batch is flushed by default
+     */
+    public CacheDurability getCacheDurability() {
+        String mode = properties.getProperty(CACHE_DURABILITY);
+        CacheDurability.Mode durability = mode == null
+                ? CacheDurability.Mode.FLUSH
+                : CacheDurability.Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        return switch (durability) {
+            case NONE -> CacheDurability.none();
+            case FLUSH -> CacheDurability.flushPerBatch();
+            case FSYNC -> CacheDurability.fsyncEvery(
+                    Duration.ofMillis(getPositiveInt(CACHE_FSYNC_INTERVAL, DEFAULT_CACHE_FSYNC_INTERVAL)));
+        };
+    }
+
+    /**
+     * @return the format of a new cache file, JSON lines by default
+     */
+    public CacheFormat getCacheFormat() {
+        String format = properties.getProperty(CACHE_FILE_FORMAT);
+        return format == null ? CacheFormat.JSON : CacheFormat.valueOf(format.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return how many threads parse the cache file on startup, one per core by default
+     */
+    public int getCacheLoadThreads() {
+        return getPositiveInt(CACHE_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return true if the server accepts connections while the cache file is still being loaded
+     */
+    public boolean isCacheLoadedInBackground() {
+        String value = properties.getProperty(CACHE_LOAD_BACKGROUND);
+        return value == null || Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @return where the cached foods are kept, on the heap by default
+     */
+    public CacheStorage getCacheStorage() {
+        String storage = properties.getProperty(CACHE_STORAGE);
+        return storage == null ? CacheStorage.HEAP : CacheStorage.valueOf(storage.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @return when the cache file is compacted, once half of its records are duplicates by default
+     */
+    public CacheCompaction getCacheCompaction() {
+        String enabled = properties.getProperty(CACHE_COMPACTION_ENABLED);
+        if (enabled != null && !Boolean.parseBoolean(enabled.trim())) {
+            return CacheCompaction.disabled();
+        }
+        return CacheCompaction.atDuplicates(getPositiveInt(CACHE_COMPACTION_PERCENT, DEFAULT_CACHE_COMPACTION_PERCENT),
+                getPositiveInt(CACHE_COMPACTION_MIN_RECORDS, (int) CacheCompaction.DEFAULT_MIN_RECORDS));
+    }
+
+    private void putTtl(Map<SearchCriteria, Duration> ttls, SearchCriteria criteria, String key) {
+        if (properties.getProperty(key) != null) {
+            ttls.put(criteria, Duration.ofMinutes(getPositiveLong(key)));
+        }
+    }
+
+    private long getPositiveLong(String key) {
+        long result = Long.parseLong(properties.getProperty(key).trim());
+        if (result <= 0) {
+            throw new IllegalArgumentException(String.format("%s must be positive", key));
+        }
+        return result;
+    }
+
+    private int getPositiveInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        int result = Integer.parseInt(value.trim());
+        if (result <= 0) {
+            throw new IllegalArgumentException(String.format("%s must be positive", key));
+        }
+        return result;
+    }
+}
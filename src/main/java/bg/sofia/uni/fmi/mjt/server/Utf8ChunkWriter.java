@@ -0,0 +1,98 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+
+//Encodes characters as UTF-8 straight into a chunked buffer, so a response is never
+//materialized as a String or a byte array.
+class Utf8ChunkWriter extends Writer {
+    private static final int ONE_BYTE_LIMIT = 0x80;
+    private static final int TWO_BYTES_LIMIT = 0x800;
+    private static final char REPLACEMENT = '?';
+
+    private final ChunkedBuffer buffer;
+    private final long maxSize;
+
+    //high surrogate waiting for its pair, which may come in the next write call
+    private char highSurrogate;
+
+    Utf8ChunkWriter(ChunkedBuffer buffer, long maxSize) {
+        this.buffer = buffer;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void write(int c) {
+        writeChar((char) c);
+        checkSize();
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(chars[i]);
+        }
+        checkSize();
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            writeChar(str.charAt(i));
+        }
+        checkSize();
+    }
+
+    private void writeChar(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                writeCodePoint(Character.toCodePoint(high, c));
+                return;
+            }
+            buffer.put((byte) REPLACEMENT);
+        }
+
+        if (c < ONE_BYTE_LIMIT) {
+            buffer.put((byte) c);
+        } else if (c < TWO_BYTES_LIMIT) {
+            buffer.put((byte) (0xC0 | (c >> 6)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buffer.put((byte) REPLACEMENT);
+        } else {
+            buffer.put((byte) (0xE0 | (c >> 12)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+        buffer.put((byte) (0xF0 | (codePoint >> 18)));
+        buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+    }
+
+    private void checkSize() {
+        if (buffer.size() > maxSize) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    @Override
+    public void flush() {
+        //nothing is buffered apart from a dangling high surrogate
+    }
+
+    @Override
+    public void close() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            buffer.put((byte) REPLACEMENT);
+        }
+    }
+}
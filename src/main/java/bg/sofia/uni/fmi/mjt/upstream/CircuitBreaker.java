@@ -0,0 +1,148 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+//Stops calling the API while it is failing. After failureThreshold consecutive failures (errors, 5xx
+//responses or calls slower than slowCallThreshold) the circuit opens and requests fail fast. Once
+//openDuration has passed a single trial request is let through: its success closes the circuit,
+//its failure opens it again.
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    //changes with every state change, outcomes of requests let through before it don't judge the new state
+    private int generation;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    /**
+     * The permission to send one request. Its outcome only counts in the state it was given in, so a late
+     * response of a request sent before the circuit opened can't close it, only the trial's can.
+     */
+    public static final class Permit {
+        private final boolean trial;
+        private final int generation;
+
+        private Permit(boolean trial, int generation) {
+            this.trial = trial;
+            this.generation = generation;
+        }
+
+        public boolean isTrial() {
+            return trial;
+        }
+    }
+
+    public CircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration) {
+        this(failureThreshold, slowCallThreshold, openDuration, System::nanoTime);
+    }
+
+    CircuitBreaker(int failureThreshold, Duration slowCallThreshold, Duration openDuration, LongSupplier clock) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("Failure threshold must be positive");
+        }
+        if (slowCallThreshold == null || openDuration == null) {
+            throw new IllegalArgumentException("Durations can't be null");
+        }
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = slowCallThreshold.toNanos();
+        this.openNanos = openDuration.toNanos();
+        this.clock = clock;
+    }
+
+    /**
+     * @return the permission to send a request now or null if the circuit is open. Every permit must be
+     * handed back to exactly one call to onSuccess, onFailure or onCancel.
+     */
+    public synchronized Permit tryAcquire() {
+        switch (state) {
+            case CLOSED -> {
+                return new Permit(false, generation);
+            }
+            case OPEN -> {
+                if (clock.getAsLong() - openedAt < openNanos) {
+                    return null;
+                }
+                changeState(State.HALF_OPEN);
+                trialInFlight = true;
+                return new Permit(true, generation);
+            }
+            default -> {
+                if (trialInFlight) {
+                    return null;
+                }
+                trialInFlight = true;
+                return new Permit(true, generation);
+            }
+        }
+    }
+
+    public synchronized void onSuccess(Permit permit, long latencyNanos) {
+        if (latencyNanos > slowCallNanos) {
+            onFailure(permit);
+            return;
+        }
+        if (isStale(permit)) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (permit.trial) {
+            trialInFlight = false;
+            changeState(State.CLOSED);
+        }
+    }
+
+    public synchronized void onFailure(Permit permit) {
+        if (isStale(permit)) {
+            return;
+        }
+        if (permit.trial) {
+            trialInFlight = false;
+            open();
+        } else if (++consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Gives the permission back without judging the API, e.g. when the caller was interrupted.
+     */
+    public synchronized void onCancel(Permit permit) {
+        if (!isStale(permit) && permit.trial) {
+            trialInFlight = false;
+        }
+    }
+
+    private boolean isStale(Permit permit) {
+        if (permit == null) {
+            throw new IllegalArgumentException("Permit can't be null");
+        }
+        return permit.generation != generation;
+    }
+
+    private void open() {
+        changeState(State.OPEN);
+        openedAt = clock.getAsLong();
+    }
+
+    private void changeState(State newState) {
+        state = newState;
+        generation++;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
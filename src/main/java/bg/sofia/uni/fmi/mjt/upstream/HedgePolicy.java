@@ -0,0 +1,74 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Decides when a slow request gets a second, identical copy sent. The delay is the observed p95
+//latency of the last WINDOW requests and no more than hedgesPerSecond copies are sent each second,
+//so hedging only targets the tail and cannot multiply the load on the API.
+public class HedgePolicy {
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_INTERVAL = 16;
+    private static final double PERCENTILE = 0.95;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int hedgesPerSecond;
+    private final LongSupplier clock;
+
+    private final long[] samples = new long[WINDOW];
+    private long samplesCount;
+    private int nextSample;
+    private volatile long hedgeDelay = -1;
+
+    private long budgetWindowStart;
+    private int hedgesInWindow;
+
+    public HedgePolicy(int hedgesPerSecond) {
+        this(hedgesPerSecond, System::nanoTime);
+    }
+
+    HedgePolicy(int hedgesPerSecond, LongSupplier clock) {
+        if (hedgesPerSecond <= 0) {
+            throw new IllegalArgumentException("Hedges per second must be positive");
+        }
+        this.hedgesPerSecond = hedgesPerSecond;
+        this.clock = clock;
+        this.budgetWindowStart = clock.getAsLong();
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[nextSample] = latencyNanos;
+        nextSample = (nextSample + 1) % WINDOW;
+        samplesCount++;
+        if (samplesCount == MIN_SAMPLES || samplesCount > MIN_SAMPLES && samplesCount % RECOMPUTE_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(samplesCount, WINDOW));
+            Arrays.sort(sorted);
+            hedgeDelay = sorted[(int) Math.ceil(PERCENTILE * sorted.length) - 1];
+        }
+    }
+
+    /**
+     * @return how long to wait for a response before hedging, or -1 while too few requests were observed
+     */
+    public long getHedgeDelayNanos() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Takes one hedge from this second's budget.
+     */
+    public synchronized boolean tryHedge() {
+        long now = clock.getAsLong();
+        if (now - budgetWindowStart >= NANOS_PER_SECOND) {
+            budgetWindowStart = now;
+            hedgesInWindow = 0;
+        }
+        if (hedgesInWindow < hedgesPerSecond) {
+            hedgesInWindow++;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,9 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+//Lane of an upstream request in the rate limiter.
+public enum Priority {
+    //the request a client is waiting on: first pages and food reports, they queue for quota
+    HIGH,
+    //requests that only make a result more complete, e.g. trailing pages, they are dropped when quota is low
+    LOW
+}
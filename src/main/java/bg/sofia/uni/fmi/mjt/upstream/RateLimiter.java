@@ -0,0 +1,114 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+//Token bucket in front of the API key's hourly quota. The bucket holds at most one hour's worth of
+//requests and refills continuously. The last RESERVED_PERCENT of it is kept for high priority requests,
+//and low priority requests are also refused while a high priority request is waiting for a token.
+public class RateLimiter {
+    private static final long NANOS_PER_HOUR = TimeUnit.HOURS.toNanos(1);
+    private static final int RESERVED_PERCENT = 10;
+
+    private final int capacity;
+    private final double reserved;
+    private final double tokensPerNano;
+    private final LongSupplier clock;
+
+    private double tokens;
+    private long lastRefill;
+    private int waitingHighPriority;
+
+    private long granted;
+    private long rejected;
+
+    public RateLimiter(int requestsPerHour) {
+        this(requestsPerHour, System::nanoTime);
+    }
+
+    RateLimiter(int requestsPerHour, LongSupplier clock) {
+        if (requestsPerHour <= 0) {
+            throw new IllegalArgumentException("Requests per hour must be positive");
+        }
+        this.capacity = requestsPerHour;
+        this.reserved = requestsPerHour * RESERVED_PERCENT / 100.0;
+        this.tokensPerNano = (double) requestsPerHour / NANOS_PER_HOUR;
+        this.clock = clock;
+        this.tokens = requestsPerHour;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    /**
+     * Takes a token if one is available to the given priority, never blocks.
+     */
+    public synchronized boolean tryAcquire(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Priority can't be null");
+        }
+        refill();
+        boolean available = switch (priority) {
+            case HIGH -> tokens >= 1;
+            case LOW -> waitingHighPriority == 0 && tokens - reserved >= 1;
+        };
+        if (available) {
+            tokens--;
+            granted++;
+        } else if (priority == Priority.LOW) {
+            rejected++;
+        }
+        return available;
+    }
+
+    /**
+     * Takes a high priority token, waiting at most maxWait for the bucket to refill.
+     *
+     * @return false if no token became available in time
+     */
+    public synchronized boolean acquire(Duration maxWait) throws InterruptedException {
+        if (maxWait == null) {
+            throw new IllegalArgumentException("Max wait can't be null");
+        }
+        if (tryAcquire(Priority.HIGH)) {
+            return true;
+        }
+        long deadline = clock.getAsLong() + maxWait.toNanos();
+        waitingHighPriority++;
+        try {
+            while (!tryAcquire(Priority.HIGH)) {
+                long remaining = deadline - clock.getAsLong();
+                if (remaining <= 0) {
+                    return false;
+                }
+                long untilNextToken = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, Math.min(remaining, untilNextToken)));
+            }
+            return true;
+        } finally {
+            waitingHighPriority--;
+        }
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) tokens;
+    }
+
+    public synchronized long getGrantedCount() {
+        return granted;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+}
@@ -0,0 +1,443 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CircuitOpenException;
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.QuotaExceededException;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+//The single gateway to the FoodData Central API. One instance is owned by the server and shared by
+//all request handlers, so connections (and their TLS sessions) are reused and HTTP/2 streams to the
+//API are multiplexed over them instead of every request opening its own client.
+public class UpstreamClient {
+    private static final int DEFAULT_THREADS = 4;
+    private static final Duration DEFAULT_MAX_QUOTA_WAIT = Duration.ofSeconds(10);
+    private static final int SERVER_ERROR = 500;
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Duration requestTimeout;
+
+    //null when the API quota is not enforced on this side
+    private final RateLimiter rateLimiter;
+    private final Duration maxQuotaWait;
+
+    //null when requests are sent regardless of how the API is doing
+    private final CircuitBreaker circuitBreaker;
+
+    //null when blocking sends are never hedged
+    private final HedgePolicy hedgePolicy;
+
+    //one permit per request in flight, i.e. per open stream
+    private final Semaphore permits;
+
+    private UpstreamClient(UpstreamClientBuilder builder) {
+        if (builder.client != null) {
+            this.client = builder.client;
+            this.executor = null;
+        } else {
+            this.executor = Executors.newFixedThreadPool(builder.threads, runnable -> {
+                Thread thread = new Thread(runnable, "upstream-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+            HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .executor(executor);
+            if (builder.connectTimeout != null) {
+                clientBuilder.connectTimeout(builder.connectTimeout);
+            }
+            this.client = clientBuilder.build();
+        }
+        this.requestTimeout = builder.requestTimeout;
+        this.rateLimiter = builder.rateLimiter;
+        this.maxQuotaWait = builder.maxQuotaWait;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.hedgePolicy = builder.hedgePolicy;
+        this.permits = new Semaphore(builder.maxConcurrentRequests, true);
+    }
+
+    public static UpstreamClientBuilder newUpstreamClientBuilder() {
+        return new UpstreamClientBuilder();
+    }
+
+    public static class UpstreamClientBuilder {
+        private HttpClient client;
+        private int threads = DEFAULT_THREADS;
+        private int maxConcurrentRequests = Integer.MAX_VALUE;
+        private Duration connectTimeout;
+        private Duration requestTimeout;
+        private RateLimiter rateLimiter;
+        private Duration maxQuotaWait = DEFAULT_MAX_QUOTA_WAIT;
+        private CircuitBreaker circuitBreaker;
+        private HedgePolicy hedgePolicy;
+
+        /**
+         * Uses the given client as is instead of building a tuned one. Meant for tests.
+         */
+        public UpstreamClientBuilder setHttpClient(HttpClient client) {
+            checkNull(client, "HTTP client");
+            this.client = client;
+            return this;
+        }
+
+        public UpstreamClientBuilder setThreads(int threads) {
+            checkPositive(threads, "Threads count");
+            this.threads = threads;
+            return this;
+        }
+
+        public UpstreamClientBuilder setMaxConcurrentRequests(int maxConcurrentRequests) {
+            checkPositive(maxConcurrentRequests, "Max concurrent requests");
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        public UpstreamClientBuilder setConnectTimeout(Duration connectTimeout) {
+            checkNull(connectTimeout, "Connect timeout");
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public UpstreamClientBuilder setRequestTimeout(Duration requestTimeout) {
+            checkNull(requestTimeout, "Request timeout");
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        public UpstreamClientBuilder setRateLimiter(RateLimiter rateLimiter) {
+            checkNull(rateLimiter, "Rate limiter");
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * How long a high priority request may queue for quota before it is refused.
+         */
+        public UpstreamClientBuilder setMaxQuotaWait(Duration maxQuotaWait) {
+            checkNull(maxQuotaWait, "Max quota wait");
+            this.maxQuotaWait = maxQuotaWait;
+            return this;
+        }
+
+        public UpstreamClientBuilder setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            checkNull(circuitBreaker, "Circuit breaker");
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        public UpstreamClientBuilder setHedgePolicy(HedgePolicy hedgePolicy) {
+            checkNull(hedgePolicy, "Hedge policy");
+            this.hedgePolicy = hedgePolicy;
+            return this;
+        }
+
+        public UpstreamClient build() {
+            return new UpstreamClient(this);
+        }
+    }
+
+    /**
+     * Sends the request with high priority and blocks until the whole response has arrived.
+     * With a hedge policy, a copy of a request that is slower than usual is sent as well and
+     * whichever response comes first is used.
+     *
+     * @throws CircuitOpenException   if the API is failing and the request was not sent
+     * @throws QuotaExceededException if no quota became available in time
+     * @throws HttpRequestException   if the request fails, times out or the thread is interrupted
+     */
+    public HttpResponse<String> send(HttpRequest request) {
+        checkNull(request, "Request");
+        CircuitBreaker.Permit permit = acquireCircuit();
+        boolean judged = false;
+        try {
+            acquireQuota();
+            acquirePermit();
+            try {
+                long start = System.nanoTime();
+                HttpResponse<String> response = hedgePolicy == null
+                        ? client.send(withTimeout(request), HttpResponse.BodyHandlers.ofString())
+                        : sendHedged(withTimeout(request));
+                judged = recordResponse(response, start, permit);
+                return response;
+            } catch (IOException e) {
+                judged = recordFailure(permit);
+                throw new HttpRequestException("Error occurred while trying to fetch data from API", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HttpRequestException("Error occurred while trying to fetch data from API", e);
+            } finally {
+                permits.release();
+            }
+        } finally {
+            if (!judged) {
+                cancelCircuit(permit);
+            }
+        }
+    }
+
+    private HttpResponse<String> sendHedged(HttpRequest request) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<String>> primary = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<HttpResponse<String>> hedge = null;
+        try {
+            long hedgeDelay = hedgePolicy.getHedgeDelayNanos();
+            if (hedgeDelay >= 0) {
+                try {
+                    return recordLatency(primary.get(hedgeDelay, TimeUnit.NANOSECONDS), start);
+                } catch (TimeoutException e) {
+                    hedge = sendHedge(request);
+                }
+            }
+            if (hedge == null) {
+                return recordLatency(primary.get(), start);
+            }
+            return recordLatency(firstSuccessful(primary, hedge).get(), start);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Request to the API failed", e.getCause());
+        } finally {
+            //the loser, or both if the caller was interrupted; cancelling resets its HTTP/2 stream
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    //The hedge is optional work: it needs a hedge from the budget, a low priority token and a free stream.
+    private CompletableFuture<HttpResponse<String>> sendHedge(HttpRequest request) {
+        if (!hedgePolicy.tryHedge()) {
+            return null;
+        }
+        if (rateLimiter != null && !rateLimiter.tryAcquire(Priority.LOW)) {
+            return null;
+        }
+        if (!permits.tryAcquire()) {
+            return null;
+        }
+        CompletableFuture<HttpResponse<String>> hedge;
+        try {
+            hedge = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        hedge.whenComplete((response, e) -> permits.release());
+        return hedge;
+    }
+
+    private static CompletableFuture<HttpResponse<String>> firstSuccessful(CompletableFuture<HttpResponse<String>> first,
+                                                                          CompletableFuture<HttpResponse<String>> second) {
+        CompletableFuture<HttpResponse<String>> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<HttpResponse<String>> candidate : List.of(first, second)) {
+            candidate.whenComplete((response, e) -> {
+                if (e == null) {
+                    winner.complete(response);
+                } else if (failures.incrementAndGet() == 2) {
+                    winner.completeExceptionally(e);
+                }
+            });
+        }
+        return winner;
+    }
+
+    private HttpResponse<String> recordLatency(HttpResponse<String> response, long start) {
+        hedgePolicy.record(System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Sends the request asynchronously with high priority. Blocks only while queueing for quota
+     * and waiting for a free stream.
+     *
+     * @param mapper converts the response, runs on the client's executor
+     * @throws CircuitOpenException   if the API is failing and the request was not sent
+     * @throws QuotaExceededException if no quota became available in time
+     */
+    public <T> CompletableFuture<T> sendAsync(HttpRequest request, Function<HttpResponse<String>, T> mapper) {
+        checkNull(request, "Request");
+        checkNull(mapper, "Mapper");
+        CircuitBreaker.Permit permit = acquireCircuit();
+        try {
+            acquireQuota();
+        } catch (RuntimeException e) {
+            cancelCircuit(permit);
+            throw e;
+        }
+        return doSendAsync(request, mapper, permit);
+    }
+
+    /**
+     * Sends the request asynchronously with low priority, if the quota allows it right now.
+     *
+     * @return the response future or null if the request was dropped to save quota or because the API is failing
+     */
+    public <T> CompletableFuture<T> trySendAsync(HttpRequest request, Function<HttpResponse<String>, T> mapper) {
+        checkNull(request, "Request");
+        checkNull(mapper, "Mapper");
+        CircuitBreaker.Permit permit = null;
+        if (circuitBreaker != null && (permit = circuitBreaker.tryAcquire()) == null) {
+            return null;
+        }
+        if (rateLimiter != null && !rateLimiter.tryAcquire(Priority.LOW)) {
+            cancelCircuit(permit);
+            return null;
+        }
+        return doSendAsync(request, mapper, permit);
+    }
+
+    private <T> CompletableFuture<T> doSendAsync(HttpRequest request, Function<HttpResponse<String>, T> mapper,
+                                                 CircuitBreaker.Permit permit) {
+        try {
+            acquirePermit();
+        } catch (RuntimeException e) {
+            cancelCircuit(permit);
+            throw e;
+        }
+        long start = System.nanoTime();
+        AtomicBoolean judged = new AtomicBoolean();
+        CompletableFuture<T> result;
+        try {
+            result = client.sendAsync(withTimeout(request), HttpResponse.BodyHandlers.ofString())
+                    .thenApply(response -> {
+                        judged.set(recordResponse(response, start, permit));
+                        return mapper.apply(response);
+                    });
+        } catch (RuntimeException e) {
+            permits.release();
+            cancelCircuit(permit);
+            throw e;
+        }
+        result.whenComplete((value, e) -> {
+            permits.release();
+            if (!judged.get()) {
+                //the response never reached the mapper wrapper, judge the exchange by how it completed
+                if (e == null) {
+                    recordSuccess(start, permit);
+                } else {
+                    recordFailure(permit);
+                }
+            }
+        });
+        return result;
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private HttpRequest withTimeout(HttpRequest request) {
+        if (requestTimeout == null || request.timeout().isPresent()) {
+            return request;
+        }
+        return HttpRequest.newBuilder(request, (name, value) -> true).timeout(requestTimeout).build();
+    }
+
+    //null when there is no circuit breaker
+    private CircuitBreaker.Permit acquireCircuit() {
+        if (circuitBreaker == null) {
+            return null;
+        }
+        CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            throw new CircuitOpenException("The API is failing, request was not sent");
+        }
+        return permit;
+    }
+
+    private void cancelCircuit(CircuitBreaker.Permit permit) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onCancel(permit);
+        }
+    }
+
+    private boolean recordResponse(HttpResponse<String> response, long start, CircuitBreaker.Permit permit) {
+        if (response.statusCode() >= SERVER_ERROR) {
+            return recordFailure(permit);
+        }
+        return recordSuccess(start, permit);
+    }
+
+    private boolean recordSuccess(long start, CircuitBreaker.Permit permit) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess(permit, System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private boolean recordFailure(CircuitBreaker.Permit permit) {
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure(permit);
+        }
+        return true;
+    }
+
+    private void acquireQuota() {
+        if (rateLimiter == null) {
+            return;
+        }
+        try {
+            if (!rateLimiter.acquire(maxQuotaWait)) {
+                throw new QuotaExceededException("API quota is exhausted");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpRequestException("Interrupted while waiting for API quota", e);
+        }
+    }
+
+    private void acquirePermit() {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HttpRequestException("Interrupted while waiting to call the API", e);
+        }
+    }
+
+    private static void checkNull(Object object, String name) {
+        if (object == null) {
+            throw new IllegalArgumentException(String.format("%s can't be null", name));
+        }
+    }
+
+    private static void checkPositive(int value, String name) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(String.format("%s must be positive", name));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.logger.Logger;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class CacheCompactorTest {
+    private static final List<String> BARCODES = List.of("111", "222", "333");
+    private static final List<String> QUERIES = List.of("apple", "pie", "pear");
+
+    private final Gson gson = new Gson();
+    private final Logger logger = mock(Logger.class);
+
+    @TempDir
+    Path tempDir;
+
+    private Food food(int id, String description, String query, String gtinUpc, Long cachedAt) {
+        Food parsed = gson.fromJson(String.format("{\"fdcId\":%d,\"foodNutrients\":[{\"number\":\"%d\","
+                + "\"name\":\"Nutrient %d\",\"amount\":1.5,\"unitName\":\"G\"}]}", id, 200 + id, id), Food.class);
+        return new Food(id, "Branded", description, parsed.getFoodNutrients(), gtinUpc, null, query, cachedAt);
+    }
+
+    //Refreshes, queries and barcodes that change between copies, an older copy written after a newer one
+    //and foods without a timestamp, so every rule of the load order is needed to load the same cache.
+    private List<Food> history() {
+        List<Food> foods = new ArrayList<>();
+        foods.add(food(1, "APPLE", "apple", "111", 1L));
+        foods.add(food(2, "GREEN APPLE", "apple", null, 1L));
+        foods.add(food(1, "APPLE", "pie", "111", 2L));
+        foods.add(food(3, "RED APPLE", "apple", "222", 1L));
+        foods.add(food(2, "GREEN APPLE", "apple", null, 3L));
+        foods.add(food(2, "PEAR", "pear", null, 2L));
+        foods.add(food(4, "APPLE PIE", "pie", "111", 1L));
+        foods.add(food(3, "RED APPLE", "apple", "333", 4L));
+        foods.add(food(5, "WATER", null, null, null));
+        for (int round = 0; round < 10; round++) {
+            foods.add(food(1, "APPLE " + round, "apple", "111", 10L + round));
+            foods.add(food(2, "GREEN APPLE " + round, "apple", null, 10L + round));
+        }
+        foods.add(food(5, "SPARKLING WATER", null, null, null));
+        return foods;
+    }
+
+    private FoodCache load(Path file, CacheFormat format) throws CacheException {
+        FoodCache cache = FoodCache.newFoodCacheBuilder(file, logger).setFormat(format).build();
+        cache.close();
+        return cache;
+    }
+
+    private void assertSameCache(FoodCache expected, FoodCache actual) {
+        assertEquals(expected.getSize(), actual.getSize());
+        for (int id = 1; id <= 6; id++) {
+            assertEquals(describe(expected.getByFdcId(id)), describe(actual.getByFdcId(id)));
+        }
+        for (String barcode : BARCODES) {
+            assertEquals(describe(expected.getByGtinUpc(barcode)), describe(actual.getByGtinUpc(barcode)));
+        }
+        for (String query : QUERIES) {
+            assertEquals(describe(expected.getByKeywords(query)), describe(actual.getByKeywords(query)));
+        }
+    }
+
+    private List<String> describe(ResultData result) {
+        if (result == null) {
+            return null;
+        }
+        List<Food> foods = result.getFoods() != null ? result.getFoods() : List.of(result.getFood());
+        return foods.stream().map(food -> food.getFdcId() + " " + food.getDescription()).toList();
+    }
+
+    private void assertCompactedFileLoadsTheSameCache(CacheFormat format) throws IOException, CacheException {
+        Path file = tempDir.resolve("cache." + format);
+        Path original = tempDir.resolve("original." + format);
+        FoodFileCodec codec = format.newCodec();
+        Files.write(file, CacheFiles.encode(codec, history(), true));
+
+        CacheCompactor compactor = new CacheCompactor(file, format, Files.size(file), () -> { });
+        compactor.run();
+        assertTrue(compactor.isDone());
+        assertNull(compactor.getFailure());
+
+        //appended by the writer while the snapshot was written
+        long tail = Files.size(file);
+        Files.write(file, CacheFiles.encode(codec, List.of(food(1, "NEW APPLE", "pie", "111", 100L),
+                food(6, "PLUM", "pear", "333", 1L)), false), StandardOpenOption.APPEND);
+        Files.copy(file, original);
+        compactor.finish(Files.size(file));
+
+        assertTrue(Files.size(file) < Files.size(original));
+        assertEquals(12, compactor.getRecords());
+        assertEquals(Files.size(file), compactor.getSize());
+        assertTrue(compactor.getRelocations().containsKey(tail));
+        assertFalse(Files.exists(tempDir.resolve("cache." + format + ".compacting")));
+        assertSameCache(load(original, format), load(file, format));
+    }
+
+    @Test
+    public void testCompactedJsonFileLoadsTheSameCache() throws IOException, CacheException {
+        assertCompactedFileLoadsTheSameCache(CacheFormat.JSON);
+    }
+
+    @Test
+    public void testCompactedBinaryFileLoadsTheSameCache() throws IOException, CacheException {
+        assertCompactedFileLoadsTheSameCache(CacheFormat.BINARY);
+    }
+
+    private void assertCacheCompactsItsFile(CacheFormat format, CacheStorage storage)
+            throws IOException, CacheException, InterruptedException {
+        Path file = tempDir.resolve("cache." + format);
+        Path original = tempDir.resolve("original." + format);
+        Files.write(file, CacheFiles.encode(format.newCodec(), history(), true));
+        Files.copy(file, original);
+        long size = Files.size(file);
+
+        FoodCache cache = FoodCache.newFoodCacheBuilder(file, logger)
+                .setFormat(format)
+                .setStorage(storage)
+                .setCompaction(CacheCompaction.atDuplicates(50, 10))
+                .build();
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (Files.size(file) >= size && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.size(file) < size);
+        //served from the compacted file, then written after it
+        assertEquals("SPARKLING WATER", cache.getByFdcId(5).getFood().getDescription());
+        cache.submit(food(6, "PLUM", "pear", "333", 1L));
+        cache.close();
+        cache.getWriterThreads()[0].join();
+
+        FoodCache uncompacted = FoodCache.newFoodCacheBuilder(original, logger).setFormat(format).build();
+        uncompacted.submit(food(6, "PLUM", "pear", "333", 1L));
+        uncompacted.close();
+        uncompacted.getWriterThreads()[0].join();
+        //the running cache reads its foods from the compacted file when they are mapped
+        assertSameCache(uncompacted, cache);
+        assertSameCache(uncompacted, load(file, format));
+    }
+
+    @Test
+    public void testCacheCompactsItsFileAndKeepsWriting() throws IOException, CacheException, InterruptedException {
+        assertCacheCompactsItsFile(CacheFormat.JSON, CacheStorage.HEAP);
+        assertCacheCompactsItsFile(CacheFormat.BINARY, CacheStorage.MAPPED);
+    }
+
+    @Test
+    public void testBoundedCacheCountsTheFoodsOfItsFile() throws IOException, CacheException, InterruptedException {
+        Path file = tempDir.resolve("cache.txt");
+        List<Food> foods = new ArrayList<>();
+        for (int id = 1; id <= 20; id++) {
+            foods.add(food(id, "FOOD " + id, "food", null, 1L));
+        }
+        Files.write(file, CacheFiles.encode(CacheFormat.JSON.newCodec(), foods, true));
+
+        FoodCache bounded = FoodCache.newFoodCacheBuilder(file, logger)
+                .setCapacity(CacheCapacity.ofEntries(2))
+                .setCompaction(CacheCompaction.atDuplicates(50, 10))
+                .build();
+        bounded.close();
+        assertFalse(bounded.isCompactionDue(), "A file without copies isn't compacted, however few foods are cached");
+
+        foods.addAll(foods.subList(0, 15));
+        Files.write(file, CacheFiles.encode(CacheFormat.JSON.newCodec(), foods, true));
+        long size = Files.size(file);
+        FoodCache duplicated = FoodCache.newFoodCacheBuilder(file, logger)
+                .setCapacity(CacheCapacity.ofEntries(2))
+                .setCompaction(CacheCompaction.atDuplicates(40, 10))
+                .build();
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (Files.size(file) >= size && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        duplicated.close();
+        duplicated.getWriterThreads()[0].join();
+        assertTrue(Files.size(file) < size, "The copies are counted against the file's foods, not the cached ones");
+    }
+
+    @Test
+    public void testCompactionIsDueAtTheDuplicatePercent() {
+        CacheCompaction compaction = CacheCompaction.atDuplicates(50, 100);
+        assertTrue(compaction.isDue(1000, 500));
+        assertFalse(compaction.isDue(1000, 501));
+        assertFalse(compaction.isDue(99, 1));
+        assertFalse(CacheCompaction.disabled().isDue(1000, 1));
+        assertThrows(IllegalArgumentException.class, () -> CacheCompaction.atDuplicates(100, 1));
+        assertThrows(IllegalArgumentException.class, () -> CacheCompaction.atDuplicates(0, 1));
+    }
+}
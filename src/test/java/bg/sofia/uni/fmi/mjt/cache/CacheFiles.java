@@ -0,0 +1,24 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.json.Food;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+//the bytes a cache writes for the foods, for the tests that start from a prepared file
+final class CacheFiles {
+    private CacheFiles() {
+    }
+
+    static byte[] encode(FoodFileCodec codec, List<Food> foods, boolean header) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (header) {
+            out.writeBytes(codec.header());
+        }
+        for (Food food : foods) {
+            codec.encode(food, out);
+        }
+        return out.toByteArray();
+    }
+}
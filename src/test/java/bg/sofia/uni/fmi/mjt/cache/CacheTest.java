@@ -2,17 +2,23 @@ package bg.sofia.uni.fmi.mjt.cache;
 
 import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
 import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.json.FoodQuery;
 import bg.sofia.uni.fmi.mjt.logger.Logger;
 import com.google.gson.Gson;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,12 +27,15 @@ import static org.mockito.Mockito.mock;
 
 @ExtendWith(MockitoExtension.class)
 public class CacheTest {
-    private final Gson gson = new Gson();
+    private final Gson gson = JsonFoodCodec.FILE_GSON;
 
     private static Logger logger;
     private static FoodCache foodCache;
     private static final String CACHE_TEST_FILE = "./src/test/resources/cacheTest.txt";
 
+    @TempDir
+    Path tempDir;
+
     @BeforeAll
     static void init() {
         logger = mock(Logger.class);
@@ -97,8 +106,7 @@ public class CacheTest {
 
     @Test
     public void testStore() throws IOException, CacheException, InterruptedException {
-        final String tempCacheFile = "./tempCacheFile.txt";
-        FoodCache storeFoodCache = new FoodCache(Path.of(tempCacheFile), logger);
+        FoodCache storeFoodCache = new FoodCache(tempDir.resolve("cache.txt"), logger);
 
         List<Food> foodList = new ArrayList<>();
         foodList.add(gson.fromJson("{\"fdcId\":2015943,\"dataType\":\"Branded\",\"description\":\"CHEDDAR CHEESE\",\"foodNutrients\":[{\"number\":\"203\",\"name\":\"Protein\",\"amount\":25.0,\"unitName\":\"G\"},{\"number\":\"204\",\"name\":\"Total lipid (fat)\",\"amount\":32.1,\"unitName\":\"G\"},{\"number\":\"205\",\"name\":\"Carbohydrate, by difference\",\"amount\":3.57,\"unitName\":\"G\"},{\"number\":\"208\",\"name\":\"Energy\",\"amount\":393.0,\"unitName\":\"KCAL\"},{\"number\":\"269\",\"name\":\"Sugars, total including NLEA\",\"amount\":0.0,\"unitName\":\"G\"},{\"number\":\"291\",\"name\":\"Fiber, total dietary\",\"amount\":0.0,\"unitName\":\"G\"},{\"number\":\"301\",\"name\":\"Calcium, Ca\",\"amount\":714.0,\"unitName\":\"MG\"},{\"number\":\"303\",\"name\":\"Iron, Fe\",\"amount\":0.0,\"unitName\":\"MG\"},{\"number\":\"307\",\"name\":\"Sodium, Na\",\"amount\":607.0,\"unitName\":\"MG\"},{\"number\":\"318\",\"name\":\"Vitamin A, IU\",\"amount\":1070.0,\"unitName\":\"IU\"},{\"number\":\"401\",\"name\":\"Vitamin C, total ascorbic acid\",\"amount\":0.0,\"unitName\":\"MG\"},{\"number\":\"601\",\"name\":\"Cholesterol\",\"amount\":107.0,\"unitName\":\"MG\"},{\"number\":\"605\",\"name\":\"Fatty acids, total trans\",\"amount\":0.0,\"unitName\":\"G\"},{\"number\":\"606\",\"name\":\"Fatty acids, total saturated\",\"amount\":21.4,\"unitName\":\"G\"}],\"gtinUpc\":\"75925306223\",\"ingredients\":\"CHEDDAR CHEESE (PASTEURIZED MILK, CHEESE CULTURE, SALT, ENZYMES, ANNATTO COLOR), POTATO STARCH, STARCH AND CELLULOSE POWDER TO PREVENT CAKING, NATAMYCIN (MOLD INHIBITOR).\",\"query\":\"cheddar cheese\"}\n",
@@ -119,6 +127,8 @@ public class CacheTest {
         assertEquals(foodList.get(0), storeFoodCache.getByFdcId(2015943).getFood());
         assertEquals(foodList.get(1), storeFoodCache.getByFdcId(2118224).getFood());
         assertEquals(foodList.get(2), storeFoodCache.getByFdcId(2095236).getFood());
+        assertNull(foodList.get(0).getCachedAt(), "Submitted foods may be in a response, so they aren't changed");
+        assertNotNull(storeFoodCache.getByFdcId(2015943).getFood().getCachedAt());
 
         assertEquals(foodList.get(0), storeFoodCache.getByGtinUpc("75925306223").getFood());
         assertEquals(foodList.get(1), storeFoodCache.getByGtinUpc("075925300009").getFood());
@@ -128,7 +138,362 @@ public class CacheTest {
         assertEquals(actual.size(), 3);
         assertTrue(actual.containsAll(foodList));
         assertTrue(foodList.containsAll(actual));
+    }
+
+    @Test
+    public void testBoundedCacheEvictsFromEveryIndex() throws IOException, CacheException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        FoodCache boundedCache = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setCapacity(CacheCapacity.ofEntries(2))
+                .build();
+
+        List<Food> foodList = new ArrayList<>();
+        for (int id = 1; id <= 3; id++) {
+            foodList.add(gson.fromJson(String.format("{\"fdcId\":%d,\"dataType\":\"Branded\",\"description\":\"FOOD %d\","
+                    + "\"foodNutrients\":[],\"gtinUpc\":\"%d\",\"query\":\"food %d\"}", id, id, id, id), Food.class));
+        }
+        for (Food food : foodList) {
+            boundedCache.storeInCache(food);
+        }
+        boundedCache.close();
+
+        assertEquals(2, boundedCache.getSize());
+        int evicted = 0;
+        for (Food food : foodList) {
+            if (boundedCache.getByFdcId(food.getFdcId()) == null) {
+                evicted++;
+                assertNull(boundedCache.getByGtinUpc(food.getGtinUpc()));
+                assertNull(boundedCache.getByKeywords(food.getQuery()));
+            } else {
+                assertEquals(food, boundedCache.getByGtinUpc(food.getGtinUpc()).getFood());
+                assertEquals(List.of(food), boundedCache.getByKeywords(food.getQuery()).getFoods());
+            }
+        }
+        assertEquals(1, evicted);
+    }
+
+    @Test
+    public void testPagesServeOnlyCachedFoods() throws IOException, CacheException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        FoodCache pagedCache = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setCapacity(CacheCapacity.ofEntries(2))
+                .build();
+        FoodQuery page = gson.fromJson("{\"totalHits\":2,\"currentPage\":1,\"totalPages\":1,\"foods\":["
+                + "{\"fdcId\":1,\"description\":\"FOOD 1\"},{\"fdcId\":2,\"description\":\"FOOD 2\"}]}",
+                FoodQuery.class);
+
+        pagedCache.submitPage("food", 1, 2, page);
+        assertNull(pagedCache.getPage("food", 1, 2), "A page is served only once its foods are cached");
+        for (Food food : page.getFoods()) {
+            pagedCache.storeInCache(food);
+        }
+        FoodQuery cached = pagedCache.getPage("food", 1, 2);
+        assertEquals(page.getFoods(), cached.getFoods());
+        assertEquals(2, cached.getTotalHits());
+        assertNotNull(cached.getCachedAt());
+
+        //the page doesn't keep an evicted food alive
+        for (int id = 3; id <= 5; id++) {
+            pagedCache.storeInCache(gson.fromJson(String.format("{\"fdcId\":%d}", id), Food.class));
+        }
+        pagedCache.close();
+        assertNull(pagedCache.getPage("food", 1, 2));
+    }
+
+    @Test
+    public void testSubmittedResultReplacesTheFoodsOfItsQuery()
+            throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        FoodCache resultCache = new FoodCache(tempCacheFile, logger);
+
+        String json = "{\"fdcId\":%d,\"description\":\"FOOD\",\"query\":\"food\",\"cachedAt\":1}";
+        resultCache.storeInCache(gson.fromJson(String.format(json, 1), Food.class));
+        resultCache.storeInCache(gson.fromJson(String.format(json, 2), Food.class));
+        Food refetched = new Food(2, null, "FOOD", null, null, null, "food", null);
+        resultCache.submitResult("food", List.of(refetched));
+        resultCache.close();
+        resultCache.getWriterThreads()[0].join();
+
+        List<Food> foods = resultCache.getByKeywords("food").getFoods();
+        assertEquals(List.of(refetched), foods, "The food the API dropped isn't part of the result anymore");
+        assertNotEquals(1L, foods.get(0).getCachedAt());
+        assertNotNull(resultCache.getByFdcId(1), "It is still cached by id");
+    }
+
+    @Test
+    public void testRefreshedFoodReplacesOlderCopy() throws IOException, CacheException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        FoodCache refreshedCache = new FoodCache(tempCacheFile, logger);
+
+        String json = "{\"fdcId\":1,\"dataType\":\"Branded\",\"description\":\"%s\",\"foodNutrients\":[],"
+                + "\"query\":\"food\",\"cachedAt\":%d}";
+        refreshedCache.storeInCache(gson.fromJson(String.format(json, "OLD", 1), Food.class));
+        refreshedCache.storeInCache(gson.fromJson(String.format(json, "NEW", 2), Food.class));
+        refreshedCache.storeInCache(gson.fromJson(String.format(json, "OLDER", 0), Food.class));
+        refreshedCache.close();
+
+        assertEquals("NEW", refreshedCache.getByFdcId(1).getFood().getDescription());
+        assertEquals(2L, refreshedCache.getByFdcId(1).getFood().getCachedAt());
+        assertEquals(1, refreshedCache.getByKeywords("food").getFoods().size());
+    }
+
+    @Test
+    public void testSingleWriterWritesEveryConcurrentSubmit() throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        FoodCache writtenCache = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setDurability(CacheDurability.fsyncEvery(Duration.ofMillis(5)))
+                .build();
+        assertEquals(1, writtenCache.getWriterThreads().length);
+
+        final int threads = 4;
+        final int foodsPerThread = 100;
+        List<Thread> submitters = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int first = t * foodsPerThread;
+            submitters.add(new Thread(() -> {
+                for (int id = first; id < first + foodsPerThread; id++) {
+                    writtenCache.submit(gson.fromJson(String.format("{\"fdcId\":%d,\"description\":\"FOOD\"}", id),
+                            Food.class));
+                }
+            }));
+        }
+        for (Thread submitter : submitters) {
+            submitter.start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        writtenCache.close();
+        for (var writer : writtenCache.getWriterThreads()) {
+            writer.join();
+        }
+
+        assertEquals(threads * foodsPerThread, writtenCache.getSize());
+        assertEquals(threads * foodsPerThread, Files.readAllLines(tempCacheFile).size());
+        FoodCache reloaded = new FoodCache(tempCacheFile, logger);
+        reloaded.close();
+        assertEquals(threads * foodsPerThread, reloaded.getSize());
+    }
+
+    private List<Food> sampleFoods() {
+        List<Food> foods = new ArrayList<>();
+        foods.add(gson.fromJson("{\"fdcId\":1,\"dataType\":\"Branded\",\"description\":\"RAFFAELLO\","
+                + "\"foodNutrients\":[{\"number\":\"208\",\"name\":\"Energy\",\"amount\":632.0,"
+                + "\"unitName\":\"KCAL\"},{\"number\":\"204\",\"name\":\"Total lipid (fat)\","
+                + "\"unitName\":\"G\"}],\"gtinUpc\":\"009800146130\",\"ingredients\":\"COCONUT, SUGAR\","
+                + "\"query\":\"raffaello\",\"cachedAt\":1700000000000}", Food.class));
+        foods.add(gson.fromJson("{\"fdcId\":2,\"dataType\":\"Branded\",\"description\":\"CHEESE \\u0411\","
+                + "\"foodNutrients\":[{\"number\":\"208\",\"name\":\"Energy\",\"amount\":350.5,"
+                + "\"unitName\":\"KCAL\"}],\"query\":\"cheese\",\"cachedAt\":1700000000001}", Food.class));
+        foods.add(gson.fromJson("{\"fdcId\":3,\"description\":\"WATER\",\"cachedAt\":1700000000002}",
+                Food.class));
+        return foods;
+    }
+
+    private void writeAndWait(FoodCache cache, List<Food> foods) throws InterruptedException {
+        cache.submitAll(foods);
+        cache.close();
+        for (var writer : cache.getWriterThreads()) {
+            writer.join();
+        }
+    }
+
+    @Test
+    public void testBinaryCacheFileReloadsEveryField() throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.bin");
+        List<Food> foods = sampleFoods();
+        writeAndWait(FoodCache.newFoodCacheBuilder(tempCacheFile, logger).setFormat(CacheFormat.BINARY).build(),
+                foods);
+
+        assertEquals(CacheFormat.BINARY, CacheFormat.of(tempCacheFile, CacheFormat.JSON));
+        FoodCache reloaded = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setFormat(CacheFormat.BINARY)
+                .build();
+        reloaded.close();
+        for (Food food : foods) {
+            assertEquals(gson.toJson(food), gson.toJson(reloaded.getByFdcId(food.getFdcId()).getFood()));
+        }
+        assertEquals(foods.get(0), reloaded.getByGtinUpc("009800146130").getFood());
+    }
+
+    private void assertTornRecordIsDroppedAndTruncated(CacheFormat format, byte[] tornTail)
+            throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache." + format);
+        List<Food> foods = sampleFoods();
+        writeAndWait(FoodCache.newFoodCacheBuilder(tempCacheFile, logger).setFormat(format).build(), foods);
+        long size = Files.size(tempCacheFile);
+        if (tornTail == null) {
+            try (var channel = FileChannel.open(tempCacheFile, StandardOpenOption.WRITE)) {
+                channel.truncate(size - 3);
+            }
+        } else {
+            Files.write(tempCacheFile, tornTail, StandardOpenOption.APPEND);
+        }
+
+        FoodCache reloaded = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setFormat(format)
+                .build();
+        assertEquals(tornTail == null, reloaded.getByFdcId(3) == null);
+        assertNotNull(reloaded.getByFdcId(2));
+        writeAndWait(reloaded, List.of(foods.get(2)));
+
+        FoodCache repaired = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setFormat(format)
+                .build();
+        repaired.close();
+        assertEquals(3, repaired.getSize());
+        assertEquals("WATER", repaired.getByFdcId(3).getFood().getDescription());
+    }
+
+    @Test
+    public void testTornBinaryRecordIsDroppedAndTruncated() throws IOException, CacheException, InterruptedException {
+        assertTornRecordIsDroppedAndTruncated(CacheFormat.BINARY, null);
+    }
+
+    @Test
+    public void testTornJsonLineIsDroppedAndTruncated() throws IOException, CacheException, InterruptedException {
+        //cut short, and complete but unparsable
+        assertTornRecordIsDroppedAndTruncated(CacheFormat.JSON, null);
+        assertTornRecordIsDroppedAndTruncated(CacheFormat.JSON,
+                "{\"fdcId\":4,\"descri\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUnterminatedLastJsonLineIsKept() throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        Files.writeString(tempCacheFile, "{\"fdcId\":1,\"description\":\"FOOD\"}");
+
+        FoodCache unterminated = new FoodCache(tempCacheFile, logger);
+        assertNotNull(unterminated.getByFdcId(1));
+        writeAndWait(unterminated, List.of(sampleFoods().get(2)));
+
+        FoodCache reloaded = new FoodCache(tempCacheFile, logger);
+        reloaded.close();
+        assertEquals(2, reloaded.getSize());
+        assertEquals(2, Files.readAllLines(tempCacheFile).size());
+    }
+
+    @Test
+    public void testConverterKeepsEveryFood() throws IOException, CacheException, InterruptedException {
+        Path jsonFile = tempDir.resolve("cache.txt");
+        Path binaryFile = tempDir.resolve("cache.bin");
+        Path backToJson = tempDir.resolve("cache2.txt");
+        List<Food> foods = sampleFoods();
+        writeAndWait(new FoodCache(jsonFile, logger), foods);
+
+        assertEquals(foods.size(), CacheFileConverter.convert(jsonFile, binaryFile, CacheFormat.BINARY));
+        assertThrows(IllegalArgumentException.class,
+                () -> CacheFileConverter.convert(jsonFile, binaryFile, CacheFormat.BINARY));
+        assertEquals(foods.size(), CacheFileConverter.convert(binaryFile, backToJson, CacheFormat.JSON));
+        assertEquals(Files.readAllLines(jsonFile), Files.readAllLines(backToJson));
+        assertTrue(Files.size(binaryFile) < Files.size(jsonFile));
+    }
+
+    @Test
+    public void testMappedCacheServesWrittenAndReloadedFoods() throws IOException, CacheException,
+            InterruptedException {
+        assertThrows(IllegalArgumentException.class, () -> FoodCache.newFoodCacheBuilder(Path.of("test"), logger)
+                .setStorage(CacheStorage.MAPPED)
+                .build());
+        Path tempCacheFile = tempDir.resolve("cache.bin");
+        FoodCache.FoodCacheBuilder builder = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setFormat(CacheFormat.BINARY)
+                .setStorage(CacheStorage.MAPPED);
+        List<Food> foods = sampleFoods();
+
+        FoodCache mappedCache = builder.build();
+        writeAndWait(mappedCache, foods);
+        assertEquals(foods.size(), mappedCache.getSize());
+        assertEquals(gson.toJson(foods.get(0)), gson.toJson(mappedCache.getByGtinUpc("009800146130").getFood()));
+        assertEquals(List.of(foods.get(1)), mappedCache.getByKeywords("cheese").getFoods());
+
+        FoodCache reloaded = builder.build();
+        Food refreshed = gson.fromJson("{\"fdcId\":3,\"description\":\"SPARKLING WATER\","
+                + "\"cachedAt\":1800000000000}", Food.class);
+        writeAndWait(reloaded, List.of(refreshed));
+        for (Food food : foods.subList(0, 2)) {
+            assertEquals(gson.toJson(food), gson.toJson(reloaded.getByFdcId(food.getFdcId()).getFood()));
+        }
+        assertEquals("SPARKLING WATER", reloaded.getByFdcId(3).getFood().getDescription());
+        assertEquals(foods.size(), reloaded.getSize());
+    }
+
+    private void awaitWarmUp(FoodCache cache) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (cache.getWarmUp() == FoodCache.WarmUp.LOADING && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testBackgroundLoadServesFileAndQueuedFoods() throws IOException, CacheException,
+            InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        List<Food> foods = sampleFoods();
+        writeAndWait(new FoodCache(tempCacheFile, logger), foods.subList(0, 2));
+
+        FoodCache warming = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setBackgroundLoad(true)
+                .build();
+        //submitted while loading, written after the loaded file
+        warming.submit(foods.get(2));
+        awaitWarmUp(warming);
+
+        assertEquals(FoodCache.WarmUp.WARM, warming.getWarmUp());
+        assertEquals(100, warming.getWarmUpPercent());
+        assertEquals(List.of(foods.get(1)), warming.getByKeywords("cheese").getFoods());
+        writeAndWait(warming, List.of());
+        assertEquals(3, warming.getSize());
+        assertEquals(3, Files.readAllLines(tempCacheFile).size());
+    }
+
+    @Test
+    public void testFoodsSubmittedWhileLoadingAreServedAndCloseStopsTheLoader()
+            throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        StringBuilder lines = new StringBuilder();
+        for (int id = 1; id <= 20_000; id++) {
+            lines.append(String.format("{\"fdcId\":%d,\"description\":\"FOOD %d\",\"query\":\"food\"}%n", id, id));
+        }
+        Files.writeString(tempCacheFile, lines);
+        long size = Files.size(tempCacheFile);
+
+        FoodCache loading = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setBackgroundLoad(true)
+                .setLoadThreads(1)
+                .build();
+        loading.submit(new Food(30_000, null, "WATER", null, null, null, null, null));
+        boolean submittedWhileLoading = loading.getWarmUp() == FoodCache.WarmUp.LOADING;
+        if (submittedWhileLoading) {
+            assertEquals("WATER", loading.getByFdcId(30_000).getFood().getDescription(),
+                    "A food fetched while the file loads is served before the writer starts");
+        }
+        loading.close();
+        boolean closedWhileLoading = loading.getWarmUp() == FoodCache.WarmUp.LOADING;
+        awaitWarmUp(loading);
+
+        assertEquals(FoodCache.WarmUp.WARM, loading.getWarmUp());
+        assertEquals("FOOD 20000", loading.getByFdcId(20_000).getFood().getDescription());
+        if (closedWhileLoading) {
+            assertEquals(0, loading.getWriterThreads().length, "A cache closed while loading never starts writing");
+            assertEquals(size, Files.size(tempCacheFile));
+        }
+    }
+
+    @Test
+    public void testFailedBackgroundLoadStopsWriting() throws IOException, CacheException, InterruptedException {
+        Path tempCacheFile = tempDir.resolve("cache.txt");
+        Files.writeString(tempCacheFile, "not a food\n{\"fdcId\":1,\"description\":\"FOOD\"}\n");
+
+        FoodCache failed = FoodCache.newFoodCacheBuilder(tempCacheFile, logger)
+                .setBackgroundLoad(true)
+                .build();
+        awaitWarmUp(failed);
 
-        Files.delete(Path.of(tempCacheFile));
+        assertEquals(FoodCache.WarmUp.FAILED, failed.getWarmUp());
+        assertEquals(0, failed.getWarmUpPercent());
+        failed.submit(sampleFoods().get(2));
+        assertEquals(0, failed.getWriterThreads().length);
+        assertEquals(2, Files.readAllLines(tempCacheFile).size());
     }
 }
@@ -0,0 +1,78 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FoodFileCodecTest {
+    private final Gson gson = JsonFoodCodec.FILE_GSON;
+
+    @TempDir
+    Path tempDir;
+
+    private Path writeFoods(CacheFormat format) throws IOException {
+        List<Food> foods = new ArrayList<>();
+        for (int id = 0; id < 300; id++) {
+            //ids and barcodes repeat, so the order the foods are stored in matters
+            foods.add(gson.fromJson(String.format("{\"fdcId\":%d,\"dataType\":\"Type %d\",\"description\":"
+                    + "\"FOOD %d\",\"foodNutrients\":[{\"number\":\"%d\",\"name\":\"Nutrient\",\"amount\":1.5,"
+                    + "\"unitName\":\"G\"}],\"gtinUpc\":\"%d\",\"query\":\"food %d\",\"cachedAt\":%d}",
+                    id % 50, id % 7, id, id % 11, id % 30, id % 13, id % 3), Food.class));
+        }
+        Path file = tempDir.resolve("codec." + format);
+        Files.write(file, CacheFiles.encode(format.newCodec(), foods, true));
+        return file;
+    }
+
+    private List<String> read(FoodFileCodec codec, Path file, ForkJoinPool pool, long[] valid)
+            throws IOException, CacheException {
+        List<String> foods = new ArrayList<>();
+        FoodFileCodec.FoodSink sink = (food, offset) -> foods.add(offset + " " + gson.toJson(food));
+        valid[0] = pool == null ? codec.read(file, sink) : codec.read(file, sink, pool, 100);
+        return foods;
+    }
+
+    private void assertParallelReadMatchesSequential(CacheFormat format, boolean tornTail)
+            throws IOException, CacheException {
+        Path file = writeFoods(format);
+        if (tornTail) {
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        long[] sequentialValid = new long[1];
+        long[] parallelValid = new long[1];
+
+        List<String> sequential = read(format.newCodec(), file, null, sequentialValid);
+        List<String> parallel = read(format.newCodec(), file, pool, parallelValid);
+
+        assertEquals(tornTail ? 299 : 300, sequential.size());
+        assertEquals(sequential, parallel);
+        assertEquals(sequentialValid[0], parallelValid[0]);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testParallelJsonReadMatchesSequentialRead() throws IOException, CacheException {
+        assertParallelReadMatchesSequential(CacheFormat.JSON, false);
+        assertParallelReadMatchesSequential(CacheFormat.JSON, true);
+    }
+
+    @Test
+    public void testParallelBinaryReadMatchesSequentialRead() throws IOException, CacheException {
+        assertParallelReadMatchesSequential(CacheFormat.BINARY, false);
+        assertParallelReadMatchesSequential(CacheFormat.BINARY, true);
+    }
+}
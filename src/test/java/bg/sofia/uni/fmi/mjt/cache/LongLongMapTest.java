@@ -0,0 +1,29 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongLongMapTest {
+    @Test
+    public void testKeepsEveryKeyAcrossResizes() {
+        LongLongMap map = new LongLongMap();
+        for (long key = 0; key < 10_000; key++) {
+            map.put(key * 4096, key);
+        }
+        map.put(0, 42);
+
+        assertEquals(10_000, map.size());
+        assertEquals(42, map.get(0, -1));
+        assertEquals(9_999, map.get(9_999 * 4096L, -1));
+        assertTrue(map.containsKey(4096));
+        assertFalse(map.containsKey(4095));
+        assertEquals(-1, map.get(4095, -1));
+        assertEquals(-1, map.get(-1, -1));
+    }
+
+    @Test
+    public void testNegativeKeyIsIllegal() {
+        assertThrows(IllegalArgumentException.class, () -> new LongLongMap().put(-1, 0));
+    }
+}
@@ -0,0 +1,93 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CacheException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedFoodStoreTest {
+    private final Gson gson = JsonFoodCodec.FILE_GSON;
+
+    @TempDir
+    Path tempDir;
+
+    private Path writeFoods(List<Food> foods) throws IOException {
+        Path file = tempDir.resolve("cache.bin");
+        Files.write(file, CacheFiles.encode(new BinaryFoodCodec(), foods, true));
+        return file;
+    }
+
+    @Test
+    public void testRecordsAcrossSegmentsAreDecoded() throws IOException, CacheException {
+        List<Food> foods = new ArrayList<>();
+        for (int id = 1; id <= 20; id++) {
+            foods.add(gson.fromJson(String.format("{\"fdcId\":%d,\"dataType\":\"Branded\",\"description\":\"FOOD %d\","
+                    + "\"foodNutrients\":[{\"number\":\"208\",\"name\":\"Energy\",\"amount\":%d.5,"
+                    + "\"unitName\":\"KCAL\"}],\"gtinUpc\":\"%d\",\"cachedAt\":%d}", id, id, id, id, id), Food.class));
+        }
+        Path file = writeFoods(foods);
+
+        BinaryFoodCodec codec = new BinaryFoodCodec();
+        //segments much smaller than a record, so most records and lengths cross a boundary
+        MappedFoodStore store = new MappedFoodStore(file, codec, 16);
+        store.extend(Files.size(file));
+        codec.read(file, store::put);
+
+        assertEquals(foods.size(), store.size());
+        for (Food food : foods) {
+            assertEquals(gson.toJson(food), gson.toJson(store.get(food.getFdcId())));
+        }
+        assertEquals("FOOD 3", store.remove(3).getDescription());
+        assertNull(store.get(3));
+    }
+
+    @Test
+    public void testAppendedFoodsStayOnHeapUntilTheTailIsRemapped() throws IOException, CacheException {
+        String json = "{\"fdcId\":%d,\"description\":\"FOOD %d\",\"cachedAt\":%d}";
+        List<Food> foods = new ArrayList<>();
+        for (int id = 1; id <= 3; id++) {
+            foods.add(gson.fromJson(String.format(json, id, id, id), Food.class));
+        }
+        Path file = writeFoods(foods);
+
+        BinaryFoodCodec codec = new BinaryFoodCodec();
+        MappedFoodStore store = new MappedFoodStore(file, codec, 1 << 20);
+        //as if the writer had appended the foods to an empty file
+        codec.read(file, (food, offset) -> store.put(foods.get(food.getFdcId() - 1), offset));
+        store.appended(Files.size(file));
+        for (Food food : foods) {
+            assertSame(food, store.get(food.getFdcId()), "Records short of the remap step aren't mapped yet");
+        }
+
+        store.extend(Files.size(file));
+        for (Food food : foods) {
+            assertNotSame(food, store.get(food.getFdcId()));
+            assertEquals(gson.toJson(food), gson.toJson(store.get(food.getFdcId())));
+        }
+    }
+
+    @Test
+    public void testOlderCopyDoesNotReplaceNewer() throws IOException, CacheException {
+        String json = "{\"fdcId\":1,\"description\":\"%s\",\"cachedAt\":%d}";
+        Path file = writeFoods(List.of(gson.fromJson(String.format(json, "NEW", 2), Food.class),
+                gson.fromJson(String.format(json, "OLD", 1), Food.class)));
+
+        BinaryFoodCodec codec = new BinaryFoodCodec();
+        MappedFoodStore store = new MappedFoodStore(file, codec);
+        store.extend(Files.size(file));
+        codec.read(file, store::put);
+
+        assertEquals(1, store.size());
+        assertEquals("NEW", store.get(1).getDescription());
+        assertThrows(CacheException.class, () -> store.put(new Food(), -1));
+    }
+}
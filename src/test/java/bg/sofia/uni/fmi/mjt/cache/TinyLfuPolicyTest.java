@@ -0,0 +1,50 @@
+package bg.sofia.uni.fmi.mjt.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TinyLfuPolicyTest {
+
+    @Test
+    public void testFrequentIdSurvivesScan() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(10, 10);
+        policy.add(1, 1);
+        for (int i = 0; i < 10; i++) {
+            policy.recordAccess(1);
+        }
+
+        for (int id = 2; id < 100; id++) {
+            assertFalse(policy.add(id, 1).contains(1), "A frequently read id should not be evicted by a scan");
+        }
+        assertEquals(10, policy.size());
+    }
+
+    @Test
+    public void testWeightsAreRespected() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(100, 10);
+        assertTrue(policy.add(1, 60).isEmpty());
+        List<Integer> evicted = policy.add(2, 60);
+
+        assertEquals(1, evicted.size());
+        assertEquals(1, policy.size());
+        assertEquals(60, policy.weightedSize());
+    }
+
+    @Test
+    public void testRemove() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(10, 10);
+        policy.add(1, 3);
+        policy.remove(1);
+
+        assertEquals(0, policy.size());
+        assertEquals(0, policy.weightedSize());
+    }
+
+    @Test
+    public void testIllegalMaximum() {
+        assertThrows(IllegalArgumentException.class, () -> new TinyLfuPolicy(0, 10));
+    }
+}
@@ -26,6 +26,18 @@ public class ClientRequestTest {
         assertDoesNotThrow(() -> new ClientRequest("get-food cheddar cheese"));
         assertDoesNotThrow(() -> new ClientRequest("get-food-report 1321321"));
         assertDoesNotThrow(() -> new ClientRequest("get-food-by-barcode --code=12312312"));
+        assertDoesNotThrow(() -> new ClientRequest("get-quota"));
+        assertDoesNotThrow(() -> new ClientRequest("get-cache-status"));
+        assertDoesNotThrow(() -> new ClientRequest("get-food-report-batch 1321321 534358"));
+        assertDoesNotThrow(() -> new ClientRequest("get-food-by-barcode-batch 000651700229 077034085228"));
+    }
+
+    @Test
+    public void testModifiesStreamRequest() {
+        AtomicReference<ClientRequest> request = new AtomicReference<>();
+        assertDoesNotThrow(() -> request.set(new ClientRequest("get-food --stream cheddar cheese")));
+        assertEquals("stream-food cheddar cheese", request.get().getRequest());
+        assertThrows(InvalidRequestException.class, () -> new ClientRequest("get-food --stream"));
     }
 
     @Test
@@ -1,6 +1,7 @@
 package bg.sofia.uni.fmi.mjt.client;
 
 import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.result.BatchItem;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
 import com.google.gson.Gson;
 import org.junit.jupiter.api.Test;
@@ -62,6 +63,19 @@ public class ClientResponseTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testClientResponseBatchItems() {
+        Food food = gson.fromJson("{\"fdcId\":539572,\"dataType\":\"Branded\",\"description\":\"BROCCOLI\"}", Food.class);
+        ResultData resultData = new ResultData(ResultData.STATUS_OK, "1 of 2 items found")
+                .withItems(List.of(new BatchItem("539572", food), new BatchItem("abc", "Invalid fdcId")));
+
+        String expected = System.lineSeparator() +
+                "539572: BROCCOLI (FdcId: 539572)" + System.lineSeparator() +
+                "abc: Invalid fdcId" + System.lineSeparator() +
+                "1 of 2 items found" + System.lineSeparator();
+        assertEquals(expected, new ClientResponse(resultData).toHumanReadableString());
+    }
+
     @Test
     public void testClientResultError() {
         ResultData resultData = new ResultData("Error", "Food not found");
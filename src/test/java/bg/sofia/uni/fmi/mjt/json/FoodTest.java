@@ -4,6 +4,8 @@ import com.google.gson.Gson;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 public class FoodTest {
     private final Gson gson = new Gson();
@@ -21,5 +23,14 @@ public class FoodTest {
         assertEquals(food.getFdcId(), 2095236);
     }
 
+    @Test
+    public void testCachedAtStaysOutOfTheWireFormat() {
+        Food food = new Food(1, "Branded", "WATER", null, null, null, null, null);
+        Food stamped = food.withCachedAt(1700000000000L);
 
+        assertNull(food.getCachedAt(), "The timestamp goes on a copy");
+        assertEquals(1700000000000L, stamped.getCachedAt());
+        assertFalse(gson.toJson(stamped).contains("cachedAt"));
+        assertNull(gson.fromJson("{\"fdcId\":1,\"cachedAt\":1}", Food.class).getCachedAt());
+    }
 }
@@ -0,0 +1,98 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import bg.sofia.uni.fmi.mjt.upstream.CircuitBreaker;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CacheRefresherTest extends ClosingMockTest {
+    private static final long NOW = 1_000_000_000L;
+    private static final Duration TTL = Duration.ofMinutes(10);
+
+    @Mock
+    private RequestHandler requestHandler;
+
+    @Mock
+    private CircuitBreaker circuitBreaker;
+
+    private final Gson gson = new Gson();
+
+    private CacheRefresher newRefresher(Map<SearchCriteria, Duration> ttls) {
+        when(circuitBreaker.getState()).thenReturn(CircuitBreaker.State.CLOSED);
+        return closeAfterTest(new CacheRefresher(ttls, 80, circuitBreaker, () -> requestHandler,
+                Clock.fixed(Instant.ofEpochMilli(NOW), ZoneOffset.UTC)), CacheRefresher::close);
+    }
+
+    private ResultData cachedFood(long age) {
+        Food food = gson.fromJson("{\"fdcId\":534358,\"description\":\"NUT 'N BERRY MIX\",\"gtinUpc\":\"077034085228\"}",
+                Food.class);
+        food.setCachedAt(NOW - age);
+        return new ResultData(ResultData.STATUS_OK, food);
+    }
+
+    @Test
+    public void testFreshness() {
+        CacheRefresher refresher = newRefresher(Map.of(SearchCriteria.BY_FDCID, TTL));
+        long ttl = TTL.toMillis();
+
+        assertEquals(CacheRefresher.Freshness.FRESH, refresher.freshness(SearchCriteria.BY_FDCID, NOW - ttl / 2));
+        assertEquals(CacheRefresher.Freshness.REFRESH_DUE, refresher.freshness(SearchCriteria.BY_FDCID, NOW - ttl * 9 / 10));
+        assertEquals(CacheRefresher.Freshness.EXPIRED, refresher.freshness(SearchCriteria.BY_FDCID, NOW - ttl));
+        assertEquals(CacheRefresher.Freshness.FRESH, refresher.freshness(SearchCriteria.BY_KEYWORDS, 0L),
+                "Criteria without a TTL never expire");
+    }
+
+    @Test
+    public void testHitDueForRefreshIsServedAndRefreshed() throws InvalidRequestException {
+        CacheRefresher refresher = newRefresher(Map.of(SearchCriteria.BY_FDCID, TTL));
+        Request request = Request.newRequestBuilder().setFdcId(534358).build();
+        ResultData cached = cachedFood(TTL.toMillis() * 9 / 10);
+
+        assertSame(cached, refresher.serve(request, cached));
+        verify(requestHandler, timeout(1000)).refresh(request);
+    }
+
+    @Test
+    public void testBarcodeIsRefreshedByFdcId() throws InvalidRequestException {
+        CacheRefresher refresher = newRefresher(Map.of(SearchCriteria.BY_GTINUPC, TTL));
+        Request request = Request.newRequestBuilder().setGtinUpc("077034085228").build();
+
+        assertNotNull(refresher.serve(request, cachedFood(TTL.toMillis() * 9 / 10)));
+        verify(requestHandler, timeout(1000)).refresh(Request.newRequestBuilder().setFdcId(534358).build());
+    }
+
+    @Test
+    public void testExpiredHitIsServedOnlyWhileCircuitIsOpen() throws InvalidRequestException {
+        CacheRefresher refresher = newRefresher(Map.of(SearchCriteria.BY_FDCID, TTL));
+        Request request = Request.newRequestBuilder().setFdcId(534358).build();
+        ResultData cached = cachedFood(TTL.toMillis() * 2);
+
+        assertNull(refresher.serve(request, cached));
+        when(circuitBreaker.getState()).thenReturn(CircuitBreaker.State.OPEN);
+        assertSame(cached, refresher.serve(request, cached));
+        verify(requestHandler, never()).refresh(request);
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new CacheRefresher(null, 80, null, () -> requestHandler));
+        assertThrows(IllegalArgumentException.class, () -> new CacheRefresher(Map.of(), 0, null, () -> requestHandler));
+        assertThrows(IllegalArgumentException.class,
+                () -> new CacheRefresher(Map.of(SearchCriteria.BY_FDCID, Duration.ZERO), 80, null, () -> requestHandler));
+    }
+}
@@ -0,0 +1,31 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Consumer;
+
+//Tests of components that run threads of their own against mocks. Every component a test builds
+//is closed after it, even when an assertion fails, so no thread outlives its test.
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+abstract class ClosingMockTest {
+    private final Deque<Runnable> closers = new ArrayDeque<>();
+
+    <T> T closeAfterTest(T component, Consumer<T> close) {
+        closers.push(() -> close.accept(component));
+        return component;
+    }
+
+    @AfterEach
+    public void closeAll() {
+        while (!closers.isEmpty()) {
+            closers.pop().run();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.upstream.HedgePolicy;
+import bg.sofia.uni.fmi.mjt.upstream.UpstreamClient;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FoodReportBatcherTest extends ClosingMockTest {
+    private static final String TWO_FOODS = """
+            [
+              {"fdcId": 534358, "description": "NUT 'N BERRY MIX", "dataType": "Branded"},
+              {"fdcId": 415269, "description": "BROCCOLI", "dataType": "Branded"}
+            ]""";
+
+    @Mock
+    private HttpClient client;
+
+    private FoodReportBatcher newBatcher(Duration window, int maxBatchSize) {
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).build();
+        return closeAfterTest(new FoodReportBatcher(upstreamClient, window, maxBatchSize), FoodReportBatcher::close);
+    }
+
+    private void respondWith(int statusCode, String body) {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(statusCode);
+        when(response.body()).thenReturn(body);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
+                .thenReturn(CompletableFuture.completedFuture(response));
+    }
+
+    @Test
+    public void testFullBatchIsSentAtOnceAndFannedOut() throws Exception {
+        respondWith(200, TWO_FOODS);
+        FoodReportBatcher batcher = newBatcher(Duration.ofMinutes(1), 3);
+
+        CompletableFuture<Food> nutMix = batcher.submit(534358);
+        CompletableFuture<Food> broccoli = batcher.submit(415269);
+        CompletableFuture<Food> unknown = batcher.submit(1);
+
+        assertEquals(534358, nutMix.get(1, TimeUnit.SECONDS).getFdcId(), "A full batch doesn't wait for its window");
+        assertEquals(415269, broccoli.get(1, TimeUnit.SECONDS).getFdcId());
+        assertNull(unknown.get(1, TimeUnit.SECONDS), "Ids missing from the answer weren't found");
+
+        ArgumentCaptor<HttpRequest> sent = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client, times(1)).sendAsync(sent.capture(), eq(HttpResponse.BodyHandlers.ofString()));
+        assertEquals("POST", sent.getValue().method());
+        assertTrue(sent.getValue().uri().getPath().endsWith("/foods"));
+    }
+
+    @Test
+    public void testWindowSendsPartialBatch() throws Exception {
+        respondWith(200, TWO_FOODS);
+        FoodReportBatcher batcher = newBatcher(Duration.ofMillis(200), Request.MAX_BATCH_SIZE);
+
+        CompletableFuture<Food> nutMix = batcher.submit(534358);
+        CompletableFuture<Food> sameFood = batcher.submit(534358);
+        CompletableFuture<Food> broccoli = batcher.submit(415269);
+
+        assertEquals(415269, broccoli.get(1, TimeUnit.SECONDS).getFdcId());
+        assertSame(nutMix.get(), sameFood.get(), "The same id is fetched once per batch");
+        verify(client, times(1)).sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    public void testWindowIsSentOffTheSchedulerThread() throws Exception {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(200);
+        when(response.body()).thenReturn(TWO_FOODS);
+        AtomicReference<String> sendingThread = new AtomicReference<>();
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenAnswer(
+                invocation -> {
+                    sendingThread.set(Thread.currentThread().getName());
+                    return CompletableFuture.completedFuture(response);
+                });
+        FoodReportBatcher batcher = newBatcher(Duration.ofMillis(2), Request.MAX_BATCH_SIZE);
+
+        batcher.submit(534358);
+        assertEquals(415269, batcher.fetch(415269).getFdcId());
+        assertEquals("food-report-sender", sendingThread.get(), "A send blocked on quota must not hold up other windows");
+    }
+
+    @Test
+    public void testSingleMissUsesFoodEndpoint() throws Exception {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(404);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(response);
+        FoodReportBatcher batcher = newBatcher(Duration.ofMillis(2), Request.MAX_BATCH_SIZE);
+
+        assertNull(batcher.fetch(534358));
+
+        ArgumentCaptor<HttpRequest> sent = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).send(sent.capture(), eq(HttpResponse.BodyHandlers.ofString()));
+        assertEquals("GET", sent.getValue().method());
+        assertTrue(sent.getValue().uri().getPath().endsWith("/food/534358"));
+    }
+
+    @Test
+    public void testSlowSingleReportIsStillHedged() {
+        CompletableFuture<HttpResponse<String>> slow = new CompletableFuture<>();
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(200);
+        when(response.body()).thenReturn("{\"fdcId\": 534358, \"description\": \"NUT 'N BERRY MIX\"}");
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
+                .thenReturn(slow, CompletableFuture.completedFuture(response));
+        HedgePolicy hedgePolicy = new HedgePolicy(1);
+        for (int i = 0; i < 20; i++) {
+            hedgePolicy.record(Duration.ofMillis(1).toNanos());
+        }
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setHedgePolicy(hedgePolicy)
+                .build();
+        FoodReportBatcher batcher = closeAfterTest(new FoodReportBatcher(upstreamClient, Duration.ofMillis(2),
+                Request.MAX_BATCH_SIZE), FoodReportBatcher::close);
+
+        assertEquals(534358, batcher.fetch(534358).getFdcId());
+        assertTrue(slow.isCancelled(), "A lone miss is hedged like an unbatched report");
+        verify(client, times(2)).sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    public void testFailedBatchFailsEveryWaiter() {
+        respondWith(500, "");
+        FoodReportBatcher batcher = newBatcher(Duration.ofMillis(2), 2);
+
+        CompletableFuture<Food> first = batcher.submit(534358);
+        assertThrows(HttpRequestException.class, () -> batcher.fetch(415269));
+        assertTrue(first.isCompletedExceptionally());
+        assertThrows(IllegalArgumentException.class,
+                () -> new FoodReportBatcher(mock(UpstreamClient.class), Duration.ofMillis(2), Request.MAX_BATCH_SIZE + 1));
+    }
+}
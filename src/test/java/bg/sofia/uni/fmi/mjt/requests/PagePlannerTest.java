@@ -0,0 +1,49 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.requests.PagePlanner.PagePlan;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PagePlannerTest {
+
+    @Test
+    public void testWholeWindowFitsInOnePage() {
+        PagePlan plan = PagePlanner.plan(0, Request.MAX_LIMIT, PagePlanner.UNKNOWN_TOTAL_HITS, PagePlanner.UNLIMITED_BUDGET);
+
+        assertEquals(Request.MAX_LIMIT, plan.pageSize());
+        assertEquals(1, plan.firstPage());
+        assertEquals(1, plan.lastPage());
+        assertTrue(plan.isComplete());
+    }
+
+    @Test
+    public void testWindowAtAnOffsetIsAlignedToOnePage() {
+        PagePlan plan = PagePlanner.plan(1000, 100, PagePlanner.UNKNOWN_TOTAL_HITS, PagePlanner.UNLIMITED_BUDGET);
+
+        assertEquals(plan.firstPage(), plan.lastPage());
+        int start = (plan.firstPage() - 1) * plan.pageSize();
+        assertTrue(start <= 1000 && start + plan.pageSize() >= 1100, "The page must contain the whole window");
+        assertTrue(plan.pageSize() <= PagePlanner.MAX_PAGE_SIZE);
+    }
+
+    @Test
+    public void testTotalHitsLimitThePages() {
+        PagePlan plan = PagePlanner.plan(2, 0, Request.MAX_LIMIT, 7, PagePlanner.UNLIMITED_BUDGET);
+
+        assertEquals(4, plan.lastPage(), "7 hits fill only 4 pages of 2");
+        assertTrue(plan.isComplete());
+    }
+
+    @Test
+    public void testLowBudgetCutsThePlan() {
+        PagePlan plan = PagePlanner.plan(10, 0, Request.MAX_LIMIT, 1000, 3);
+
+        assertEquals(3, plan.lastPage());
+        assertEquals(10, plan.neededLastPage());
+        assertFalse(plan.isComplete());
+
+        PagePlan noBudget = PagePlanner.plan(10, 0, Request.MAX_LIMIT, 1000, 0);
+        assertEquals(1, noBudget.lastPage(), "The first page is always planned");
+    }
+}
@@ -0,0 +1,76 @@
+package bg.sofia.uni.fmi.mjt.requests;
+
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestCoalescerTest {
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    @Test
+    public void testConcurrentIdenticalRequestsFetchOnce() throws Exception {
+        final int callers = 8;
+        AtomicInteger fetches = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ResultData expected = new ResultData(ResultData.STATUS_OK, "fetched");
+
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        List<Future<ResultData>> results = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            //different instances and keyword case, but the same normalized request
+            Request request = Request.newRequestBuilder().setKeywords(List.of(i % 2 == 0 ? "Apple" : "apple")).build();
+            results.add(executor.submit(() -> coalescer.execute(request, () -> {
+                fetches.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new HttpRequestException("Interrupted", e);
+                }
+                return expected;
+            })));
+        }
+        while (fetches.get() == 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        release.countDown();
+
+        for (Future<ResultData> result : results) {
+            assertSame(expected, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, fetches.get());
+        assertEquals(0, coalescer.getInFlightCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailureIsPropagatedAndForgotten() throws InvalidRequestException {
+        Request request = Request.newRequestBuilder().setFdcId(1).build();
+        assertThrows(HttpRequestException.class, () -> coalescer.execute(request, () -> {
+            throw new HttpRequestException("500");
+        }));
+        assertEquals(0, coalescer.getInFlightCount());
+        assertNull(coalescer.execute(request, () -> null));
+    }
+
+    @Test
+    public void testDifferentRequestsAreNotCoalesced() throws InvalidRequestException {
+        Request first = Request.newRequestBuilder().setFdcId(1).build();
+        Request second = Request.newRequestBuilder().setFdcId(2).build();
+        assertNotEquals(first, second);
+        assertEquals(first, Request.newRequestBuilder().setFdcId(1).build());
+        assertThrows(IllegalArgumentException.class, () -> coalescer.execute(null, () -> null));
+    }
+}
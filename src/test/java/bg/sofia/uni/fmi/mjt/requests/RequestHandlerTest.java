@@ -6,6 +6,8 @@ import bg.sofia.uni.fmi.mjt.exceptions.InvalidRequestException;
 import bg.sofia.uni.fmi.mjt.json.Food;
 import bg.sofia.uni.fmi.mjt.json.FoodQuery;
 import bg.sofia.uni.fmi.mjt.result.ResultData;
+import bg.sofia.uni.fmi.mjt.upstream.RateLimiter;
+import bg.sofia.uni.fmi.mjt.upstream.UpstreamClient;
 import com.google.gson.Gson;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -19,12 +21,18 @@ import java.io.IOException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
@@ -115,6 +123,9 @@ public class RequestHandlerTest {
         assertNotNull(result.getFoods());
         assertEquals(result.getFoods().size(), 6);
         assertEquals(result.getStatus(), ResultData.STATUS_OK);
+        //the result is tagged with its query, the pages it was cut from are cached and stay as they are
+        assertEquals("broccoli", result.getFoods().get(2).getQuery());
+        assertNull(foodQueryCompletableFuture1.join().getFoods().get(0).getQuery());
     }
 
 
@@ -202,10 +213,228 @@ public class RequestHandlerTest {
         assertThrows(HttpRequestException.class, () -> requestHandler.fetchFood("get-food-report 12341"));
     }
 
+    @Test
+    public void testUpstreamPermitsAreReleased() throws IOException, InterruptedException, InvalidRequestException {
+        HttpResponse<String> firstPageHttpResponse = mock(HttpResponse.class);
+        when(firstPageHttpResponse.statusCode()).thenReturn(200);
+        when(firstPageHttpResponse.body()).thenReturn(firstPageJson);
+
+        CompletableFuture<HttpResponse<String>> completableFutureMock = mock(CompletableFuture.class);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(firstPageHttpResponse);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(completableFutureMock);
+        when(completableFutureMock.thenApply(any(Function.class))).thenReturn(
+                CompletableFuture.completedFuture(gson.fromJson(secondPageJson, FoodQuery.class)),
+                CompletableFuture.completedFuture(gson.fromJson(thirdPageJson, FoodQuery.class)));
+        when(foodCache.getByKeywords(anyString())).thenReturn(null);
+
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setMaxConcurrentRequests(1)
+                .build();
+        assertNotNull(new RequestHandler(upstreamClient, foodCache, new RequestCoalescer()).fetchFood("get-food broccoli"));
+        assertEquals(1, upstreamClient.getAvailablePermits());
+    }
+
+    @Test
+    public void testStreamFoodSendsEveryPageAsFrame() throws IOException, InterruptedException, InvalidRequestException {
+        HttpResponse<String> firstPageHttpResponse = mock(HttpResponse.class);
+        when(firstPageHttpResponse.statusCode()).thenReturn(200);
+        when(firstPageHttpResponse.body()).thenReturn(firstPageJson);
+
+        CompletableFuture<HttpResponse<String>> completableFutureMock = mock(CompletableFuture.class);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(firstPageHttpResponse);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(completableFutureMock);
+        when(completableFutureMock.thenApply(any(Function.class))).thenReturn(
+                CompletableFuture.completedFuture(gson.fromJson(secondPageJson, FoodQuery.class)),
+                CompletableFuture.completedFuture(gson.fromJson(thirdPageJson, FoodQuery.class)));
+        when(foodCache.getByKeywords(anyString())).thenReturn(null);
+
+        List<ResultData> frames = new ArrayList<>();
+        ResultData end = requestHandler.streamFood("stream-food broccoli", frames::add);
+
+        assertEquals(3, frames.size());
+        for (ResultData frame : frames) {
+            assertEquals(ResultData.STATUS_PARTIAL, frame.getStatus());
+            assertEquals(2, frame.getFoods().size());
+        }
+        assertEquals(ResultData.STATUS_END, end.getStatus());
+        assertTrue(RequestHandler.isStreamRequest("stream-food broccoli"));
+        assertFalse(RequestHandler.isStreamRequest("get-food broccoli"));
+    }
+
+    @Test
+    public void testWindowFetchesOnlyNeededPages() throws IOException, InterruptedException, InvalidRequestException {
+        HttpResponse<String> firstPageHttpResponse = mock(HttpResponse.class);
+        when(firstPageHttpResponse.statusCode()).thenReturn(200);
+        when(firstPageHttpResponse.body()).thenReturn(firstPageJson);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(firstPageHttpResponse);
+
+        ResultData result = requestHandler.fetchFood("get-food broccoli --limit=1");
+
+        assertEquals(1, result.getFoods().size());
+        assertEquals(1, Request.decodeCursor(result.getNextCursor()));
+        assertNull(result.getFoods().get(0).getQuery(), "A window is not the whole result of the query");
+        verify(client, never()).sendAsync(any(HttpRequest.class), any());
+        verify(foodCache).submitPage(eq("broccoli"), eq(1), anyInt(), any(FoodQuery.class));
+    }
+
+    @Test
+    public void testWindowIsAnsweredFromCachedPages() throws IOException, InterruptedException, InvalidRequestException {
+        FoodQuery page = gson.fromJson(firstPageJson, FoodQuery.class);
+        when(foodCache.getPageSizes("broccoli")).thenReturn(List.of(2));
+        when(foodCache.getPage("broccoli", 1, 2)).thenReturn(page);
+
+        ResultData result = requestHandler.fetchFood(String.format("get-food Broccoli --cursor=%s --limit=1",
+                Request.encodeCursor(1)));
+
+        assertEquals(1, result.getFoods().size(), "The window is cut out of the cached page of 2 foods");
+        assertEquals(page.getFoods().get(1), result.getFoods().get(0));
+        verify(client, never()).send(any(HttpRequest.class), any());
+        assertThrows(InvalidRequestException.class, () -> requestHandler.fetchFood("get-food broccoli --limit=0"));
+        assertThrows(InvalidRequestException.class, () -> requestHandler.fetchFood("get-food broccoli --cursor=xyz"));
+    }
+
+    @Test
+    public void testReportBatchAnswersEveryItem() throws IOException, InterruptedException, InvalidRequestException {
+        Food cached = gson.fromJson("{\"fdcId\":1,\"dataType\":\"Branded\",\"description\":\"CACHED\"}", Food.class);
+        when(foodCache.getByFdcId(1)).thenReturn(new ResultData(ResultData.STATUS_OK, cached));
+        HttpResponse<String> notFound = mock(HttpResponse.class);
+        when(notFound.statusCode()).thenReturn(404);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(notFound);
+
+        ResultData result = requestHandler.fetchFood("get-food-report-batch 1 abc 2");
+
+        assertEquals(ResultData.STATUS_OK, result.getStatus());
+        assertEquals(3, result.getItems().size());
+        assertSame(cached, result.getItems().get(0).getFood(), "Cache hits are answered without the API");
+        assertEquals(ResultData.STATUS_ERROR, result.getItems().get(1).getStatus());
+        assertEquals("2", result.getItems().get(2).getKey());
+        assertFalse(result.getItems().get(2).isFound());
+        verify(client).send(any(HttpRequest.class), any());
+        assertThrows(InvalidRequestException.class, () -> requestHandler.fetchFood("get-food-report-batch  "));
+    }
+
+    @Test
+    public void testBarcodeBatchIsAnsweredFromCache() throws InvalidRequestException {
+        Food cached = gson.fromJson("{\"fdcId\":1,\"dataType\":\"Branded\",\"gtinUpc\":\"077034085228\"}", Food.class);
+        when(foodCache.getByGtinUpc("077034085228")).thenReturn(new ResultData(ResultData.STATUS_OK, cached));
+
+        ResultData result = requestHandler.fetchFood("get-food-by-barcode-batch 077034085228 000000000000");
+
+        assertTrue(result.getItems().get(0).isFound());
+        assertFalse(result.getItems().get(1).isFound());
+        assertEquals("1 of 2 items found", result.getMessage());
+    }
+
+    @Test
+    public void testFailedPageKeepsThePagesBeforeIt() throws IOException, InterruptedException, InvalidRequestException {
+        HttpResponse<String> firstPageHttpResponse = mock(HttpResponse.class);
+        when(firstPageHttpResponse.statusCode()).thenReturn(200);
+        when(firstPageHttpResponse.body()).thenReturn(firstPageJson);
+
+        CompletableFuture<HttpResponse<String>> completableFutureMock = mock(CompletableFuture.class);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(firstPageHttpResponse);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(completableFutureMock);
+        when(completableFutureMock.thenApply(any(Function.class))).thenReturn(
+                CompletableFuture.completedFuture(gson.fromJson(secondPageJson, FoodQuery.class)),
+                CompletableFuture.failedFuture(new HttpRequestException("503 Unknown HTTP request error")));
+        when(foodCache.getByKeywords(anyString())).thenReturn(null);
+
+        ResultData result = requestHandler.fetchFood("get-food broccoli");
+
+        assertEquals(ResultData.STATUS_OK, result.getStatus());
+        assertEquals(4, result.getFoods().size());
+        assertNotNull(result.getMessage());
+        verify(foodCache).submitPage(eq("broccoli"), eq(1), anyInt(), any(FoodQuery.class));
+    }
+
+    @Test
+    public void testQueryIsAssembledFromCachedPages() throws IOException, InterruptedException, InvalidRequestException {
+        when(foodCache.getByKeywords(anyString())).thenReturn(null);
+        when(foodCache.getPageSizes("broccoli")).thenReturn(List.of(2));
+        when(foodCache.getPage("broccoli", 1, 2)).thenReturn(gson.fromJson(firstPageJson, FoodQuery.class));
+        when(foodCache.getPage("broccoli", 2, 2)).thenReturn(gson.fromJson(secondPageJson, FoodQuery.class));
+        when(foodCache.getPage("broccoli", 3, 2)).thenReturn(gson.fromJson(thirdPageJson, FoodQuery.class));
+
+        ResultData result = requestHandler.fetchFood("get-food broccoli");
+
+        assertEquals(6, result.getFoods().size());
+        verify(client, never()).send(any(HttpRequest.class), any());
+    }
+
+    @Test
+    public void testTrailingPagesAreDroppedWhenQuotaIsLow() throws IOException, InterruptedException, InvalidRequestException {
+        HttpResponse<String> firstPageHttpResponse = mock(HttpResponse.class);
+        when(firstPageHttpResponse.statusCode()).thenReturn(200);
+        when(firstPageHttpResponse.body()).thenReturn(firstPageJson);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(firstPageHttpResponse);
+        when(foodCache.getByKeywords(anyString())).thenReturn(null);
+
+        //the first page takes the only token above the reserve, trailing pages must not touch the reserve
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setRateLimiter(new RateLimiter(2))
+                .build();
+        RequestHandler handler = new RequestHandler(upstreamClient, foodCache, new RequestCoalescer());
+        ResultData result = handler.fetchFood("get-food broccoli");
+
+        assertEquals(ResultData.STATUS_OK, result.getStatus());
+        assertEquals(2, result.getFoods().size());
+        assertNotNull(result.getMessage());
+        for (Food food : result.getFoods()) {
+            assertNull(food.getQuery(), "Partial results must not be cached as the answer to the query");
+        }
+        assertEquals(1, upstreamClient.getRateLimiter().getRejectedCount());
+        assertTrue(handler.fetchFood("get-quota").getMessage().startsWith("1 of 2"));
+    }
+
+    @Test
+    public void testCachedFirstPageIsNotCountedAsPaid() throws InvalidRequestException {
+        HttpResponse<String> secondPageHttpResponse = mock(HttpResponse.class);
+        when(secondPageHttpResponse.statusCode()).thenReturn(200);
+        when(secondPageHttpResponse.body()).thenReturn(secondPageJson);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
+                .thenReturn(CompletableFuture.completedFuture(secondPageHttpResponse));
+        when(foodCache.getPage(eq("broccoli"), eq(1), anyInt())).thenReturn(gson.fromJson(firstPageJson, FoodQuery.class));
+
+        //the quota pays for two more pages, the cached first page must not buy a third one
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setRateLimiter(new RateLimiter(2))
+                .build();
+        RequestHandler handler = new RequestHandler(upstreamClient, foodCache, new RequestCoalescer());
+        ResultData result = handler.fetchFood("get-food broccoli");
+
+        assertEquals(4, result.getFoods().size());
+        assertEquals(1, upstreamClient.getRateLimiter().getGrantedCount());
+        assertEquals(0, upstreamClient.getRateLimiter().getRejectedCount(), "No page is planned past the budget");
+    }
+
+    @Test
+    public void testExpiredHitIsServedWhenRefetchFails() throws IOException, InterruptedException, InvalidRequestException {
+        Food food = gson.fromJson("{\"fdcId\":534358,\"description\":\"NUT 'N BERRY MIX\"}", Food.class);
+        food.setCachedAt(0L);
+        ResultData cached = new ResultData(ResultData.STATUS_OK, food);
+        when(foodCache.getByFdcId(534358)).thenReturn(cached);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenThrow(IOException.class);
+
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).build();
+        CacheRefresher refresher = new CacheRefresher(Map.of(SearchCriteria.BY_FDCID, Duration.ofMinutes(1)), 80,
+                null, () -> requestHandler);
+        RequestHandler handler = new RequestHandler(upstreamClient, foodCache, new RequestCoalescer(), null, refresher);
+
+        assertSame(cached, handler.fetchFood("get-food-report 534358"));
+        verify(client).send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+        refresher.close();
+    }
+
     @Test
     public void testIllegalArguments() {
         assertThrows(IllegalArgumentException.class, () -> new RequestHandler(null, foodCache));
         assertThrows(IllegalArgumentException.class, () -> new RequestHandler(client, null));
+        assertThrows(IllegalArgumentException.class, () -> new RequestHandler(null, foodCache, new RequestCoalescer()));
+        assertThrows(IllegalArgumentException.class, () -> new RequestHandler(
+                UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).build(), foodCache, null));
         assertThrows(IllegalArgumentException.class, () -> new RequestHandler(client, foodCache).fetchFood(null));
         assertThrows(IllegalArgumentException.class, () -> new RequestHandler(client, foodCache).fetchFood("  "));
     }
@@ -567,4 +796,16 @@ public class RequestHandlerTest {
               }
             }""";
 
+
+    @Test
+    public void testCacheStatusShowsWarmUpProgress() throws InvalidRequestException {
+        when(foodCache.getWarmUp()).thenReturn(FoodCache.WarmUp.LOADING);
+        when(foodCache.getWarmUpPercent()).thenReturn(40);
+        when(foodCache.getSize()).thenReturn(120);
+
+        ResultData status = requestHandler.fetchFood("get-cache-status");
+
+        assertEquals(ResultData.STATUS_OK, status.getStatus());
+        assertEquals("Cache is warming up, 40% of the cache file loaded, 120 foods cached", status.getMessage());
+    }
 }
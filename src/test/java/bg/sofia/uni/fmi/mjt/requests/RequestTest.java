@@ -5,6 +5,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class RequestTest {
@@ -15,4 +16,21 @@ public class RequestTest {
         assertThrows(InvalidRequestException.class,() -> Request.newRequestBuilder().build());
         assertThrows(InvalidRequestException.class, () -> Request.newRequestBuilder().setKeywords(List.of()).build());
     }
+
+    @Test
+    public void testCursorRoundTrip() throws InvalidRequestException {
+        assertEquals(25, Request.decodeCursor(Request.encodeCursor(25)));
+        assertThrows(InvalidRequestException.class, () -> Request.decodeCursor("not a cursor"));
+        assertThrows(InvalidRequestException.class, () -> Request.decodeCursor("b2Zmc2V0OmFiYw"));
+    }
+
+    @Test
+    public void testBuildInvalidWindow() {
+        assertThrows(InvalidRequestException.class,
+                () -> Request.newRequestBuilder().setKeywords(List.of("apple")).setWindow(Request.MAX_LIMIT + 1, 0).build());
+        assertThrows(InvalidRequestException.class,
+                () -> Request.newRequestBuilder().setKeywords(List.of("apple")).setWindow(10, -1).build());
+        assertThrows(InvalidRequestException.class,
+                () -> Request.newRequestBuilder().setKeywords(List.of("apple")).setPageSize(PagePlanner.MAX_PAGE_SIZE + 1).build());
+    }
 }
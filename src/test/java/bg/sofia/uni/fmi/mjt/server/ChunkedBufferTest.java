@@ -0,0 +1,61 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedBufferTest {
+
+    @Test
+    public void testPutGrowsAcrossChunksAndWritesEverything() throws IOException {
+        BufferPool pool = new BufferPool();
+        byte[] data = new byte[BufferPool.SMALL_BUFFER_SIZE + BufferPool.MEDIUM_BUFFER_SIZE + 1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+
+        ChunkedBuffer buffer = new ChunkedBuffer(pool);
+        buffer.put(data, 0, 10);
+        buffer.put(data, 10, data.length - 10);
+        buffer.flip();
+        assertEquals(data.length, buffer.size());
+
+        Path file = Files.createTempFile("chunked", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                buffer.writeTo(channel);
+            }
+        }
+        assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+        Files.delete(file);
+
+        buffer.release();
+        assertEquals(3, pool.getFreeBuffersCount());
+    }
+
+    @Test
+    public void testPutAfterFlipThrowsIllegalStateException() {
+        ChunkedBuffer buffer = new ChunkedBuffer(new BufferPool());
+        buffer.put((byte) 1);
+        buffer.flip();
+        assertThrows(IllegalStateException.class, () -> buffer.put((byte) 2));
+    }
+
+    @Test
+    public void testPoolReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool();
+        var first = pool.lease(100);
+        assertEquals(BufferPool.SMALL_BUFFER_SIZE, first.capacity());
+        pool.release(first);
+        assertSame(first, pool.lease(BufferPool.SMALL_BUFFER_SIZE));
+        assertEquals(BufferPool.LARGE_BUFFER_SIZE, pool.lease(BufferPool.LARGE_BUFFER_SIZE * 10).capacity());
+        assertThrows(IllegalArgumentException.class, () -> pool.release(null));
+    }
+}
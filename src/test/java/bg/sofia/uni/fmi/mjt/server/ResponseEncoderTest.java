@@ -0,0 +1,53 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import bg.sofia.uni.fmi.mjt.json.Food;
+import bg.sofia.uni.fmi.mjt.result.ResultData;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class ResponseEncoderTest {
+    private final Gson gson = new Gson();
+
+    private byte[] written(ChunkedBuffer buffer) throws IOException {
+        Path file = Files.createTempFile("response", ".json");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                buffer.writeTo(channel);
+            }
+            return Files.readAllBytes(file);
+        } finally {
+            buffer.release();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testEncodingMatchesGsonToJson() throws IOException {
+        List<Food> foods = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            foods.add(gson.fromJson(String.format("{\"fdcId\":%d,\"description\":\"CR\u00C8ME BR\u00DBL\u00C9E <%d> \\uD83C\\uDF70 & \u042F\u0411\u042A\u041B\u041A\u0410\"}", i, i),
+                    Food.class));
+        }
+        ResultData resultData = new ResultData(ResultData.STATUS_OK, foods);
+
+        byte[] expected = (gson.toJson(resultData) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, written(new ResponseEncoder(new BufferPool()).encode(resultData)));
+    }
+
+    @Test
+    public void testConstructorThrowsIllegalArgumentExceptionPoolIsNull() {
+        assertThrows(IllegalArgumentException.class, () -> new ResponseEncoder(null));
+    }
+}
@@ -0,0 +1,80 @@
+package bg.sofia.uni.fmi.mjt.server;
+
+import bg.sofia.uni.fmi.mjt.cache.CacheCompaction;
+import bg.sofia.uni.fmi.mjt.cache.CacheDurability;
+import bg.sofia.uni.fmi.mjt.cache.CacheFormat;
+import bg.sofia.uni.fmi.mjt.cache.CacheStorage;
+import bg.sofia.uni.fmi.mjt.requests.SearchCriteria;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ServerConfigTest {
+
+    @Test
+    public void testDefaults() {
+        ServerConfig config = new ServerConfig(new Properties());
+        assertEquals(ExecutionMode.PLATFORM, config.getExecutionMode());
+        assertEquals(9, config.getWorkerThreads());
+        assertEquals(64, config.getMaxUpstreamRequests());
+        assertTrue(config.isHedgingEnabled());
+        assertEquals(1, config.getHedgesPerSecond());
+        assertTrue(config.isBatchingEnabled());
+        assertEquals(20, config.getBatchMaxIds());
+        assertFalse(config.getCacheCapacity().isBounded());
+        assertTrue(config.getCacheTtls().isEmpty());
+        assertEquals(80, config.getRefreshAheadPercent());
+        assertEquals(CacheDurability.flushPerBatch(), config.getCacheDurability());
+        assertEquals(CacheFormat.JSON, config.getCacheFormat());
+        assertEquals(CacheStorage.HEAP, config.getCacheStorage());
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.getCacheLoadThreads());
+        assertTrue(config.isCacheLoadedInBackground());
+        assertEquals(CacheCompaction.atDuplicates(50, 10_000), config.getCacheCompaction());
+    }
+
+    @Test
+    public void testOverrides() {
+        Properties properties = new Properties();
+        properties.setProperty("server.execution.mode", "Virtual");
+        properties.setProperty("server.worker.threads", "4");
+        properties.setProperty("upstream.max.concurrent.requests", " 16 ");
+        properties.setProperty("upstream.hedging.enabled", "false");
+        properties.setProperty("cache.ttl.keywords.minutes", "60");
+        properties.setProperty("cache.durability", "fsync");
+        properties.setProperty("cache.file.format", "Binary");
+        properties.setProperty("cache.storage", "mapped");
+        properties.setProperty("cache.compaction.enabled", "false");
+        properties.setProperty("upstream.batch.max.ids", "50");
+        ServerConfig config = new ServerConfig(properties);
+
+        assertEquals(ExecutionMode.VIRTUAL, config.getExecutionMode());
+        assertEquals(4, config.getWorkerThreads());
+        assertEquals(16, config.getMaxUpstreamRequests());
+        assertFalse(config.isHedgingEnabled());
+        assertEquals(Map.of(SearchCriteria.BY_KEYWORDS, Duration.ofHours(1)), config.getCacheTtls());
+        assertEquals(CacheDurability.fsyncEvery(Duration.ofSeconds(1)), config.getCacheDurability());
+        assertEquals(CacheFormat.BINARY, config.getCacheFormat());
+        assertEquals(CacheStorage.MAPPED, config.getCacheStorage());
+        assertFalse(config.getCacheCompaction().isEnabled());
+        assertEquals(20, config.getBatchMaxIds(), "The multi-id endpoint takes at most 20 ids");
+    }
+
+    @Test
+    public void testInvalidValuesThrowIllegalArgumentException() {
+        Properties properties = new Properties();
+        properties.setProperty("server.execution.mode", "green");
+        properties.setProperty("server.worker.threads", "0");
+        ServerConfig config = new ServerConfig(properties);
+
+        assertThrows(IllegalArgumentException.class, config::getExecutionMode);
+        assertThrows(IllegalArgumentException.class, config::getWorkerThreads);
+        assertThrows(IllegalArgumentException.class, () -> new ServerConfig(null));
+    }
+}
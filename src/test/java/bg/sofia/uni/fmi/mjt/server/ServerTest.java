@@ -10,7 +10,13 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -122,4 +128,115 @@ public class ServerTest {
         assertNull(client.send("invalid request"));
     }
 
+    @Test
+    public void testRequestSplitAcrossWrites() throws IOException, InterruptedException {
+        String json = "{\"fdcId\":2095236,\"dataType\":\"Branded\",\"description\":\"CHEDDAR CHEESE\",\"foodNutrients\":[{\"number\":\"203\",\"name\":\"Protein\",\"amount\":25.0,\"unitName\":\"G\"}],\"gtinUpc\":\"828653282457\",\"query\":\"cheddar cheese\"}\n";
+        Food food = gson.fromJson(json, Food.class);
+        when(cache.getByFdcId(anyInt())).thenReturn(new ResultData(ResultData.STATUS_OK, food));
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT))) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            channel.write(ByteBuffer.wrap("get-food-re".getBytes(StandardCharsets.UTF_8)));
+            Thread.sleep(50);
+            channel.write(ByteBuffer.wrap("port 2095236\r\n".getBytes(StandardCharsets.UTF_8)));
+
+            ResultData actual = gson.fromJson(reader.readLine(), ResultData.class);
+            assertEquals(ResultData.STATUS_OK, actual.getStatus());
+            assertEquals(food, actual.getFood());
+        }
+    }
+
+    @Test
+    public void testPipelinedRequestsInOneWrite() throws IOException {
+        String json = "{\"fdcId\":2095236,\"dataType\":\"Branded\",\"description\":\"CHEDDAR CHEESE\",\"foodNutrients\":[{\"number\":\"203\",\"name\":\"Protein\",\"amount\":25.0,\"unitName\":\"G\"}],\"gtinUpc\":\"828653282457\",\"query\":\"cheddar cheese\"}\n";
+        Food food = gson.fromJson(json, Food.class);
+        when(cache.getByFdcId(anyInt())).thenReturn(new ResultData(ResultData.STATUS_OK, food));
+
+        final int requestsCount = 5;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT))) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            channel.write(ByteBuffer.wrap("get-food-report 2095236\n".repeat(requestsCount).getBytes(StandardCharsets.UTF_8)));
+
+            for (int i = 0; i < requestsCount; i++) {
+                ResultData actual = gson.fromJson(reader.readLine(), ResultData.class);
+                assertEquals(ResultData.STATUS_OK, actual.getStatus());
+                assertEquals(food, actual.getFood());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedResponsesKeepRequestOrder() throws IOException {
+        final int requestsCount = 32;
+        final int firstId = 700000;
+        for (int i = 0; i < requestsCount; i++) {
+            final int id = firstId + i;
+            Food food = gson.fromJson(String.format("{\"fdcId\":%d,\"description\":\"FOOD %d\"}", id, id), Food.class);
+            //the earlier the request, the slower its answer. The first lookup is the selector's
+            //fast path, the miss there sends the request to a worker which asks the cache again
+            final long delay = (requestsCount - i) * 5L;
+            when(cache.getByFdcId(id)).thenReturn(null).thenAnswer(invocation -> {
+                Thread.sleep(delay);
+                return new ResultData(ResultData.STATUS_OK, food);
+            });
+        }
+
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < requestsCount; i++) {
+            requests.append("get-food-report ").append(firstId + i).append('\n');
+        }
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT))) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            channel.write(ByteBuffer.wrap(requests.toString().getBytes(StandardCharsets.UTF_8)));
+
+            for (int i = 0; i < requestsCount; i++) {
+                ResultData actual = gson.fromJson(reader.readLine(), ResultData.class);
+                assertEquals(ResultData.STATUS_OK, actual.getStatus());
+                assertEquals(firstId + i, actual.getFood().getFdcId());
+            }
+        }
+    }
+
+    @Test
+    public void testLargeResultIsNotTooBig() throws IOException {
+        String json = "{\"fdcId\":2095236,\"dataType\":\"Branded\",\"description\":\"CHEDDAR CHEESE\",\"foodNutrients\":[{\"number\":\"203\",\"name\":\"Protein\",\"amount\":25.0,\"unitName\":\"G\"},{\"number\":\"269\",\"name\":\"Sugars, total including NLEA\",\"amount\":0.0,\"unitName\":\"G\"}],\"gtinUpc\":\"828653282457\",\"ingredients\":\"MILK, CHEESE CULTURES, SALT, ENZYMES AND ANNATTO COLOR IF NECESSARY.\",\"query\":\"cheddar cheese\"}\n";
+        Food food = gson.fromJson(json, Food.class);
+        final int foodsCount = 2000;
+        List<Food> foods = new ArrayList<>();
+        for (int i = 0; i < foodsCount; i++) {
+            foods.add(food);
+        }
+        when(cache.getByKeywords("cheddar cheese")).thenReturn(new ResultData(ResultData.STATUS_OK, foods));
+
+        Client client = startClient();
+        ResultData actual = client.send("get-food cheddar cheese");
+        assertEquals(ResultData.STATUS_OK, actual.getStatus());
+        assertEquals(foodsCount, actual.getFoods().size());
+        client.disconnect();
+    }
+
+    @Test
+    public void testStreamedResponseIsFramedAndKeepsOrder() throws IOException {
+        Food food = gson.fromJson("{\"fdcId\":800001,\"dataType\":\"Branded\",\"description\":\"SWISS CHEESE\"}", Food.class);
+        when(cache.getByKeywords("swiss cheese")).thenReturn(new ResultData(ResultData.STATUS_OK, List.of(food, food)));
+        when(cache.getByFdcId(800001)).thenReturn(new ResultData(ResultData.STATUS_OK, food));
+
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", Server.SERVER_PORT))) {
+            BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+            channel.write(ByteBuffer.wrap("stream-food swiss cheese\nget-food-report 800001\n".getBytes(StandardCharsets.UTF_8)));
+
+            ResultData page = gson.fromJson(reader.readLine(), ResultData.class);
+            assertEquals(ResultData.STATUS_PARTIAL, page.getStatus());
+            assertEquals(2, page.getFoods().size());
+            assertEquals(ResultData.STATUS_END, gson.fromJson(reader.readLine(), ResultData.class).getStatus());
+            assertEquals(800001, gson.fromJson(reader.readLine(), ResultData.class).getFood().getFdcId());
+        }
+
+        Client client = startClient();
+        List<ResultData> frames = new ArrayList<>();
+        client.send("get-food --stream swiss cheese", frames::add);
+        assertEquals(2, frames.size());
+        assertEquals(ResultData.STATUS_END, frames.get(1).getStatus());
+        client.disconnect();
+    }
 }
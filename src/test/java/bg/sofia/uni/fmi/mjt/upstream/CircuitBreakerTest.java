@@ -0,0 +1,100 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CircuitBreakerTest {
+    private static final Duration SLOW_CALL = Duration.ofSeconds(1);
+    private static final Duration OPEN = Duration.ofSeconds(30);
+
+    private final AtomicLong clock = new AtomicLong();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(3, SLOW_CALL, OPEN, clock::get);
+
+    private void trip() {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onFailure(circuitBreaker.tryAcquire());
+        }
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        for (int i = 0; i < 2; i++) {
+            circuitBreaker.onFailure(circuitBreaker.tryAcquire());
+        }
+        circuitBreaker.onSuccess(circuitBreaker.tryAcquire(), 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(), "A success resets the failure count");
+
+        trip();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testSlowCallsCountAsFailures() {
+        for (int i = 0; i < 3; i++) {
+            circuitBreaker.onSuccess(circuitBreaker.tryAcquire(), SLOW_CALL.toNanos() + 1);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenLetsSingleTrialThrough() {
+        trip();
+        clock.addAndGet(OPEN.toNanos());
+
+        CircuitBreaker.Permit trial = circuitBreaker.tryAcquire();
+        assertTrue(trial.isTrial());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertNull(circuitBreaker.tryAcquire(), "Only one trial request may be in flight");
+
+        circuitBreaker.onFailure(trial);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(), "A failed trial opens the circuit again");
+        assertNull(circuitBreaker.tryAcquire());
+
+        clock.addAndGet(OPEN.toNanos());
+        circuitBreaker.onSuccess(circuitBreaker.tryAcquire(), 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertNotNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testLateOutcomesDontJudgeTheNewState() {
+        CircuitBreaker.Permit late = circuitBreaker.tryAcquire();
+        CircuitBreaker.Permit lateFailure = circuitBreaker.tryAcquire();
+        trip();
+
+        circuitBreaker.onSuccess(late, 0);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(), "A late success can't skip the cool-down");
+
+        clock.addAndGet(OPEN.toNanos());
+        CircuitBreaker.Permit trial = circuitBreaker.tryAcquire();
+        circuitBreaker.onFailure(lateFailure);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(), "Only the trial judges the API");
+        circuitBreaker.onSuccess(trial, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void testCancelledTrialFreesHalfOpenPermission() {
+        CircuitBreaker.Permit regular = circuitBreaker.tryAcquire();
+        trip();
+        clock.addAndGet(OPEN.toNanos());
+        CircuitBreaker.Permit trial = circuitBreaker.tryAcquire();
+
+        circuitBreaker.onCancel(regular);
+        assertNull(circuitBreaker.tryAcquire(), "Only the trial's cancel frees the trial");
+        circuitBreaker.onCancel(trial);
+        assertNotNull(circuitBreaker.tryAcquire());
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(0, SLOW_CALL, OPEN));
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(1, null, OPEN));
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(1, SLOW_CALL, null));
+    }
+}
@@ -0,0 +1,40 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HedgePolicyTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testHedgeDelayIsP95OfObservedLatencies() {
+        HedgePolicy hedgePolicy = new HedgePolicy(1, clock::get);
+        for (int i = 1; i < 20; i++) {
+            hedgePolicy.record(i);
+        }
+        assertEquals(-1, hedgePolicy.getHedgeDelayNanos(), "No hedging before enough requests are observed");
+
+        hedgePolicy.record(20);
+        assertEquals(19, hedgePolicy.getHedgeDelayNanos());
+    }
+
+    @Test
+    public void testHedgesPerSecondBudget() {
+        HedgePolicy hedgePolicy = new HedgePolicy(2, clock::get);
+        assertTrue(hedgePolicy.tryHedge());
+        assertTrue(hedgePolicy.tryHedge());
+        assertFalse(hedgePolicy.tryHedge());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(hedgePolicy.tryHedge());
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new HedgePolicy(0));
+    }
+}
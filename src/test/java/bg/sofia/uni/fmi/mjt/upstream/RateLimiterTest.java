@@ -0,0 +1,55 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testLowPriorityDoesNotTakeReservedTokens() {
+        RateLimiter rateLimiter = new RateLimiter(10, clock::get);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(rateLimiter.tryAcquire(Priority.LOW));
+        }
+        assertFalse(rateLimiter.tryAcquire(Priority.LOW));
+        assertTrue(rateLimiter.tryAcquire(Priority.HIGH));
+        assertFalse(rateLimiter.tryAcquire(Priority.HIGH));
+        assertEquals(10, rateLimiter.getGrantedCount());
+        assertEquals(1, rateLimiter.getRejectedCount());
+    }
+
+    @Test
+    public void testBucketRefillsOverTime() {
+        RateLimiter rateLimiter = new RateLimiter(60, clock::get);
+        for (int i = 0; i < 60; i++) {
+            assertTrue(rateLimiter.tryAcquire(Priority.HIGH));
+        }
+        assertEquals(0, rateLimiter.getAvailableTokens());
+
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(5));
+        assertEquals(5, rateLimiter.getAvailableTokens());
+
+        clock.addAndGet(TimeUnit.HOURS.toNanos(2));
+        assertEquals(60, rateLimiter.getAvailableTokens());
+    }
+
+    @Test
+    public void testAcquireGivesUpAfterMaxWait() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(1);
+        assertTrue(rateLimiter.acquire(Duration.ZERO));
+        assertFalse(rateLimiter.acquire(Duration.ofMillis(20)));
+    }
+
+    @Test
+    public void testIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1).tryAcquire(null));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1).acquire(null));
+    }
+}
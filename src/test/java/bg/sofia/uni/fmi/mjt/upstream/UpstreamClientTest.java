@@ -0,0 +1,134 @@
+package bg.sofia.uni.fmi.mjt.upstream;
+
+import bg.sofia.uni.fmi.mjt.exceptions.CircuitOpenException;
+import bg.sofia.uni.fmi.mjt.exceptions.HttpRequestException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class UpstreamClientTest {
+    private static final HttpRequest REQUEST = HttpRequest.newBuilder(URI.create("https://api.nal.usda.gov/fdc/v1/food/1")).build();
+
+    @Mock
+    private HttpClient client;
+
+    @Test
+    public void testSendAppliesRequestTimeoutAndReleasesPermit() throws IOException, InterruptedException {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(response);
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setMaxConcurrentRequests(2)
+                .setRequestTimeout(Duration.ofSeconds(3))
+                .build();
+
+        assertSame(response, upstreamClient.send(REQUEST));
+        ArgumentCaptor<HttpRequest> sent = ArgumentCaptor.forClass(HttpRequest.class);
+        verify(client).send(sent.capture(), eq(HttpResponse.BodyHandlers.ofString()));
+        assertEquals(Duration.ofSeconds(3), sent.getValue().timeout().orElseThrow());
+        assertEquals(REQUEST.uri(), sent.getValue().uri());
+        assertEquals(2, upstreamClient.getAvailablePermits());
+    }
+
+    @Test
+    public void testSendIOExceptionThrowsHttpRequestException() throws IOException, InterruptedException {
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenThrow(IOException.class);
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).setMaxConcurrentRequests(1).build();
+
+        assertThrows(HttpRequestException.class, () -> upstreamClient.send(REQUEST));
+        assertEquals(1, upstreamClient.getAvailablePermits());
+    }
+
+    @Test
+    public void testSendAsyncHoldsPermitUntilCompletion() {
+        CompletableFuture<HttpResponse<String>> pending = new CompletableFuture<>();
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(pending);
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).setMaxConcurrentRequests(1).build();
+
+        CompletableFuture<Integer> status = upstreamClient.sendAsync(REQUEST, HttpResponse::statusCode);
+        assertEquals(0, upstreamClient.getAvailablePermits());
+
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(200);
+        pending.complete(response);
+        assertEquals(200, status.join());
+        assertEquals(1, upstreamClient.getAvailablePermits());
+    }
+
+    @Test
+    public void testInterruptedSendKeepsTheInterruptFlag() throws IOException, InterruptedException {
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
+                .thenThrow(InterruptedException.class);
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder().setHttpClient(client).build();
+
+        assertThrows(HttpRequestException.class, () -> upstreamClient.send(REQUEST));
+        assertTrue(Thread.interrupted(), "Executors shut down their threads by the interrupt flag");
+    }
+
+    @Test
+    public void testServerErrorsOpenCircuit() throws IOException, InterruptedException {
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(503);
+        when(client.send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()))).thenReturn(response);
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setCircuitBreaker(new CircuitBreaker(2, Duration.ofSeconds(1), Duration.ofMinutes(1)))
+                .build();
+
+        upstreamClient.send(REQUEST);
+        upstreamClient.send(REQUEST);
+        assertThrows(CircuitOpenException.class, () -> upstreamClient.send(REQUEST));
+        assertNull(upstreamClient.trySendAsync(REQUEST, HttpResponse::statusCode),
+                "Low priority requests are dropped instead of failing while the circuit is open");
+        verify(client, times(2)).send(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString()));
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() {
+        CompletableFuture<HttpResponse<String>> slow = new CompletableFuture<>();
+        HttpResponse<String> response = mock(HttpResponse.class);
+        when(response.statusCode()).thenReturn(200);
+        when(client.sendAsync(any(HttpRequest.class), eq(HttpResponse.BodyHandlers.ofString())))
+                .thenReturn(slow, CompletableFuture.completedFuture(response));
+
+        HedgePolicy hedgePolicy = new HedgePolicy(1);
+        for (int i = 0; i < 20; i++) {
+            hedgePolicy.record(Duration.ofMillis(1).toNanos());
+        }
+        UpstreamClient upstreamClient = UpstreamClient.newUpstreamClientBuilder()
+                .setHttpClient(client)
+                .setMaxConcurrentRequests(2)
+                .setHedgePolicy(hedgePolicy)
+                .build();
+
+        assertSame(response, upstreamClient.send(REQUEST));
+        assertTrue(slow.isCancelled(), "The losing request must be cancelled");
+        assertEquals(2, upstreamClient.getAvailablePermits());
+    }
+
+    @Test
+    public void testBuilderIllegalArguments() {
+        assertThrows(IllegalArgumentException.class, () -> UpstreamClient.newUpstreamClientBuilder().setHttpClient(null));
+        assertThrows(IllegalArgumentException.class, () -> UpstreamClient.newUpstreamClientBuilder().setMaxConcurrentRequests(0));
+        assertThrows(IllegalArgumentException.class, () -> UpstreamClient.newUpstreamClientBuilder().setRequestTimeout(null));
+    }
+}